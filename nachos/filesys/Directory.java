@@ -0,0 +1,292 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A directory: a hash table of names, stored in a file of buckets one sector
+ * long, so that finding a name usually takes one sector read however large
+ * the directory is.
+ *
+ * <p>
+ * A bucket is <tt>entrySize</tt>-byte slots. The first is the bucket's
+ * header, which counts the entries that hash to an earlier bucket but are
+ * stored past this one. The others are entries: the inode number (0 for an
+ * empty slot), the length of the name and the name. A name goes in the first
+ * bucket with an empty slot, starting from the one its hash selects, so a
+ * search goes on to the next bucket only while the overflow count is not 0.
+ * The table doubles, and every entry is moved, when it would be more than
+ * three quarters full.
+ *
+ * <p>
+ * Recently used names are kept in memory, in a name cache that also records
+ * names that are not in the directory, so most opens of a file do not read
+ * the directory at all. The directory file can be on any file system; the
+ * caller must hold that file system's lock.
+ */
+class Directory {
+	/**
+	 * Allocate a directory.
+	 *
+	 * @param file the directory file, which stays open.
+	 * @param bucketSize the number of bytes in a bucket.
+	 * @param cacheSize the number of names to keep in the name cache.
+	 */
+	Directory(OpenFile file, int bucketSize, final int cacheSize) {
+		Lib.assertTrue(bucketSize >= 2 * entrySize && cacheSize >= 0);
+
+		this.file = file;
+		this.bucketSize = bucketSize;
+
+		slotsPerBucket = bucketSize / entrySize - 1;
+		numBuckets = file.length() / bucketSize;
+
+		byte[] table = read(0, numBuckets);
+		for (int offset = 0; offset < table.length; offset += entrySize) {
+			if (offset % bucketSize != 0
+					&& Lib.bytesToInt(table, offset) != 0)
+				numEntries++;
+		}
+
+		cache = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(
+					Map.Entry<String, Integer> eldest) {
+				return size() > cacheSize;
+			}
+		};
+	}
+
+	/**
+	 * Find the inode a name refers to.
+	 *
+	 * @param name the name.
+	 * @return the inode number, or 0 if there is no entry for the name.
+	 */
+	int lookup(String name) {
+		Integer cached = cache.get(name);
+		if (cached != null)
+			return cached;
+
+		int number = 0;
+		int index = home(name);
+		for (int i = 0; i < numBuckets; i++) {
+			byte[] bucket = read(index, 1);
+			int offset = find(bucket, 0, name);
+			if (offset != -1) {
+				number = Lib.bytesToInt(bucket, offset);
+				break;
+			}
+
+			if (getOverflow(bucket, 0) == 0)
+				break;
+			index = (index + 1) % numBuckets;
+		}
+
+		cache.put(name, number);
+		return number;
+	}
+
+	/**
+	 * Add an entry. There must not already be one for the name.
+	 *
+	 * @param name the name.
+	 * @param number the inode number.
+	 * @return <tt>false</tt> if the directory could not grow.
+	 */
+	boolean add(String name, int number) {
+		if ((numEntries + 1) * 4 > numBuckets * slotsPerBucket * 3
+				&& !grow())
+			return false;
+
+		// a free slot is certain, since the table is at most 3/4 full
+		int index = home(name);
+		while (true) {
+			byte[] bucket = read(index, 1);
+			if (insert(bucket, 0, name, number)) {
+				write(index, bucket);
+				break;
+			}
+
+			setOverflow(bucket, 0, getOverflow(bucket, 0) + 1);
+			write(index, bucket);
+			index = (index + 1) % numBuckets;
+		}
+
+		numEntries++;
+		cache.put(name, number);
+		return true;
+	}
+
+	/**
+	 * Remove the entry for a name.
+	 *
+	 * @param name the name.
+	 * @return the inode number the entry held, or 0 if there was none.
+	 */
+	int remove(String name) {
+		Integer cached = cache.get(name);
+		if (cached != null && cached == 0)
+			return 0;
+
+		int home = home(name), index = home;
+		for (int i = 0; i < numBuckets; i++) {
+			byte[] bucket = read(index, 1);
+			int offset = find(bucket, 0, name);
+			if (offset != -1) {
+				int number = Lib.bytesToInt(bucket, offset);
+				Lib.bytesFromInt(bucket, offset, 0);
+				write(index, bucket);
+
+				// the buckets searched no longer overflow on its account
+				for (int j = 0; j < i; j++) {
+					byte[] passed = read((home + j) % numBuckets, 1);
+					setOverflow(passed, 0, getOverflow(passed, 0) - 1);
+					write((home + j) % numBuckets, passed);
+				}
+
+				numEntries--;
+				cache.put(name, 0);
+				return number;
+			}
+
+			if (getOverflow(bucket, 0) == 0)
+				break;
+			index = (index + 1) % numBuckets;
+		}
+
+		cache.put(name, 0);
+		return 0;
+	}
+
+	/**
+	 * Test whether a name fits in an entry.
+	 *
+	 * @param name the name.
+	 * @return <tt>true</tt> if the name is not empty and fits.
+	 */
+	static boolean isValidName(String name) {
+		if (name.length() == 0 || name.length() > maxNameLength)
+			return false;
+
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if (c <= ' ' || c >= 0x7F || c == '/')
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Double the number of buckets, moving every entry to its place in the
+	 * new table.
+	 *
+	 * @return <tt>false</tt> if the directory could not grow.
+	 */
+	private boolean grow() {
+		int newBuckets = Math.max(initialBuckets, numBuckets * 2);
+		byte[] old = read(0, numBuckets);
+		byte[] table = new byte[newBuckets * bucketSize];
+
+		for (int offset = 0; offset < old.length; offset += entrySize) {
+			int number = Lib.bytesToInt(old, offset);
+			if (offset % bucketSize == 0 || number == 0)
+				continue;
+
+			String name = new String(old, offset + 5, old[offset + 4]);
+			int index = Math.abs(name.hashCode() % newBuckets);
+			while (!insert(table, index * bucketSize, name, number)) {
+				setOverflow(table, index * bucketSize, getOverflow(table,
+						index * bucketSize) + 1);
+				index = (index + 1) % newBuckets;
+			}
+		}
+
+		if (file.write(0, table, 0, table.length) != table.length)
+			return false;
+
+		numBuckets = newBuckets;
+		Lib.debug(dbgFileSystem, "directory grown to " + numBuckets
+				+ " buckets");
+		return true;
+	}
+
+	private int home(String name) {
+		if (numBuckets == 0)
+			return 0;
+		return Math.abs(name.hashCode() % numBuckets);
+	}
+
+	private byte[] read(int index, int count) {
+		byte[] data = new byte[count * bucketSize];
+		int amount = file.read(index * bucketSize, data, 0, data.length);
+		Lib.assertTrue(amount == data.length);
+		return data;
+	}
+
+	private void write(int index, byte[] bucket) {
+		int amount = file.write(index * bucketSize, bucket, 0, bucketSize);
+		Lib.assertTrue(amount == bucketSize);
+	}
+
+	/**
+	 * Return the offset of the entry for a name in the bucket at
+	 * <tt>base</tt>, or -1.
+	 */
+	private int find(byte[] data, int base, String name) {
+		for (int slot = 1; slot <= slotsPerBucket; slot++) {
+			int offset = base + slot * entrySize;
+			if (Lib.bytesToInt(data, offset) != 0
+					&& data[offset + 4] == name.length()
+					&& new String(data, offset + 5, name.length())
+							.equals(name))
+				return offset;
+		}
+		return -1;
+	}
+
+	/**
+	 * Put an entry in an empty slot of the bucket at <tt>base</tt>.
+	 *
+	 * @return <tt>false</tt> if the bucket is full.
+	 */
+	private boolean insert(byte[] data, int base, String name, int number) {
+		for (int slot = 1; slot <= slotsPerBucket; slot++) {
+			int offset = base + slot * entrySize;
+			if (Lib.bytesToInt(data, offset) == 0) {
+				Lib.bytesFromInt(data, offset, number);
+				data[offset + 4] = (byte) name.length();
+				System.arraycopy(name.getBytes(), 0, data, offset + 5,
+						name.length());
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static int getOverflow(byte[] data, int base) {
+		return Lib.bytesToInt(data, base);
+	}
+
+	private static void setOverflow(byte[] data, int base, int overflow) {
+		Lib.bytesFromInt(data, base, overflow);
+	}
+
+	private OpenFile file;
+
+	private int bucketSize, slotsPerBucket;
+
+	private int numBuckets, numEntries = 0;
+
+	/** Inode numbers by name, 0 for names known not to be here. */
+	private LinkedHashMap<String, Integer> cache;
+
+	static final int entrySize = 64;
+
+	static final int maxNameLength = entrySize - 5;
+
+	private static final int initialBuckets = 4;
+
+	private static final char dbgFileSystem = 'f';
+}
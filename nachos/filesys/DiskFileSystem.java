@@ -0,0 +1,880 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * A file system stored on the simulated disk, <tt>ThreadedKernel.disk</tt>.
+ * Select it with <tt>ThreadedKernel.fileSystem =
+ * nachos.filesys.DiskFileSystem</tt>.
+ *
+ * <p>
+ * The disk holds a superblock, a free-sector bitmap, an inode table and the
+ * data sectors (see <tt>SuperBlock</tt>). Every file is an inode with a list
+ * of extents, and the names are entries in the root directory, itself a
+ * file, which is hashed and has a cache of recently used names holding
+ * <tt>DiskFileSystem.nameCacheSize</tt> names (see <tt>Directory</tt>). The
+ * disk is mounted when the file system is created, and formatted if it
+ * holds no file system or <tt>DiskFileSystem.format</tt> is set. The files
+ * named in <tt>DiskFileSystem.importFiles</tt> (separated by commas) that
+ * are missing are then copied in from the stub file system, so that
+ * executables can be put on the disk.
+ *
+ * <p>
+ * A file grows by whole extents. The allocator tries to continue the file's
+ * last extent, and asks for more than the write needs: at least
+ * <tt>DiskFileSystem.clusterSectors</tt>, and as much again as the file
+ * already has, up to <tt>DiskFileSystem.maxPreallocate</tt> sectors. What
+ * the file does not use is returned at its last close. So a large file is
+ * usually a few long extents, and reading it sequentially takes a few large
+ * transfers.
+ *
+ * <p>
+ * The bitmap and the inode table are kept in memory. Changes to them, to
+ * indirect sectors and to directories go through a <tt>Journal</tt> of
+ * <tt>DiskFileSystem.journalSectors</tt> sectors (256, set at format; 0
+ * writes metadata through). A thread commits every
+ * <tt>DiskFileSystem.commitInterval</tt> ticks (20000) all the changes made
+ * since the last commit, by any number of operations, and a commit also
+ * happens when the changes fill half the journal and at shutdown. File
+ * contents are written directly, before the commit that makes them part of a
+ * file. After a crash the file system is as of the last commit, less perhaps
+ * some free sectors, which are marked free in the commit after the one that
+ * freed them. Opening a file with <tt>create</tt> set truncates it if it
+ * exists, like the stub file system does. A file removed while open stays
+ * readable and writable through the open files, and its space is freed at
+ * the last close.
+ */
+public class DiskFileSystem implements BufferedFileSystem {
+	/**
+	 * Mount the file system on <tt>ThreadedKernel.disk</tt>, formatting the
+	 * disk if necessary.
+	 */
+	public DiskFileSystem() {
+		disk = ThreadedKernel.disk;
+		Lib.assertTrue(disk != null, "DiskFileSystem needs Machine.disk");
+
+		sectorSize = disk.getDisk().getSectorSize();
+		maxExtents = Inode.numDirect + sectorSize / 8;
+		clusterSectors = Config.getInteger("DiskFileSystem.clusterSectors", 8);
+		maxPreallocate = Config.getInteger("DiskFileSystem.maxPreallocate", 64);
+		nameCacheSize = Config.getInteger("DiskFileSystem.nameCacheSize", 128);
+		Lib.assertTrue(clusterSectors > 0 && maxPreallocate >= 0);
+
+		lock.acquire();
+		if (Config.getBoolean("DiskFileSystem.format", false) || !mount())
+			format(Config.getInteger("DiskFileSystem.numInodes", 256), Config
+					.getInteger("DiskFileSystem.journalSectors", 256));
+		lock.release();
+
+		if (journal.isEnabled()) {
+			final int commitInterval = Config.getInteger(
+					"DiskFileSystem.commitInterval", 20000);
+			new KThread(new Runnable() {
+				public void run() {
+					while (true) {
+						ThreadedKernel.alarm.waitUntil(commitInterval);
+						lock.acquire();
+						commit();
+						lock.release();
+					}
+				}
+			}).setName("journal commit").fork();
+		}
+
+		importFiles(this, Config.getString("DiskFileSystem.importFiles", ""));
+	}
+
+	public OpenFile open(String name, boolean create) {
+		if (!Directory.isValidName(name))
+			return null;
+
+		begin();
+
+		boolean created = false;
+		int number = root.lookup(name);
+		if (number == 0) {
+			if (!create) {
+				lock.release();
+				return null;
+			}
+
+			number = createInode(Inode.file);
+			if (number == 0) {
+				lock.release();
+				return null;
+			}
+
+			if (!root.add(name, number)) {
+				freeInode(getInode(number));
+				lock.release();
+				return null;
+			}
+			created = true;
+		}
+
+		Inode inode = getInode(number);
+		inode.openCount++;
+		lock.release();
+
+		if (create && !created) {
+			inode.lock.acquire();
+			truncate(inode);
+			inode.lock.release();
+		}
+
+		return new DiskOpenFile(this, name, inode);
+	}
+
+	public boolean remove(String name) {
+		if (!Directory.isValidName(name))
+			return false;
+
+		begin();
+
+		int number = root.remove(name);
+		if (number != 0) {
+			Inode inode = getInode(number);
+			if (inode.openCount > 0)
+				inode.removed = true;
+			else
+				freeInode(inode);
+		}
+
+		lock.release();
+		return number != 0;
+	}
+
+	/**
+	 * Read from a file. The caller must hold the inode's lock, or the file
+	 * system lock for a directory.
+	 *
+	 * @param inode the file.
+	 * @param pos the offset in the file of the first byte to read.
+	 * @param buf the buffer to read into.
+	 * @param offset the offset in <tt>buf</tt> of the first byte.
+	 * @param length the number of bytes to read.
+	 * @return the number of bytes read, less than <tt>length</tt> at the end
+	 * of the file.
+	 */
+	int read(Inode inode, int pos, byte[] buf, int offset, int length) {
+		if (pos >= inode.length)
+			return 0;
+
+		length = Math.min(length, inode.length - pos);
+		int end = pos + length;
+
+		int index = pos / sectorSize, last = (end - 1) / sectorSize;
+		while (index <= last) {
+			int count = inode.getRun(index, last - index + 1);
+			int runStart = index * sectorSize;
+
+			byte[] data = new byte[count * sectorSize];
+			readSectors(inode, inode.getSector(index), count, data, 0);
+
+			int from = Math.max(pos, runStart);
+			int to = Math.min(end, runStart + data.length);
+			System.arraycopy(data, from - runStart, buf, offset + from - pos,
+					to - from);
+
+			index += count;
+		}
+
+		return length;
+	}
+
+	/**
+	 * Write to a file, extending it if necessary. A gap between the old end
+	 * of the file and <tt>pos</tt> reads as zeros. The caller must hold the
+	 * inode's lock, or the file system lock for a directory.
+	 *
+	 * @param inode the file.
+	 * @param pos the offset in the file of the first byte to write.
+	 * @param buf the buffer to write from.
+	 * @param offset the offset in <tt>buf</tt> of the first byte.
+	 * @param length the number of bytes to write.
+	 * @return <tt>length</tt>, or -1 if the disk is full or the file has too
+	 * many extents.
+	 */
+	int write(Inode inode, int pos, byte[] buf, int offset, int length) {
+		if (length == 0)
+			return 0;
+
+		int end = pos + length;
+		int needed = (end + sectorSize - 1) / sectorSize;
+		if (needed > inode.numSectors) {
+			boolean locked = lock.isHeldByCurrentThread();
+			if (!locked)
+				begin();
+
+			boolean extended = extend(inode, needed);
+			if (!extended)
+				writeInode(inode);
+
+			if (!locked)
+				lock.release();
+
+			if (!extended)
+				return -1;
+		}
+
+		// the sectors holding data before this write
+		int oldSectors = (inode.length + sectorSize - 1) / sectorSize;
+		int start = Math.min(pos, inode.length);
+
+		int index = start / sectorSize, last = (end - 1) / sectorSize;
+		while (index <= last) {
+			int count = inode.getRun(index, last - index + 1);
+			int sector = inode.getSector(index);
+			int runStart = index * sectorSize, runEnd = runStart + count
+					* sectorSize;
+
+			// keep what the partial first and last sectors already hold
+			byte[] data = new byte[count * sectorSize];
+			boolean firstPartial = start > runStart && index < oldSectors;
+			if (firstPartial)
+				readSectors(inode, sector, 1, data, 0);
+			if (end < runEnd && index + count - 1 < oldSectors
+					&& !(firstPartial && count == 1))
+				readSectors(inode, sector + count - 1, 1, data, (count - 1)
+						* sectorSize);
+
+			int gapTo = Math.min(pos, runEnd);
+			for (int i = Math.max(start, runStart); i < gapTo; i++)
+				data[i - runStart] = 0;
+
+			int from = Math.max(pos, runStart), to = Math.min(end, runEnd);
+			if (from < to)
+				System.arraycopy(buf, offset + from - pos, data,
+						from - runStart, to - from);
+
+			if (inode.type == Inode.directory)
+				journal.write(sector, count, data, 0);
+			else
+				disk.writeSectors(sector, count, data, 0);
+			index += count;
+		}
+
+		if (end > inode.length) {
+			inode.length = end;
+
+			boolean locked = lock.isHeldByCurrentThread();
+			if (!locked)
+				lock.acquire();
+			writeInode(inode);
+			if (!locked)
+				lock.release();
+		}
+
+		return length;
+	}
+
+	/**
+	 * Close a file.
+	 *
+	 * @param inode the file's inode.
+	 */
+	void close(Inode inode) {
+		begin();
+
+		Lib.assertTrue(inode.openCount > 0);
+		if (--inode.openCount == 0) {
+			inodes.remove(inode.number);
+			if (inode.removed)
+				freeInode(inode);
+			else
+				trim(inode);
+		}
+
+		lock.release();
+	}
+
+	/**
+	 * Commit the changes to metadata not yet committed, and wait until they
+	 * are on disk.
+	 */
+	public void sync() {
+		lock.acquire();
+		commit();
+		// the sectors the first commit released are marked free by this one
+		commit();
+		journal.clear();
+		lock.release();
+	}
+
+	/**
+	 * Print the statistics of this file system.
+	 */
+	public void print() {
+		System.out.println("Journal: " + journal.getStatistics()
+				+ ", forced commits " + forcedCommits);
+	}
+
+	/**
+	 * Test this file system.
+	 */
+	public void selfTest() {
+		testFiles(this);
+		testNames(this);
+		testOverwrites(this, disk.getDisk().getNumSectors());
+
+		lock.acquire();
+		commit();
+		Inode.Extent extent = freeMap.allocate(-1, 1);
+		if (extent != null) {
+			journal.selfTest(extent.start);
+			freeMap.free(extent.start, 1);
+			commit();
+		}
+		lock.release();
+	}
+
+	/**
+	 * Read the superblock, replay the journal, and read the bitmap, the inode
+	 * table and the root directory. Require lock.
+	 *
+	 * @return <tt>false</tt> if the disk holds no file system of this size.
+	 */
+	private boolean mount() {
+		byte[] sector = new byte[sectorSize];
+		disk.readSectors(0, 1, sector, 0);
+		if (!superBlock.decode(sector)
+				|| superBlock.numSectors != disk.getDisk().getNumSectors())
+			return false;
+
+		journal = new Journal(disk, superBlock.journalStart,
+				superBlock.journalSectors);
+		journal.recover();
+
+		byte[] bits = new byte[superBlock.bitmapSectors * sectorSize];
+		disk.readSectors(superBlock.bitmapStart, superBlock.bitmapSectors, bits,
+				0);
+		freeMap = new FreeMap(bits, superBlock.numSectors, superBlock.dataStart,
+				sectorSize, journal.isEnabled());
+
+		inodeTable = new byte[superBlock.inodeSectors * sectorSize];
+		disk.readSectors(superBlock.inodeStart, superBlock.inodeSectors,
+				inodeTable, 0);
+
+		getInode(rootInode).openCount++;
+		root = new Directory(new DiskOpenFile(this, "/", getInode(rootInode)),
+				sectorSize, nameCacheSize);
+
+		Lib.debug(dbgFileSystem, "mounted: " + superBlock.numInodes
+				+ " inodes, " + freeMap.getNumFree() + " free sectors");
+		return true;
+	}
+
+	/**
+	 * Write an empty file system to the disk. Require lock.
+	 */
+	private void format(int numInodes, int journalSectors) {
+		int numSectors = disk.getDisk().getNumSectors();
+		superBlock = new SuperBlock(numSectors, sectorSize, numInodes,
+				journalSectors);
+		Lib.assertTrue(numInodes > rootInode
+				&& superBlock.dataStart < numSectors);
+
+		byte[] sector = new byte[sectorSize];
+		superBlock.encode(sector);
+
+		byte[] bits = new byte[superBlock.bitmapSectors * sectorSize];
+		for (int i = 0; i < superBlock.dataStart; i++)
+			bits[i / 8] |= 1 << (i % 8);
+		// sectors past the end of the disk are never free
+		for (int i = numSectors; i < bits.length * 8; i++)
+			bits[i / 8] |= 1 << (i % 8);
+		journal = new Journal(disk, superBlock.journalStart, journalSectors);
+		freeMap = new FreeMap(bits, numSectors, superBlock.dataStart,
+				sectorSize, journal.isEnabled());
+
+		inodeTable = new byte[superBlock.inodeSectors * sectorSize];
+		Inode inode = new Inode(rootInode);
+		inode.type = Inode.directory;
+		inode.encode(inodeTable, rootInode * Inode.size);
+
+		disk.writeSectors(superBlock.bitmapStart, superBlock.bitmapSectors,
+				bits, 0);
+		disk.writeSectors(superBlock.inodeStart, superBlock.inodeSectors,
+				inodeTable, 0);
+		journal.clear();
+		disk.writeSectors(0, 1, sector, 0);
+
+		getInode(rootInode).openCount++;
+		root = new Directory(new DiskOpenFile(this, "/", getInode(rootInode)),
+				sectorSize, nameCacheSize);
+
+		Lib.debug(dbgFileSystem, "formatted: " + numInodes + " inodes, "
+				+ freeMap.getNumFree() + " free sectors");
+	}
+
+	/**
+	 * Copy files from the stub file system to another file system, unless
+	 * they are already there.
+	 *
+	 * @param fileSystem the file system to copy to.
+	 * @param names the names of the files, separated by commas.
+	 */
+	static void importFiles(FileSystem fileSystem, String names) {
+		FileSystem stub = Machine.stubFileSystem();
+		if (stub == null)
+			return;
+
+		for (String name : names.split(",")) {
+			name = name.trim();
+			if (!Directory.isValidName(name))
+				continue;
+
+			OpenFile present = fileSystem.open(name, false);
+			if (present != null) {
+				present.close();
+				continue;
+			}
+
+			OpenFile from = stub.open(name, false);
+			if (from == null) {
+				Lib.debug(dbgFileSystem, "cannot import " + name);
+				continue;
+			}
+
+			byte[] data = new byte[from.length()];
+			int amount = from.read(0, data, 0, data.length);
+			from.close();
+
+			OpenFile to = fileSystem.open(name, true);
+			if (to == null || amount != data.length
+					|| to.write(0, data, 0, data.length) != data.length)
+				Lib.debug(dbgFileSystem, "cannot import " + name);
+			else
+				Lib.debug(dbgFileSystem, "imported " + name + ", "
+						+ data.length + " bytes");
+
+			if (to != null)
+				to.close();
+		}
+	}
+
+	/**
+	 * Test reads and writes that leave a gap or cover part of a sector, files
+	 * written in turn, removing an open file and truncating one.
+	 *
+	 * @param fileSystem the file system to test.
+	 */
+	static void testFiles(FileSystem fileSystem) {
+		OpenFile file = fileSystem.open("_gap.tmp", true);
+		Lib.assertTrue(file != null);
+		byte[] data = new byte[1000];
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) (i + 1);
+		Lib.assertTrue(file.write(5000, data, 0, data.length) == data.length);
+		Lib.assertTrue(file.length() == 6000);
+
+		byte[] check = new byte[6000];
+		Lib.assertTrue(file.read(0, check, 0, check.length) == check.length);
+		for (int i = 0; i < 5000; i++)
+			Lib.assertTrue(check[i] == 0);
+		for (int i = 0; i < data.length; i++)
+			Lib.assertTrue(check[5000 + i] == data[i]);
+
+		// across a sector boundary
+		byte[] patch = { 9, 9, 9 };
+		Lib.assertTrue(file.write(4999, patch, 0, patch.length) == 3);
+		Lib.assertTrue(file.read(4990, check, 0, 20) == 20);
+		Lib.assertTrue(check[8] == 0 && check[9] == 9 && check[11] == 9
+				&& check[12] == 3);
+		file.close();
+		Lib.assertTrue(fileSystem.remove("_gap.tmp"));
+
+		// a sector at a time to each file in turn
+		int numFiles = 8, numSectors = 16;
+		OpenFile[] files = new OpenFile[numFiles];
+		for (int k = 0; k < numFiles; k++) {
+			files[k] = fileSystem.open("_turn" + k + ".tmp", true);
+			Lib.assertTrue(files[k] != null);
+		}
+		byte[] sector = new byte[512];
+		for (int s = 0; s < numSectors; s++) {
+			for (int k = 0; k < numFiles; k++) {
+				for (int i = 0; i < sector.length; i++)
+					sector[i] = (byte) (k * 31 + s * 7 + i);
+				Lib.assertTrue(files[k].write(s * sector.length, sector, 0,
+						sector.length) == sector.length);
+			}
+		}
+		for (int k = 0; k < numFiles; k++)
+			files[k].close();
+
+		for (int k = 0; k < numFiles; k++) {
+			OpenFile turn = fileSystem.open("_turn" + k + ".tmp", false);
+			Lib.assertTrue(turn.length() == numSectors * sector.length);
+			for (int s = 0; s < numSectors; s++) {
+				Lib.assertTrue(turn.read(s * sector.length, sector, 0,
+						sector.length) == sector.length);
+				for (int i = 0; i < sector.length; i++)
+					Lib.assertTrue(sector[i] == (byte) (k * 31 + s * 7 + i));
+			}
+			turn.close();
+		}
+
+		// a removed file stays usable until it is closed
+		file = fileSystem.open("_turn0.tmp", false);
+		Lib.assertTrue(fileSystem.remove("_turn0.tmp"));
+		Lib.assertTrue(fileSystem.open("_turn0.tmp", false) == null);
+		Lib.assertTrue(file.read(512, sector, 0, 512) == 512
+				&& sector[0] == 7);
+		Lib.assertTrue(file.write(numSectors * 512, sector, 0, 512) == 512);
+		file.close();
+
+		// opening with create truncates
+		file = fileSystem.open("_turn1.tmp", true);
+		Lib.assertTrue(file.length() == 0);
+		file.close();
+
+		for (int k = 1; k < numFiles; k++)
+			Lib.assertTrue(fileSystem.remove("_turn" + k + ".tmp"));
+
+		Lib.debug(dbgFileSystem, "DiskFileSystem.testFiles passed");
+	}
+
+	/**
+	 * Create up to 600 files, as many as there are free inodes for, remove
+	 * every other one, and time opening each of the names.
+	 *
+	 * @param fileSystem the file system to test.
+	 */
+	static void testNames(FileSystem fileSystem) {
+		byte[] data = new byte[4];
+		long time = Machine.timer().getTime();
+		int count = 0;
+		while (count < 600) {
+			OpenFile file = fileSystem.open("_name" + count + ".tmp", true);
+			if (file == null)
+				break;
+			Lib.bytesFromInt(data, 0, count);
+			Lib.assertTrue(file.write(0, data, 0, 4) == 4);
+			file.close();
+			count++;
+		}
+		for (int i = 0; i < count; i += 2)
+			Lib.assertTrue(fileSystem.remove("_name" + i + ".tmp"));
+		long createTime = Machine.timer().getTime() - time;
+
+		time = Machine.timer().getTime();
+		for (int i = 0; i < count; i++) {
+			OpenFile file = fileSystem.open("_name" + i + ".tmp", false);
+			if (i % 2 == 0) {
+				Lib.assertTrue(file == null);
+				continue;
+			}
+			Lib.assertTrue(file != null && file.read(0, data, 0, 4) == 4
+					&& Lib.bytesToInt(data, 0) == i);
+			file.close();
+		}
+		long openTime = Machine.timer().getTime() - time;
+
+		for (int i = 1; i < count; i += 2)
+			Lib.assertTrue(fileSystem.remove("_name" + i + ".tmp"));
+
+		Lib.debug(dbgFileSystem, "DiskFileSystem.testNames: " + count
+				+ " creates and " + (count + 1) / 2 + " removes in "
+				+ createTime + " ticks, " + count + " opens in " + openTime
+				+ " ticks");
+	}
+
+	/**
+	 * Fill 60% of the disk with 30 files, and time 30000 random overwrites of
+	 * a sector of a file, nine in ten of them to the first three files. Then
+	 * check every sector, and remove the files. Skipped if the files do not
+	 * fit.
+	 *
+	 * @param fileSystem the file system to test.
+	 * @param numSectors the number of sectors on the disk.
+	 */
+	static void testOverwrites(FileSystem fileSystem, int numSectors) {
+		int numFiles = 30, fileSectors = numSectors * 3 / 5 / numFiles;
+		byte[] sector = new byte[512];
+
+		OpenFile[] files = new OpenFile[numFiles];
+		boolean fits = true;
+		for (int k = 0; k < numFiles && fits; k++) {
+			files[k] = fileSystem.open("_over" + k + ".tmp", true);
+			fits = files[k] != null;
+			for (int s = 0; s < fileSectors && fits; s++) {
+				Arrays.fill(sector, overwritten(k, s, 0));
+				fits = files[k].write(s * 512, sector, 0, 512) == 512;
+			}
+		}
+
+		int[][] versions = new int[numFiles][fileSectors];
+		long time = Machine.timer().getTime();
+		Random random = new Random(1);
+		for (int i = 0; i < 30000 && fits; i++) {
+			int k = random.nextInt(10) < 9 ? random.nextInt(3) : 3 + random
+					.nextInt(numFiles - 3);
+			int s = random.nextInt(fileSectors);
+			versions[k][s]++;
+			Arrays.fill(sector, overwritten(k, s, versions[k][s]));
+			Lib.assertTrue(files[k].write(s * 512, sector, 0, 512) == 512);
+		}
+		long overwriteTime = Machine.timer().getTime() - time;
+
+		for (int k = 0; k < numFiles && files[k] != null; k++) {
+			for (int s = 0; s < fileSectors && fits; s++) {
+				Lib.assertTrue(files[k].read(s * 512, sector, 0, 512) == 512);
+				for (int i = 0; i < sector.length; i++)
+					Lib.assertTrue(sector[i] == overwritten(k, s,
+							versions[k][s]));
+			}
+			files[k].close();
+			Lib.assertTrue(fileSystem.remove("_over" + k + ".tmp"));
+		}
+
+		if (fits)
+			Lib.debug(dbgFileSystem, "DiskFileSystem.testOverwrites: "
+					+ numFiles + " files of " + fileSectors
+					+ " sectors, 30000 overwrites in " + overwriteTime
+					+ " ticks");
+		else
+			Lib.debug(dbgFileSystem, "DiskFileSystem.testOverwrites: "
+					+ "skipped, the disk is too full");
+	}
+
+	private static byte overwritten(int file, int sector, int version) {
+		return (byte) (file * 13 + sector * 7 + version * 3);
+	}
+
+	/**
+	 * Return the in-memory inode for an inode number, loading it from the
+	 * inode table if no one has it open. Require lock.
+	 */
+	private Inode getInode(int number) {
+		Inode inode = inodes.get(number);
+		if (inode != null)
+			return inode;
+
+		inode = new Inode(number);
+		int numExtents = inode.decode(inodeTable, number * Inode.size);
+		if (numExtents > Inode.numDirect) {
+			byte[] sector = new byte[sectorSize];
+			journal.read(inode.indirect, 1, sector, 0);
+			inode.decodeIndirect(sector, numExtents);
+		}
+		inodes.put(number, inode);
+		return inode;
+	}
+
+	/**
+	 * Take a free inode and write it to the table as an empty file. Require
+	 * lock.
+	 *
+	 * @return the inode number, or 0 if the table is full.
+	 */
+	private int createInode(int type) {
+		for (int number = rootInode + 1; number < superBlock.numInodes;
+				number++) {
+			if (inodes.containsKey(number) || Lib.bytesToInt(inodeTable,
+					number * Inode.size) != Inode.free)
+				continue;
+
+			Inode inode = new Inode(number);
+			inode.type = type;
+			inodes.put(number, inode);
+			writeInode(inode);
+			return number;
+		}
+
+		return 0;
+	}
+
+	/**
+	 * Free a file's sectors and its inode. Require lock.
+	 */
+	private void freeInode(Inode inode) {
+		inode.shrink(inode.numSectors, freeMap);
+		inode.length = 0;
+		inode.type = Inode.free;
+		writeInode(inode);
+
+		if (inode.openCount == 0)
+			inodes.remove(inode.number);
+	}
+
+	/**
+	 * Free all the sectors of a file. Require the inode's lock.
+	 */
+	private void truncate(Inode inode) {
+		begin();
+		inode.shrink(inode.numSectors, freeMap);
+		inode.length = 0;
+		writeInode(inode);
+		lock.release();
+	}
+
+	/**
+	 * Return the sectors allocated ahead of writes but not used, keeping
+	 * whole clusters. Require lock.
+	 */
+	private void trim(Inode inode) {
+		int used = (inode.length + sectorSize - 1) / sectorSize;
+		used = (used + clusterSectors - 1) / clusterSectors * clusterSectors;
+		if (inode.numSectors > used) {
+			inode.shrink(inode.numSectors - used, freeMap);
+			writeInode(inode);
+		}
+
+		Lib.debug(dbgFileSystem, "closed inode " + inode.number + ": "
+				+ inode.length + " bytes in " + inode.extents.size()
+				+ " extents");
+	}
+
+	/**
+	 * Allocate sectors until a file has at least <tt>sectors</tt>. Require
+	 * lock.
+	 *
+	 * @return <tt>false</tt> if the disk is full or the file would have too
+	 * many extents.
+	 */
+	private boolean extend(Inode inode, int sectors) {
+		while (inode.numSectors < sectors) {
+			int want = Math.max(sectors - inode.numSectors, Math.min(
+					inode.numSectors, maxPreallocate));
+			want = (want + clusterSectors - 1) / clusterSectors
+					* clusterSectors;
+
+			Inode.Extent extent = freeMap.allocate(inode.getEnd(), want);
+			if (extent == null && !freeMap.getFreed().isEmpty()) {
+				// free what was freed, though this operation is half done
+				forcedCommits++;
+				commit();
+				extent = freeMap.allocate(inode.getEnd(), want);
+			}
+			if (extent == null)
+				return false;
+
+			if (extent.start != inode.getEnd()) {
+				int numExtents = inode.extents.size() + 1;
+				if (numExtents > maxExtents
+						|| (numExtents > Inode.numDirect && inode.indirect == 0
+								&& !allocateIndirect(inode))) {
+					freeMap.free(extent.start, extent.count);
+					return false;
+				}
+			}
+
+			inode.append(extent.start, extent.count);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Allocate the sector for the extents that do not fit in an inode.
+	 * Require lock.
+	 */
+	private boolean allocateIndirect(Inode inode) {
+		Inode.Extent extent = freeMap.allocate(-1, 1);
+		if (extent == null)
+			return false;
+
+		inode.indirect = extent.start;
+		return true;
+	}
+
+	/**
+	 * Write an inode to the inode table on disk, along with the bitmap and,
+	 * if it has one, its indirect sector. Require lock.
+	 */
+	private void writeInode(Inode inode) {
+		if (!inode.needsIndirect() && inode.indirect != 0) {
+			freeMap.free(inode.indirect, 1);
+			inode.indirect = 0;
+		}
+
+		freeMap.flush(journal, superBlock.bitmapStart);
+
+		if (inode.indirect != 0) {
+			byte[] sector = new byte[sectorSize];
+			inode.encodeIndirect(sector);
+			journal.write(inode.indirect, 1, sector, 0);
+		}
+
+		int offset = inode.number * Inode.size;
+		inode.encode(inodeTable, offset);
+		journal.write(superBlock.inodeStart + offset / sectorSize, 1,
+				inodeTable, offset / sectorSize * sectorSize);
+	}
+
+	/**
+	 * Read sectors of a file, through the journal if it is a directory.
+	 */
+	private void readSectors(Inode inode, int sector, int count, byte[] data,
+			int offset) {
+		if (inode.type == Inode.directory)
+			journal.read(sector, count, data, offset);
+		else
+			disk.readSectors(sector, count, data, offset);
+	}
+
+	/**
+	 * Acquire the lock to start an operation, first committing if the
+	 * changes not yet committed fill half the journal.
+	 */
+	private void begin() {
+		lock.acquire();
+		if (journal.isFilling()) {
+			forcedCommits++;
+			commit();
+		}
+	}
+
+	/**
+	 * Commit the changes to metadata, and then make the sectors they free
+	 * available. Require lock.
+	 */
+	private void commit() {
+		freeMap.flush(journal, superBlock.bitmapStart);
+		for (Inode.Extent extent : freeMap.getFreed())
+			journal.forget(extent.start, extent.count);
+
+		journal.commit();
+		freeMap.release();
+	}
+
+	private SynchDisk disk;
+
+	private int sectorSize;
+
+	private int maxExtents;
+
+	private int clusterSectors, maxPreallocate;
+
+	private int nameCacheSize;
+
+	private SuperBlock superBlock = new SuperBlock();
+
+	private FreeMap freeMap;
+
+	private Journal journal;
+
+	private int forcedCommits = 0;
+
+	/** The inode table, as stored on disk. */
+	private byte[] inodeTable;
+
+	/** The inodes that are open, by number. */
+	private HashMap<Integer, Inode> inodes = new HashMap<>();
+
+	private Directory root;
+
+	/** Protects the bitmap, the inode table and the directory. */
+	private Lock lock = new Lock();
+
+	/** Inode 0 is never used, so that 0 can mean no inode. */
+	private static final int rootInode = 1;
+
+	private static final char dbgFileSystem = 'f';
+}
@@ -0,0 +1,203 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The free-sector bitmap, one bit per sector of the disk, set for sectors in
+ * use. It is kept in memory, and the sectors of the bitmap that change are
+ * written back by <tt>flush()</tt>.
+ *
+ * <p>
+ * Sectors are handed out as extents. An allocation first tries to continue
+ * from a goal sector, the end of the file being extended, so a file that
+ * grows alone stays in one extent. Otherwise, or if the file has no sectors
+ * yet, it takes the first free run after the goal that is long enough, and
+ * only when there is none, the longest run left.
+ *
+ * <p>
+ * With a journal, freed sectors stay in use until the transaction that
+ * frees them is committed, so that they cannot be written over while the
+ * disk still says the file has them.
+ */
+class FreeMap {
+	/**
+	 * Allocate a free map.
+	 *
+	 * @param bits the bitmap, as stored on disk.
+	 * @param numSectors the number of sectors on the disk.
+	 * @param firstData the first sector that can be allocated.
+	 * @param sectorSize the number of bytes in a sector.
+	 * @param deferFrees whether to keep freed sectors until
+	 * <tt>release()</tt>.
+	 */
+	FreeMap(byte[] bits, int numSectors, int firstData, int sectorSize,
+			boolean deferFrees) {
+		this.bits = bits;
+		this.numSectors = numSectors;
+		this.firstData = firstData;
+		this.sectorSize = sectorSize;
+		this.deferFrees = deferFrees;
+
+		dirty = new boolean[bits.length / sectorSize];
+
+		for (int sector = 0; sector < numSectors; sector++) {
+			if (!isUsed(sector))
+				numFree++;
+		}
+	}
+
+	/**
+	 * Allocate a run of consecutive sectors.
+	 *
+	 * @param goal the sector to continue from if it is free, or -1 to take
+	 * the first run long enough.
+	 * @param want the number of sectors wanted.
+	 * @return the sectors allocated, between 1 and <tt>want</tt> of them, or
+	 * <tt>null</tt> if the disk is full.
+	 */
+	Inode.Extent allocate(int goal, int want) {
+		Lib.assertTrue(want > 0);
+
+		if (numFree == 0)
+			return null;
+
+		// a short hole is only worth taking if it continues the file
+		if (goal < firstData || goal >= numSectors)
+			goal = firstData;
+		else if (!isUsed(goal))
+			return take(goal, runLength(goal, want));
+
+		int bestStart = -1, bestCount = 0;
+		int sector = goal, scanned = 0;
+		while (scanned < numSectors - firstData) {
+			int count = isUsed(sector) ? 0 : runLength(sector, want);
+			if (count == want)
+				return take(sector, count);
+
+			if (count > bestCount) {
+				bestStart = sector;
+				bestCount = count;
+			}
+
+			sector += Math.max(count, 1);
+			scanned += Math.max(count, 1);
+			if (sector >= numSectors)
+				sector = firstData;
+		}
+
+		return take(bestStart, bestCount);
+	}
+
+	/**
+	 * Free a run of sectors.
+	 *
+	 * @param start the first sector.
+	 * @param count the number of sectors.
+	 */
+	void free(int start, int count) {
+		for (int sector = start; sector < start + count; sector++)
+			Lib.assertTrue(isUsed(sector));
+
+		if (deferFrees)
+			freed.add(new Inode.Extent(start, count));
+		else
+			clear(start, count);
+	}
+
+	/**
+	 * Return the sectors freed since the last <tt>release()</tt>.
+	 *
+	 * @return the runs of sectors freed.
+	 */
+	List<Inode.Extent> getFreed() {
+		return freed;
+	}
+
+	/**
+	 * Make the sectors freed since the last call free for allocation.
+	 */
+	void release() {
+		for (Inode.Extent extent : freed)
+			clear(extent.start, extent.count);
+		freed.clear();
+	}
+
+	/**
+	 * Return the number of free sectors.
+	 *
+	 * @return the number of free sectors.
+	 */
+	int getNumFree() {
+		return numFree;
+	}
+
+	/**
+	 * Write the sectors of the bitmap that changed since the last flush.
+	 *
+	 * @param journal the journal to write them through.
+	 * @param start the first sector of the bitmap on disk.
+	 */
+	void flush(Journal journal, int start) {
+		for (int i = 0; i < dirty.length; i++) {
+			if (dirty[i]) {
+				dirty[i] = false;
+				journal.write(start + i, 1, bits, i * sectorSize);
+			}
+		}
+	}
+
+	private void clear(int start, int count) {
+		for (int sector = start; sector < start + count; sector++)
+			set(sector, false);
+		numFree += count;
+	}
+
+	private Inode.Extent take(int start, int count) {
+		for (int sector = start; sector < start + count; sector++)
+			set(sector, true);
+		numFree -= count;
+
+		return new Inode.Extent(start, count);
+	}
+
+	/**
+	 * Count the free sectors starting at <tt>start</tt>, up to <tt>max</tt>.
+	 */
+	private int runLength(int start, int max) {
+		int count = 0;
+		while (count < max && start + count < numSectors
+				&& !isUsed(start + count))
+			count++;
+		return count;
+	}
+
+	boolean isUsed(int sector) {
+		return (bits[sector / 8] & (1 << (sector % 8))) != 0;
+	}
+
+	private void set(int sector, boolean used) {
+		if (used)
+			bits[sector / 8] |= 1 << (sector % 8);
+		else
+			bits[sector / 8] &= ~(1 << (sector % 8));
+
+		dirty[sector / 8 / sectorSize] = true;
+	}
+
+	private byte[] bits;
+
+	private int numSectors, firstData, sectorSize;
+
+	private int numFree = 0;
+
+	private boolean deferFrees;
+
+	/** The runs freed but not yet released. */
+	private List<Inode.Extent> freed = new ArrayList<>();
+
+	/** Which sectors of the bitmap changed since the last flush. */
+	private boolean[] dirty;
+}
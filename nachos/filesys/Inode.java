@@ -0,0 +1,240 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.ArrayList;
+
+/**
+ * A file's inode: its type, its length and the extents, runs of consecutive
+ * sectors, that hold its data in order.
+ *
+ * <p>
+ * On disk an inode takes <tt>size</tt> bytes of the inode table and holds up
+ * to <tt>numDirect</tt> extents. A file with more extents keeps the rest in
+ * one indirect sector. A file usually has a few more sectors than its length
+ * needs, since space is allocated ahead of writes.
+ */
+class Inode {
+	/**
+	 * Allocate an inode.
+	 *
+	 * @param number the number of the inode in the inode table.
+	 */
+	Inode(int number) {
+		this.number = number;
+	}
+
+	/**
+	 * Return the disk sector holding a sector of the file.
+	 *
+	 * @param index the index of the sector in the file.
+	 * @return the disk sector.
+	 */
+	int getSector(int index) {
+		for (Extent extent : extents) {
+			if (index < extent.count)
+				return extent.start + index;
+			index -= extent.count;
+		}
+
+		Lib.assertNotReached();
+		return -1;
+	}
+
+	/**
+	 * Return how many sectors of the file, starting at <tt>index</tt>, are
+	 * consecutive on disk.
+	 *
+	 * @param index the index of the first sector in the file.
+	 * @param max the most sectors to count.
+	 * @return the number of consecutive sectors, at most <tt>max</tt>.
+	 */
+	int getRun(int index, int max) {
+		for (Extent extent : extents) {
+			if (index < extent.count)
+				return Math.min(max, extent.count - index);
+			index -= extent.count;
+		}
+
+		Lib.assertNotReached();
+		return 0;
+	}
+
+	/**
+	 * Return the disk sector just after the last one of the file.
+	 *
+	 * @return the sector, or -1 if the file has no sectors.
+	 */
+	int getEnd() {
+		if (extents.isEmpty())
+			return -1;
+
+		Extent last = extents.get(extents.size() - 1);
+		return last.start + last.count;
+	}
+
+	/**
+	 * Append sectors to the file, extending the last extent if they follow
+	 * it.
+	 *
+	 * @param start the first sector.
+	 * @param count the number of sectors.
+	 */
+	void append(int start, int count) {
+		if (start == getEnd())
+			extents.get(extents.size() - 1).count += count;
+		else
+			extents.add(new Extent(start, count));
+
+		numSectors += count;
+	}
+
+	/**
+	 * Remove the last sectors of the file.
+	 *
+	 * @param count the number of sectors to remove.
+	 * @param freeMap the map to return the sectors to.
+	 */
+	void shrink(int count, FreeMap freeMap) {
+		Lib.assertTrue(count <= numSectors);
+
+		while (count > 0) {
+			Extent last = extents.get(extents.size() - 1);
+			int n = Math.min(count, last.count);
+			freeMap.free(last.start + last.count - n, n);
+
+			last.count -= n;
+			if (last.count == 0)
+				extents.remove(extents.size() - 1);
+
+			numSectors -= n;
+			count -= n;
+		}
+	}
+
+	/**
+	 * Test whether the file needs an indirect sector for its extents.
+	 *
+	 * @return <tt>true</tt> if the file has more than <tt>numDirect</tt>
+	 * extents.
+	 */
+	boolean needsIndirect() {
+		return extents.size() > numDirect;
+	}
+
+	/**
+	 * Store this inode in the inode table.
+	 *
+	 * @param table the inode table.
+	 * @param offset the offset of this inode in the table.
+	 */
+	void encode(byte[] table, int offset) {
+		Lib.bytesFromInt(table, offset, type);
+		Lib.bytesFromInt(table, offset + 4, length);
+		Lib.bytesFromInt(table, offset + 8, extents.size());
+		Lib.bytesFromInt(table, offset + 12, indirect);
+
+		for (int i = 0; i < numDirect; i++) {
+			Extent extent = i < extents.size() ? extents.get(i) : none;
+			Lib.bytesFromInt(table, offset + 16 + i * 8, extent.start);
+			Lib.bytesFromInt(table, offset + 20 + i * 8, extent.count);
+		}
+	}
+
+	/**
+	 * Store the extents past <tt>numDirect</tt> in an indirect sector.
+	 *
+	 * @param sector the buffer holding the sector.
+	 */
+	void encodeIndirect(byte[] sector) {
+		for (int i = numDirect; i < extents.size(); i++) {
+			Extent extent = extents.get(i);
+			Lib.bytesFromInt(sector, (i - numDirect) * 8, extent.start);
+			Lib.bytesFromInt(sector, (i - numDirect) * 8 + 4, extent.count);
+		}
+	}
+
+	/**
+	 * Load this inode from the inode table.
+	 *
+	 * @param table the inode table.
+	 * @param offset the offset of this inode in the table.
+	 * @return the number of extents, which are only loaded up to
+	 * <tt>numDirect</tt>.
+	 */
+	int decode(byte[] table, int offset) {
+		type = Lib.bytesToInt(table, offset);
+		length = Lib.bytesToInt(table, offset + 4);
+		int numExtents = Lib.bytesToInt(table, offset + 8);
+		indirect = Lib.bytesToInt(table, offset + 12);
+
+		extents.clear();
+		numSectors = 0;
+		for (int i = 0; i < Math.min(numExtents, numDirect); i++)
+			append(Lib.bytesToInt(table, offset + 16 + i * 8), Lib.bytesToInt(
+					table, offset + 20 + i * 8));
+
+		return numExtents;
+	}
+
+	/**
+	 * Load the extents past <tt>numDirect</tt> from an indirect sector.
+	 *
+	 * @param sector the buffer holding the sector.
+	 * @param numExtents the number of extents returned by <tt>decode()</tt>.
+	 */
+	void decodeIndirect(byte[] sector, int numExtents) {
+		for (int i = numDirect; i < numExtents; i++)
+			extents.add(new Extent(Lib.bytesToInt(sector, (i - numDirect) * 8),
+					Lib.bytesToInt(sector, (i - numDirect) * 8 + 4)));
+
+		numSectors = 0;
+		for (Extent extent : extents)
+			numSectors += extent.count;
+	}
+
+	static class Extent {
+		Extent(int start, int count) {
+			this.start = start;
+			this.count = count;
+		}
+
+		int start, count;
+	}
+
+	/** The number of this inode in the inode table. */
+	final int number;
+
+	int type = free;
+
+	/** The length of the file in bytes. */
+	int length = 0;
+
+	/** The sector holding extents past <tt>numDirect</tt>, or 0. */
+	int indirect = 0;
+
+	ArrayList<Extent> extents = new ArrayList<>();
+
+	/** The number of sectors in all the extents. */
+	int numSectors = 0;
+
+	/** The number of open files on this inode. */
+	int openCount = 0;
+
+	/** Whether the file was removed while open. */
+	boolean removed = false;
+
+	/** Held while reading or writing the file's data. */
+	Lock lock = new Lock();
+
+	/** The number of bytes an inode takes in the inode table. */
+	static final int size = 128;
+
+	/** The number of extents kept in the inode itself. */
+	static final int numDirect = (size - 16) / 8;
+
+	static final int free = 0, file = 1, directory = 2;
+
+	private static final Extent none = new Extent(0, 0);
+}
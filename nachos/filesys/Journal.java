@@ -0,0 +1,343 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A write-ahead journal of metadata sectors. Writes to metadata (the bitmap,
+ * the inode table, indirect sectors and directories) are kept in memory as
+ * whole sector images, and reads see them, until <tt>commit()</tt> writes
+ * them all as one transaction: first to the journal, a run of sectors set
+ * aside on the disk, and only then to their places. A crash therefore leaves
+ * the disk as it was after some commit, once <tt>recover()</tt> has written
+ * out the last transaction that reached the journal.
+ *
+ * <p>
+ * On disk a transaction is a header sector (the magic number, a sequence
+ * number and the count of sectors), the list of sector numbers, the sector
+ * images and then a commit record (another magic number and the sequence
+ * number). All but the commit record are written in one disk request, and the
+ * commit record is written after them, so a transaction counts only if it
+ * reached the disk whole. The journal holds the last transaction only, which
+ * is already in place unless the system stopped before it was.
+ *
+ * <p>
+ * A journal of no sectors writes through, like a file system without one.
+ * The caller must hold the file system lock.
+ */
+class Journal {
+	/**
+	 * Allocate a journal.
+	 *
+	 * @param disk the disk.
+	 * @param start the first sector of the journal.
+	 * @param numSectors the number of sectors of the journal, or 0 for none.
+	 */
+	Journal(SynchDisk disk, int start, int numSectors) {
+		this.disk = disk;
+		this.start = start;
+		this.numSectors = numSectors;
+
+		sectorSize = disk.getDisk().getSectorSize();
+
+		// the header, the list and the commit record take the rest
+		capacity = 0;
+		while (2 + listSectors(capacity + 1) + capacity + 1 <= numSectors)
+			capacity++;
+	}
+
+	/**
+	 * Test whether this journal is in use.
+	 *
+	 * @return <tt>false</tt> if metadata is written through.
+	 */
+	boolean isEnabled() {
+		return numSectors > 0;
+	}
+
+	/**
+	 * Write out the transaction in the journal, if it was committed, and
+	 * continue numbering transactions after it. Called when the file system is
+	 * mounted, before any metadata is read.
+	 */
+	void recover() {
+		if (!isEnabled())
+			return;
+
+		byte[] header = new byte[sectorSize];
+		disk.readSectors(start, 1, header, 0);
+		if (Lib.bytesToInt(header, 0) != headerMagic)
+			return;
+
+		int logged = Lib.bytesToInt(header, 4);
+		int count = Lib.bytesToInt(header, 8);
+		sequence = logged + 1;
+		if (count <= 0 || count > capacity)
+			return;
+
+		int listSectors = listSectors(count);
+		byte[] log = new byte[(listSectors + count + 1) * sectorSize];
+		disk.readSectors(start + 1, listSectors + count + 1, log, 0);
+
+		int commit = (listSectors + count) * sectorSize;
+		if (Lib.bytesToInt(log, commit) != commitMagic
+				|| Lib.bytesToInt(log, commit + 4) != logged)
+			return;
+
+		for (int i = 0; i < count; i++) {
+			byte[] image = new byte[sectorSize];
+			System.arraycopy(log, (listSectors + i) * sectorSize, image, 0,
+					sectorSize);
+			pending.put(Lib.bytesToInt(log, i * 4), image);
+		}
+		checkpoint();
+		pending.clear();
+
+		Lib.debug(dbgFileSystem, "replayed transaction " + logged + ", "
+				+ count + " sectors");
+	}
+
+	/**
+	 * Read sectors, as changed by the transaction not yet committed.
+	 *
+	 * @param sector the first sector.
+	 * @param count the number of sectors.
+	 * @param data the buffer to read into.
+	 * @param offset the offset in <tt>data</tt> of the first byte.
+	 */
+	void read(int sector, int count, byte[] data, int offset) {
+		disk.readSectors(sector, count, data, offset);
+
+		for (int i = 0; i < count; i++) {
+			byte[] image = pending.get(sector + i);
+			if (image != null)
+				System.arraycopy(image, 0, data, offset + i * sectorSize,
+						sectorSize);
+		}
+	}
+
+	/**
+	 * Write sectors as part of the current transaction.
+	 *
+	 * @param sector the first sector.
+	 * @param count the number of sectors.
+	 * @param data the buffer to write from.
+	 * @param offset the offset in <tt>data</tt> of the first byte.
+	 */
+	void write(int sector, int count, byte[] data, int offset) {
+		if (!isEnabled()) {
+			disk.writeSectors(sector, count, data, offset);
+			return;
+		}
+
+		for (int i = 0; i < count; i++) {
+			byte[] image = new byte[sectorSize];
+			System.arraycopy(data, offset + i * sectorSize, image, 0,
+					sectorSize);
+			pending.put(sector + i, image);
+		}
+	}
+
+	/**
+	 * Drop the changes to sectors that were freed, so that they are not
+	 * written over whatever the sectors hold next.
+	 *
+	 * @param sector the first sector.
+	 * @param count the number of sectors.
+	 */
+	void forget(int sector, int count) {
+		for (int i = 0; i < count; i++)
+			pending.remove(sector + i);
+	}
+
+	/**
+	 * Test whether the current transaction should be committed before it
+	 * grows further.
+	 *
+	 * @return <tt>true</tt> if it fills half the journal.
+	 */
+	boolean isFilling() {
+		return isEnabled() && pending.size() > capacity / 2;
+	}
+
+	/**
+	 * Commit the current transaction, and write its sectors in place.
+	 */
+	void commit() {
+		if (pending.isEmpty())
+			return;
+
+		int count = pending.size();
+		if (count > capacity) {
+			// too large to be atomic; at least keep it
+			Lib.debug(dbgFileSystem, "transaction of " + count
+					+ " sectors does not fit in the journal");
+			checkpoint();
+			pending.clear();
+			return;
+		}
+
+		log();
+		checkpoint();
+		pending.clear();
+
+		sequence++;
+		commits++;
+		sectorsLogged += count;
+	}
+
+	/**
+	 * Test that a transaction which reached the journal, but not the places
+	 * of its sectors, is written out at the next mount. Writes a pattern to
+	 * a sector, logs it without the in-place write, recovers it with a new
+	 * journal on the same sectors, and restores the sector. The current
+	 * transaction must be empty.
+	 *
+	 * @param sector a sector nothing else uses during the test.
+	 */
+	void selfTest(int sector) {
+		if (!isEnabled())
+			return;
+		Lib.assertTrue(pending.isEmpty());
+
+		byte[] saved = new byte[sectorSize];
+		disk.readSectors(sector, 1, saved, 0);
+
+		byte[] pattern = new byte[sectorSize];
+		for (int i = 0; i < sectorSize; i++)
+			pattern[i] = (byte) ~saved[i];
+		write(sector, 1, pattern, 0);
+
+		long time = Machine.timer().getTime();
+		log();
+		long logTime = Machine.timer().getTime() - time;
+		pending.clear();
+		sequence++;
+
+		byte[] check = new byte[sectorSize];
+		disk.readSectors(sector, 1, check, 0);
+		Lib.assertTrue(Arrays.equals(check, saved));
+
+		Journal remounted = new Journal(disk, start, numSectors);
+		remounted.recover();
+		Lib.assertTrue(remounted.sequence == sequence);
+		disk.readSectors(sector, 1, check, 0);
+		Lib.assertTrue(Arrays.equals(check, pattern));
+
+		disk.writeSectors(sector, 1, saved, 0);
+		clear();
+
+		Lib.debug(dbgFileSystem, "Journal.selfTest: replayed sector "
+				+ sector + ", logged in " + logTime + " ticks");
+	}
+
+	/**
+	 * Write the current transaction to the journal, and then its commit
+	 * record.
+	 */
+	private void log() {
+		int count = pending.size();
+		int listSectors = listSectors(count);
+		byte[] log = new byte[(1 + listSectors + count) * sectorSize];
+		Lib.bytesFromInt(log, 0, headerMagic);
+		Lib.bytesFromInt(log, 4, sequence);
+		Lib.bytesFromInt(log, 8, count);
+
+		int i = 0;
+		for (Map.Entry<Integer, byte[]> entry : pending.entrySet()) {
+			Lib.bytesFromInt(log, sectorSize + i * 4, entry.getKey());
+			System.arraycopy(entry.getValue(), 0, log, (1 + listSectors + i)
+					* sectorSize, sectorSize);
+			i++;
+		}
+		disk.writeSectors(start, 1 + listSectors + count, log, 0);
+
+		byte[] record = new byte[sectorSize];
+		Lib.bytesFromInt(record, 0, commitMagic);
+		Lib.bytesFromInt(record, 4, sequence);
+		disk.writeSectors(start + 1 + listSectors + count, 1, record, 0);
+	}
+
+	/**
+	 * Mark the journal empty, so that the next mount has nothing to replay.
+	 * Called when the disk is formatted and after the last commit.
+	 */
+	void clear() {
+		if (!isEnabled())
+			return;
+
+		// keep the sequence, so an old commit record cannot match
+		byte[] header = new byte[sectorSize];
+		Lib.bytesFromInt(header, 0, headerMagic);
+		Lib.bytesFromInt(header, 4, sequence - 1);
+		disk.writeSectors(start, 1, header, 0);
+	}
+
+	/**
+	 * Return the number of transactions committed and the number of sectors
+	 * they held.
+	 *
+	 * @return a line of statistics.
+	 */
+	String getStatistics() {
+		return "commits " + commits + ", sectors " + sectorsLogged
+				+ ", in-place writes " + checkpointWrites;
+	}
+
+	/**
+	 * Write the pending sectors in place, consecutive ones together.
+	 */
+	private void checkpoint() {
+		Integer[] sectors = pending.keySet().toArray(new Integer[0]);
+
+		int first = 0;
+		while (first < sectors.length) {
+			int last = first;
+			while (last + 1 < sectors.length
+					&& sectors[last + 1] == sectors[last] + 1)
+				last++;
+
+			byte[] run = new byte[(last - first + 1) * sectorSize];
+			for (int i = first; i <= last; i++)
+				System.arraycopy(pending.get(sectors[i]), 0, run, (i - first)
+						* sectorSize, sectorSize);
+			disk.writeSectors(sectors[first], last - first + 1, run, 0);
+			checkpointWrites++;
+
+			first = last + 1;
+		}
+	}
+
+	/**
+	 * Return the number of sectors taken by the list of <tt>count</tt>
+	 * sector numbers.
+	 */
+	private int listSectors(int count) {
+		return (count * 4 + sectorSize - 1) / sectorSize;
+	}
+
+	private SynchDisk disk;
+
+	private int start, numSectors, sectorSize;
+
+	/** The most sectors a transaction can have. */
+	private int capacity;
+
+	/** The number of the next transaction. */
+	private int sequence = 1;
+
+	/** The sector images of the current transaction, by sector. */
+	private TreeMap<Integer, byte[]> pending = new TreeMap<>();
+
+	private int commits = 0, sectorsLogged = 0, checkpointWrites = 0;
+
+	private static final int headerMagic = 0x4e46534a;
+
+	private static final int commitMagic = 0x4e465343;
+
+	private static final char dbgFileSystem = 'f';
+}
@@ -0,0 +1,1027 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.HashMap;
+
+/**
+ * A log-structured file system on the simulated disk,
+ * <tt>ThreadedKernel.disk</tt>. Select it with
+ * <tt>ThreadedKernel.fileSystem = nachos.filesys.LogFileSystem</tt>.
+ *
+ * <p>
+ * Past the superblock and two checkpoint regions, the disk is divided into
+ * segments of <tt>LogFileSystem.segmentSectors</tt> sectors (by default a
+ * track). Nothing is written in place: every block written, data or
+ * metadata, is appended to the current segment, which is kept in memory and
+ * written to the disk in one request when it is full. The first sector of a
+ * segment is its summary, which records the inode and block index of every
+ * other sector, so that the cleaner can tell which are still in use.
+ *
+ * <p>
+ * An inode (see <tt>LogInode</tt>) moves each time it is written, so the
+ * inode map records where each one is; the inode map is in memory, and its
+ * sectors are also appended to the log. Changed inodes and inode map
+ * sectors are written at a checkpoint, every
+ * <tt>LogFileSystem.checkpointInterval</tt> ticks (50000) and at shutdown,
+ * which then writes the current segment and records the inode map and the
+ * segment usage table in the older of the two checkpoint regions. Mounting
+ * reads the newer region, so after a crash the file system is as of the
+ * last checkpoint.
+ *
+ * <p>
+ * The usage table counts the sectors of each segment still in use. A
+ * segment whose count falls to 0 is free again after the next checkpoint.
+ * When fewer than <tt>LogFileSystem.cleanThreshold</tt> segments (8) are
+ * free, the segment cleaner thread wakes up, and cleans until
+ * <tt>LogFileSystem.cleanTarget</tt> (16) are. It picks the segment with the
+ * best ratio of benefit to cost, (1 - u) * age / (1 + u), where u is the
+ * fraction of the segment in use and age the number of segments written
+ * since it was, so that it leaves cold, nearly full segments alone. It reads
+ * each whole, appends the sectors still in use to the log, and takes one
+ * checkpoint for as many segments as the free space allows. A write waits
+ * for the cleaner while too few segments are free; a few segments are kept
+ * for the cleaner and for checkpoints.
+ *
+ * <p>
+ * The root directory is hashed and has a name cache, as in
+ * <tt>DiskFileSystem</tt>. The files named in
+ * <tt>LogFileSystem.importFiles</tt> are copied in from the stub file
+ * system. All operations hold one lock, except while the cleaner reads a
+ * segment.
+ */
+public class LogFileSystem implements BufferedFileSystem {
+	/**
+	 * Mount the file system on <tt>ThreadedKernel.disk</tt>, formatting the
+	 * disk if necessary, and start the cleaner and checkpoint threads.
+	 */
+	public LogFileSystem() {
+		disk = ThreadedKernel.disk;
+		Lib.assertTrue(disk != null, "LogFileSystem needs Machine.disk");
+
+		sectorSize = disk.getDisk().getSectorSize();
+		perSector = sectorSize / 4;
+		segmentSectors = Config.getInteger("LogFileSystem.segmentSectors", disk
+				.getDisk().getSectorsPerTrack());
+		Lib.assertTrue(segmentSectors >= 4
+				&& summaryHeader + (segmentSectors - 1) * 8 <= sectorSize);
+		blocksPerSegment = segmentSectors - 1;
+		buffer = new byte[segmentSectors * sectorSize];
+
+		cleanThreshold = Config.getInteger("LogFileSystem.cleanThreshold", 8);
+		cleanTarget = Config.getInteger("LogFileSystem.cleanTarget", 16);
+		Lib.assertTrue(cleanThreshold > reservedSegments
+				&& cleanTarget >= cleanThreshold);
+		nameCacheSize = Config.getInteger("LogFileSystem.nameCacheSize", 128);
+
+		lock.acquire();
+		if (Config.getBoolean("LogFileSystem.format", false) || !mount())
+			format(Config.getInteger("LogFileSystem.numInodes", 256));
+		lock.release();
+
+		new KThread(new Runnable() {
+			public void run() {
+				clean();
+			}
+		}).setName("segment cleaner").fork();
+
+		final int checkpointInterval = Config.getInteger(
+				"LogFileSystem.checkpointInterval", 50000);
+		new KThread(new Runnable() {
+			public void run() {
+				while (true) {
+					ThreadedKernel.alarm.waitUntil(checkpointInterval);
+					lock.acquire();
+					checkpoint();
+					lock.release();
+				}
+			}
+		}).setName("log checkpoint").fork();
+
+		DiskFileSystem.importFiles(this, Config.getString(
+				"LogFileSystem.importFiles", ""));
+	}
+
+	public OpenFile open(String name, boolean create) {
+		if (!Directory.isValidName(name))
+			return null;
+
+		lock.acquire();
+
+		// room for the directory to double
+		if (create && !ensureSpace(2 * rootInode.length / sectorSize + 1)) {
+			lock.release();
+			return null;
+		}
+
+		int number = root.lookup(name);
+		boolean created = false;
+		if (number == 0) {
+			if (!create) {
+				lock.release();
+				return null;
+			}
+
+			number = createInode(LogInode.file);
+			if (number == 0 || !root.add(name, number)) {
+				if (number != 0)
+					freeInode(loadInode(number));
+				lock.release();
+				return null;
+			}
+			created = true;
+		}
+
+		LogInode inode = loadInode(number);
+		inode.openCount++;
+		if (create && !created)
+			truncate(inode);
+
+		lock.release();
+		return new LogOpenFile(this, name, inode);
+	}
+
+	public boolean remove(String name) {
+		if (!Directory.isValidName(name))
+			return false;
+
+		lock.acquire();
+
+		int number = root.remove(name);
+		if (number != 0) {
+			LogInode inode = loadInode(number);
+			if (inode.openCount > 0)
+				inode.removed = true;
+			else
+				freeInode(inode);
+		}
+
+		lock.release();
+		return number != 0;
+	}
+
+	/**
+	 * Read from a file.
+	 *
+	 * @param inode the file.
+	 * @param pos the offset in the file of the first byte to read.
+	 * @param buf the buffer to read into.
+	 * @param offset the offset in <tt>buf</tt> of the first byte.
+	 * @param length the number of bytes to read.
+	 * @return the number of bytes read, less than <tt>length</tt> at the end
+	 * of the file.
+	 */
+	int read(LogInode inode, int pos, byte[] buf, int offset, int length) {
+		boolean locked = lock.isHeldByCurrentThread();
+		if (!locked)
+			lock.acquire();
+
+		length = Math.max(0, Math.min(length, inode.length - pos));
+		int end = pos + length;
+
+		int index = pos / sectorSize, last = (end - 1) / sectorSize;
+		while (index <= last) {
+			// blocks written one after another are read together
+			int sector = inode.getBlock(index);
+			int count = 1;
+			if (sector != 0 && !isBuffered(sector)) {
+				while (index + count <= last
+						&& inode.getBlock(index + count) == sector + count
+						&& !isBuffered(sector + count))
+					count++;
+			}
+
+			byte[] data = new byte[count * sectorSize];
+			if (count > 1)
+				disk.readSectors(sector, count, data, 0);
+			else
+				readBlock(sector, data, 0);
+
+			int runStart = index * sectorSize;
+			int from = Math.max(pos, runStart);
+			int to = Math.min(end, runStart + data.length);
+			System.arraycopy(data, from - runStart, buf, offset + from - pos,
+					to - from);
+
+			index += count;
+		}
+
+		if (!locked)
+			lock.release();
+		return length;
+	}
+
+	/**
+	 * Write to a file, extending it if necessary. Every block written is
+	 * appended to the log. A gap between the old end of the file and
+	 * <tt>pos</tt> reads as zeros but takes no space.
+	 *
+	 * @param inode the file.
+	 * @param pos the offset in the file of the first byte to write.
+	 * @param buf the buffer to write from.
+	 * @param offset the offset in <tt>buf</tt> of the first byte.
+	 * @param length the number of bytes to write.
+	 * @return <tt>length</tt>, or -1 if the disk is full or the file would be
+	 * too large.
+	 */
+	int write(LogInode inode, int pos, byte[] buf, int offset, int length) {
+		if (length == 0)
+			return 0;
+
+		int end = pos + length;
+		if ((end - 1) / sectorSize >= inode.getMaxBlocks())
+			return -1;
+
+		// a directory is written by an operation that already made room
+		boolean locked = lock.isHeldByCurrentThread();
+		if (!locked)
+			lock.acquire();
+
+		byte[] block = new byte[sectorSize];
+		int first = pos / sectorSize, last = (end - 1) / sectorSize;
+		for (int index = first; index <= last; index++) {
+			if (!locked && (index - first) % blocksPerSegment == 0
+					&& !ensureSpace(Math.min(blocksPerSegment, last - index
+							+ 1))) {
+				lock.release();
+				return -1;
+			}
+
+			int blockStart = index * sectorSize;
+			int from = Math.max(pos, blockStart);
+			int to = Math.min(end, blockStart + sectorSize);
+			if (from > blockStart || to < blockStart + sectorSize)
+				readBlock(inode.getBlock(index), block, 0);
+
+			System.arraycopy(buf, offset + from - pos, block, from
+					- blockStart, to - from);
+			kill(inode.setBlock(index, append(inode.number, index, block, 0)));
+
+			if (to > inode.length)
+				inode.length = to;
+		}
+
+		if (!locked)
+			lock.release();
+		return length;
+	}
+
+	/**
+	 * Close a file.
+	 *
+	 * @param inode the file's inode.
+	 */
+	void close(LogInode inode) {
+		lock.acquire();
+
+		Lib.assertTrue(inode.openCount > 0);
+		if (--inode.openCount == 0 && inode.removed)
+			freeInode(inode);
+
+		lock.release();
+	}
+
+	/**
+	 * Take a checkpoint, so that everything written so far survives a crash.
+	 */
+	public void sync() {
+		lock.acquire();
+		checkpoint();
+		lock.release();
+	}
+
+	/**
+	 * Print the statistics of this file system.
+	 */
+	public void print() {
+		System.out.println("Log: segment writes " + segmentWrites
+				+ ", sectors " + sectorsWritten + ", checkpoints " + checkpoints
+				+ ", segments cleaned " + segmentsCleaned + ", sectors moved "
+				+ sectorsMoved);
+	}
+
+	/**
+	 * Test this file system.
+	 */
+	public void selfTest() {
+		DiskFileSystem.testFiles(this);
+		DiskFileSystem.testNames(this);
+		DiskFileSystem.testOverwrites(this, disk.getDisk().getNumSectors());
+	}
+
+	/**
+	 * Read the superblock, the newer checkpoint and the inode map. Require
+	 * lock.
+	 *
+	 * @return <tt>false</tt> if the disk holds no file system of this size.
+	 */
+	private boolean mount() {
+		byte[] sector = new byte[sectorSize];
+		disk.readSectors(0, 1, sector, 0);
+		if (Lib.bytesToInt(sector, 0) != magic
+				|| Lib.bytesToInt(sector, 4) != disk.getDisk().getNumSectors()
+				|| Lib.bytesToInt(sector, 8) != segmentSectors)
+			return false;
+
+		layout(Lib.bytesToInt(sector, 12));
+
+		byte[][] regions = new byte[2][checkpointSectors * sectorSize];
+		int newest = -1;
+		for (int i = 0; i < 2; i++) {
+			disk.readSectors(checkpointStart(i), checkpointSectors, regions[i],
+					0);
+			int sequence = getCheckpointSequence(regions[i]);
+			if (sequence != 0
+					&& (newest == -1 || sequence > checkpointSequence)) {
+				newest = i;
+				checkpointSequence = sequence;
+			}
+		}
+		if (newest == -1)
+			return false;
+
+		byte[] region = regions[newest];
+		nextCheckpoint = 1 - newest;
+		logSequence = Lib.bytesToInt(region, 8);
+		int offset = 12;
+		for (int i = 0; i < imapSectors.length; i++, offset += 4)
+			imapSectors[i] = Lib.bytesToInt(region, offset);
+		for (int s = 0; s < numSegments; s++, offset += 8) {
+			live[s] = Lib.bytesToInt(region, offset);
+			age[s] = Lib.bytesToInt(region, offset + 4);
+			numLive += live[s];
+			if (live[s] == 0) {
+				free[s] = true;
+				numFree++;
+			}
+		}
+
+		for (int i = 0; i < imapSectors.length; i++) {
+			if (imapSectors[i] == 0)
+				continue;
+
+			disk.readSectors(imapSectors[i], 1, sector, 0);
+			for (int j = 0; j < perSector && i * perSector + j < imap.length;
+					j++)
+				imap[i * perSector + j] = Lib.bytesToInt(sector, j * 4);
+		}
+
+		nextSegment();
+		openRoot();
+
+		Lib.debug(dbgFileSystem, "mounted log: " + numSegments + " segments, "
+				+ numFree + " free, checkpoint " + checkpointSequence);
+		return true;
+	}
+
+	/**
+	 * Write an empty file system to the disk. Require lock.
+	 */
+	private void format(int numInodes) {
+		Lib.assertTrue(numInodes > rootNumber);
+
+		byte[] sector = new byte[sectorSize];
+		Lib.bytesFromInt(sector, 0, magic);
+		Lib.bytesFromInt(sector, 4, disk.getDisk().getNumSectors());
+		Lib.bytesFromInt(sector, 8, segmentSectors);
+		Lib.bytesFromInt(sector, 12, numInodes);
+
+		layout(numInodes);
+		Lib.assertTrue(numSegments > cleanTarget + reservedSegments);
+
+		// neither region holds a checkpoint yet
+		byte[] empty = new byte[checkpointSectors * sectorSize];
+		disk.writeSectors(checkpointStart(0), checkpointSectors, empty, 0);
+		disk.writeSectors(checkpointStart(1), checkpointSectors, empty, 0);
+		disk.writeSectors(0, 1, sector, 0);
+
+		for (int s = 0; s < numSegments; s++)
+			free[s] = true;
+		numFree = numSegments;
+		nextSegment();
+
+		LogInode inode = new LogInode(rootNumber, sectorSize);
+		inode.type = LogInode.directory;
+		inode.dirty = true;
+		inodes.put(rootNumber, inode);
+		checkpoint();
+
+		openRoot();
+
+		Lib.debug(dbgFileSystem, "formatted log: " + numSegments
+				+ " segments of " + segmentSectors + " sectors");
+	}
+
+	/**
+	 * Work out where the checkpoint regions and the segments are, and
+	 * allocate the tables.
+	 */
+	private void layout(int numInodes) {
+		int numSectors = disk.getDisk().getNumSectors();
+
+		imap = new int[numInodes];
+		imapSectors = new int[(numInodes + perSector - 1) / perSector];
+		imapDirty = new boolean[imapSectors.length];
+
+		// sized for the most segments there could be
+		int maxSegments = numSectors / segmentSectors;
+		checkpointSectors = (12 + imapSectors.length * 4 + maxSegments * 8 + 4
+				+ sectorSize - 1) / sectorSize;
+
+		int used = 1 + 2 * checkpointSectors;
+		firstSegment = (used + segmentSectors - 1) / segmentSectors
+				* segmentSectors;
+		numSegments = (numSectors - firstSegment) / segmentSectors;
+
+		live = new int[numSegments];
+		age = new int[numSegments];
+		free = new boolean[numSegments];
+	}
+
+	private void openRoot() {
+		rootInode = loadInode(rootNumber);
+		rootInode.openCount++;
+		root = new Directory(new LogOpenFile(this, "/", rootInode), sectorSize,
+				nameCacheSize);
+	}
+
+	/**
+	 * Return the in-memory inode for an inode number, reading it from the log
+	 * if necessary. Require lock.
+	 *
+	 * @return the inode, or <tt>null</tt> if it is not in use.
+	 */
+	private LogInode loadInode(int number) {
+		LogInode inode = inodes.get(number);
+		if (inode != null || imap[number] == 0)
+			return inode;
+
+		byte[] sector = new byte[sectorSize];
+		inode = new LogInode(number, sectorSize);
+		readBlock(imap[number], sector, 0);
+		inode.decode(sector);
+
+		for (int i = 0; i < inode.numDirect; i++) {
+			if (inode.pointers[i] != 0) {
+				readBlock(inode.pointers[i], sector, 0);
+				inode.decodePointers(i, sector);
+			}
+		}
+
+		inodes.put(number, inode);
+		return inode;
+	}
+
+	/**
+	 * Take a free inode number. The inode is written at the next
+	 * checkpoint. Require lock.
+	 *
+	 * @return the inode number, or 0 if there is none.
+	 */
+	private int createInode(int type) {
+		for (int number = rootNumber + 1; number < imap.length; number++) {
+			if (imap[number] != 0 || inodes.containsKey(number))
+				continue;
+
+			LogInode inode = new LogInode(number, sectorSize);
+			inode.type = type;
+			inode.dirty = true;
+			inodes.put(number, inode);
+			return number;
+		}
+
+		return 0;
+	}
+
+	/**
+	 * Release every sector of a file and its inode number. Require lock.
+	 */
+	private void freeInode(LogInode inode) {
+		truncate(inode);
+		for (int i = 0; i < inode.numDirect; i++) {
+			kill(inode.pointers[i]);
+			inode.pointers[i] = 0;
+		}
+
+		kill(imap[inode.number]);
+		imap[inode.number] = 0;
+		imapDirty[inode.number / perSector] = true;
+
+		inode.type = LogInode.free;
+		inodes.remove(inode.number);
+	}
+
+	/**
+	 * Release the blocks of a file. Require lock.
+	 */
+	private void truncate(LogInode inode) {
+		for (int i = 0; i < inode.getNumBlocks(); i++)
+			kill(inode.getBlock(i));
+		inode.truncate();
+	}
+
+	/**
+	 * Read a block from the current segment or from the disk.
+	 *
+	 * @param sector the block's sector, or 0 for a block of zeros.
+	 */
+	private void readBlock(int sector, byte[] data, int offset) {
+		if (sector == 0)
+			java.util.Arrays.fill(data, offset, offset + sectorSize, (byte) 0);
+		else if (isBuffered(sector))
+			System.arraycopy(buffer, (sector - segmentStart(current))
+					* sectorSize, data, offset, sectorSize);
+		else
+			disk.readSectors(sector, 1, data, offset);
+	}
+
+	/**
+	 * Test whether a sector is in the part of the current segment filled so
+	 * far.
+	 */
+	private boolean isBuffered(int sector) {
+		int slot = sector - segmentStart(current);
+		return slot >= 0 && slot < fill;
+	}
+
+	/**
+	 * Append a block to the log. Require lock.
+	 *
+	 * @param number the inode the block belongs to, or 0 for an inode map
+	 * sector.
+	 * @param index the index of the block in the file, -1 for the inode
+	 * itself, -2 - <i>i</i> for its pointer sector <i>i</i>, or the index of
+	 * an inode map sector.
+	 * @param data the buffer holding the block.
+	 * @param offset the offset of the block in <tt>data</tt>.
+	 * @return the sector the block will be written to.
+	 */
+	private int append(int number, int index, byte[] data, int offset) {
+		if (fill == segmentSectors)
+			nextSegment();
+
+		System.arraycopy(data, offset, buffer, fill * sectorSize, sectorSize);
+		Lib.bytesFromInt(buffer, summaryHeader + (fill - 1) * 8, number);
+		Lib.bytesFromInt(buffer, summaryHeader + (fill - 1) * 8 + 4, index);
+
+		live[current]++;
+		numLive++;
+		changed = true;
+		return segmentStart(current) + fill++;
+	}
+
+	/**
+	 * Mark a sector no longer in use. Require lock.
+	 *
+	 * @param sector the sector, or 0 for none.
+	 */
+	private void kill(int sector) {
+		if (sector == 0)
+			return;
+
+		int segment = (sector - firstSegment) / segmentSectors;
+		Lib.assertTrue(live[segment] > 0);
+		live[segment]--;
+		numLive--;
+		changed = true;
+		cleanerStuck = false;
+	}
+
+	/**
+	 * Write out the current segment and start filling a free one. Require
+	 * lock.
+	 */
+	private void nextSegment() {
+		if (current != -1)
+			writeSegment();
+
+		Lib.assertTrue(numFree > 0, "log is full");
+		int segment = (current + 1) % numSegments;
+		while (!free[segment])
+			segment = (segment + 1) % numSegments;
+
+		free[segment] = false;
+		numFree--;
+		current = segment;
+		age[segment] = ++logSequence;
+
+		java.util.Arrays.fill(buffer, (byte) 0);
+		fill = written = 1;
+
+		if (numFree < cleanThreshold)
+			cleanerWake.wake();
+	}
+
+	/**
+	 * Write the blocks appended to the current segment since it was last
+	 * written, and its summary. Require lock.
+	 */
+	private void writeSegment() {
+		if (fill == written)
+			return;
+
+		Lib.bytesFromInt(buffer, 0, summaryMagic);
+		Lib.bytesFromInt(buffer, 4, age[current]);
+		Lib.bytesFromInt(buffer, 8, fill - 1);
+
+		int start = segmentStart(current);
+		if (written == 1) {
+			disk.writeSectors(start, fill, buffer, 0);
+		}
+		else {
+			disk.writeSectors(start + written, fill - written, buffer, written
+					* sectorSize);
+			disk.writeSectors(start, 1, buffer, 0);
+		}
+
+		segmentWrites++;
+		sectorsWritten += fill - written;
+		written = fill;
+	}
+
+	/**
+	 * Append the changed inodes and inode map sectors to the log, write the
+	 * current segment, and record the inode map and the usage table in a
+	 * checkpoint region. Segments no longer in use are then free. Require
+	 * lock.
+	 */
+	private void checkpoint() {
+		for (LogInode inode : inodes.values()) {
+			if (inode.dirty || hasDirtyPointers(inode))
+				writeInode(inode);
+		}
+
+		for (int i = 0; i < imapSectors.length; i++) {
+			if (!imapDirty[i])
+				continue;
+
+			byte[] sector = new byte[sectorSize];
+			for (int j = 0; j < perSector && i * perSector + j < imap.length;
+					j++)
+				Lib.bytesFromInt(sector, j * 4, imap[i * perSector + j]);
+
+			kill(imapSectors[i]);
+			imapSectors[i] = append(0, i, sector, 0);
+			imapDirty[i] = false;
+		}
+
+		if (changed)
+			writeCheckpoint();
+
+		// the checkpoint on disk no longer refers to them
+		for (int s = 0; s < numSegments; s++) {
+			if (!free[s] && live[s] == 0 && s != current && s != cleaning) {
+				free[s] = true;
+				numFree++;
+			}
+		}
+		spaceFreed.wakeAll();
+	}
+
+	/**
+	 * Write the current segment, and record the inode map and the usage table
+	 * in the older checkpoint region. Require lock.
+	 */
+	private void writeCheckpoint() {
+		writeSegment();
+
+		byte[] region = new byte[checkpointSectors * sectorSize];
+		Lib.bytesFromInt(region, 0, checkpointMagic);
+		Lib.bytesFromInt(region, 4, ++checkpointSequence);
+		Lib.bytesFromInt(region, 8, logSequence);
+		int offset = 12;
+		for (int i = 0; i < imapSectors.length; i++, offset += 4)
+			Lib.bytesFromInt(region, offset, imapSectors[i]);
+		for (int s = 0; s < numSegments; s++, offset += 8) {
+			Lib.bytesFromInt(region, offset, live[s]);
+			Lib.bytesFromInt(region, offset + 4, age[s]);
+		}
+		// a region only counts if its last sector was written too
+		Lib.bytesFromInt(region, region.length - 4, checkpointSequence);
+
+		disk.writeSectors(checkpointStart(nextCheckpoint), checkpointSectors,
+				region, 0);
+		nextCheckpoint = 1 - nextCheckpoint;
+		checkpoints++;
+		changed = false;
+	}
+
+	/**
+	 * Append an inode's changed pointer sectors and the inode to the log.
+	 * Require lock.
+	 */
+	private void writeInode(LogInode inode) {
+		int numPointerSectors = inode.getNumPointerSectors();
+		for (int i = 0; i < inode.numDirect; i++) {
+			if (i >= numPointerSectors) {
+				// no longer needed since the file was truncated
+				kill(inode.pointers[i]);
+				inode.pointers[i] = 0;
+			}
+			else if (inode.pointersDirty[i] || inode.pointers[i] == 0) {
+				byte[] sector = new byte[sectorSize];
+				inode.encodePointers(i, sector);
+				kill(inode.pointers[i]);
+				inode.pointers[i] = append(inode.number, -2 - i, sector, 0);
+			}
+			inode.pointersDirty[i] = false;
+		}
+
+		byte[] sector = new byte[sectorSize];
+		inode.encode(sector);
+		kill(imap[inode.number]);
+		imap[inode.number] = append(inode.number, -1, sector, 0);
+		imapDirty[inode.number / perSector] = true;
+		inode.dirty = false;
+	}
+
+	private boolean hasDirtyPointers(LogInode inode) {
+		for (int i = 0; i < inode.numDirect; i++) {
+			if (inode.pointersDirty[i])
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Wait until there is room to append some blocks without using the
+	 * segments kept for the cleaner, which also hold the metadata the next
+	 * checkpoint writes; a checkpoint is taken first if that is as much as a
+	 * segment. Require lock; may release it while the cleaner runs.
+	 *
+	 * @param blocks the number of blocks.
+	 * @return <tt>false</tt> if the disk is full.
+	 */
+	private boolean ensureSpace(int blocks) {
+		// the cleaner needs some free space in the segments it cleans
+		if (numLive + blocks + getDirtyMetadata() > (numSegments
+				- reservedSegments) * blocksPerSegment * 9 / 10)
+			return false;
+
+		while (true) {
+			if (getDirtyMetadata() >= blocksPerSegment)
+				checkpoint();
+
+			if ((numFree - reservedSegments) * blocksPerSegment
+					+ (segmentSectors - fill) >= blocks)
+				return true;
+			if (cleanerStuck)
+				return false;
+
+			cleanRequested = true;
+			cleanerWake.wake();
+			spaceFreed.sleep();
+		}
+	}
+
+	/**
+	 * Return an upper bound on the number of sectors the next checkpoint
+	 * will append.
+	 */
+	private int getDirtyMetadata() {
+		int count = imapSectors.length;
+		for (LogInode inode : inodes.values()) {
+			if (inode.dirty || hasDirtyPointers(inode))
+				count += 1 + inode.getNumPointerSectors();
+		}
+		return count;
+	}
+
+	/**
+	 * The segment cleaner. Whenever fewer than <tt>cleanThreshold</tt>
+	 * segments are free, or a write is waiting for space, clean segments
+	 * until <tt>cleanTarget</tt> are free or no segment is worth cleaning.
+	 */
+	private void clean() {
+		lock.acquire();
+
+		while (true) {
+			while ((numFree >= cleanThreshold || cleanerStuck)
+					&& !cleanRequested)
+				cleanerWake.sleep();
+			cleanRequested = false;
+
+			// segments with nothing in use need only a checkpoint
+			int cleaned = segmentsCleaned;
+			checkpoint();
+			while (numFree < cleanTarget) {
+				// a batch shares one checkpoint, which frees all of it
+				boolean[] batch = new boolean[numSegments];
+				int batchSize = 0;
+				while (numFree + batchSize < cleanTarget) {
+					int victim = chooseVictim(batch, getCleaningRoom());
+					if (victim == -1)
+						break;
+
+					cleanSegment(victim);
+					batch[victim] = true;
+					batchSize++;
+				}
+
+				int freeBefore = numFree;
+				checkpoint();
+				if (batchSize == 0 || numFree <= freeBefore)
+					break;
+			}
+
+			// writers may have used what was freed; only no work is stuck
+			cleanerStuck = segmentsCleaned == cleaned && numFree < cleanTarget;
+			spaceFreed.wakeAll();
+		}
+	}
+
+	/**
+	 * Choose the segment to clean next, by cost and benefit. Require lock.
+	 *
+	 * @param batch the segments already cleaned since the last checkpoint.
+	 * @param room the most sectors in use a segment can have.
+	 * @return the segment, or -1 if no segment that is not free and not full
+	 * fits.
+	 */
+	private int chooseVictim(boolean[] batch, int room) {
+		int victim = -1;
+		double best = 0;
+
+		for (int s = 0; s < numSegments; s++) {
+			if (free[s] || batch[s] || s == current || live[s] == 0
+					|| live[s] >= blocksPerSegment || live[s] > room)
+				continue;
+
+			double u = (double) live[s] / blocksPerSegment;
+			double score = (1 - u) * (logSequence - age[s] + 1) / (1 + u);
+			if (score > best) {
+				victim = s;
+				best = score;
+			}
+		}
+
+		return victim;
+	}
+
+	/**
+	 * Return the number of sectors in use a segment can have for it to be
+	 * cleaned before the checkpoint: those sectors, and an inode and a
+	 * pointer sector for each of them, must fit in the free space along with
+	 * what the checkpoint already has to write. Require lock.
+	 */
+	private int getCleaningRoom() {
+		return (numFree * blocksPerSegment + (segmentSectors - fill)
+				- getDirtyMetadata()) / 3;
+	}
+
+	/**
+	 * Append the sectors of a segment that are still in use to the log. The
+	 * segment is free after the next checkpoint. Require lock, which is
+	 * released while reading the segment.
+	 */
+	private void cleanSegment(int segment) {
+		cleaning = segment;
+		int start = segmentStart(segment);
+
+		byte[] data = new byte[segmentSectors * sectorSize];
+		lock.release();
+		disk.readSectors(start, segmentSectors, data, 0);
+		lock.acquire();
+
+		cleaning = -1;
+		if (Lib.bytesToInt(data, 0) != summaryMagic)
+			return;
+
+		int count = Lib.bytesToInt(data, 8);
+		for (int slot = 1; slot <= count; slot++) {
+			int number = Lib.bytesToInt(data, summaryHeader + (slot - 1) * 8);
+			int index = Lib.bytesToInt(data, summaryHeader + (slot - 1) * 8
+					+ 4);
+			int sector = start + slot;
+
+			if (number == 0) {
+				if (imapSectors[index] == sector)
+					imapDirty[index] = true;
+				continue;
+			}
+
+			LogInode inode = loadInode(number);
+			if (inode == null)
+				continue;
+
+			if (index == -1) {
+				if (imap[number] == sector)
+					inode.dirty = true;
+			}
+			else if (index < -1) {
+				if (inode.pointers[-2 - index] == sector)
+					inode.pointersDirty[-2 - index] = true;
+			}
+			else if (inode.getBlock(index) == sector) {
+				kill(inode.setBlock(index, append(number, index, data, slot
+						* sectorSize)));
+				sectorsMoved++;
+			}
+		}
+
+		segmentsCleaned++;
+	}
+
+	private int segmentStart(int segment) {
+		return firstSegment + segment * segmentSectors;
+	}
+
+	private int checkpointStart(int region) {
+		return 1 + region * checkpointSectors;
+	}
+
+	/**
+	 * Return the sequence number of the checkpoint in a region, or 0 if it
+	 * holds none or was not written whole.
+	 */
+	private int getCheckpointSequence(byte[] region) {
+		int sequence = Lib.bytesToInt(region, 4);
+		if (Lib.bytesToInt(region, 0) != checkpointMagic
+				|| Lib.bytesToInt(region, region.length - 4) != sequence)
+			return 0;
+		return sequence;
+	}
+
+	private SynchDisk disk;
+
+	private int sectorSize, perSector;
+
+	private int segmentSectors, blocksPerSegment;
+
+	private int cleanThreshold, cleanTarget, nameCacheSize;
+
+	private int checkpointSectors, firstSegment, numSegments;
+
+	/** The sector of each inode, 0 for inodes not in use. */
+	private int[] imap;
+
+	/** The sector of each sector of the inode map, 0 for none. */
+	private int[] imapSectors;
+
+	private boolean[] imapDirty;
+
+	/** The number of sectors in use in each segment. */
+	private int[] live;
+
+	/** The value of <tt>logSequence</tt> when each segment was started. */
+	private int[] age;
+
+	private boolean[] free;
+
+	private int numFree = 0, numLive = 0;
+
+	/** The number of segments started. */
+	private int logSequence = 0;
+
+	private int checkpointSequence = 0, nextCheckpoint = 0;
+
+	/** The segment being filled, and its contents. */
+	private int current = -1;
+
+	private byte[] buffer;
+
+	/** The next slot of the current segment, and the first not written. */
+	private int fill, written;
+
+	/** Whether anything was appended or released since the checkpoint. */
+	private boolean changed = false;
+
+	/** The segment the cleaner is reading, or -1. */
+	private int cleaning = -1;
+
+	private boolean cleanRequested = false, cleanerStuck = false;
+
+	/** The inodes read or created, by number. */
+	private HashMap<Integer, LogInode> inodes = new HashMap<>();
+
+	private LogInode rootInode;
+
+	private Directory root;
+
+	private Lock lock = new Lock();
+
+	private Condition cleanerWake = new Condition(lock);
+
+	private Condition spaceFreed = new Condition(lock);
+
+	private int segmentWrites = 0, sectorsWritten = 0, checkpoints = 0;
+
+	private int segmentsCleaned = 0, sectorsMoved = 0;
+
+	/** Segments only the cleaner and checkpoints may fill. */
+	private static final int reservedSegments = 4;
+
+	/** The bytes of a segment summary before its entries. */
+	private static final int summaryHeader = 12;
+
+	private static final int rootNumber = 1;
+
+	private static final int magic = 0x4e46534c;
+
+	private static final int checkpointMagic = 0x4e46534b;
+
+	private static final int summaryMagic = 0x4e465353;
+
+	private static final char dbgFileSystem = 'f';
+}
@@ -0,0 +1,205 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+
+/**
+ * A file's inode in a <tt>LogFileSystem</tt>: its type, its length and the
+ * disk sector of each of its blocks, 0 for a block never written.
+ *
+ * <p>
+ * On disk an inode is one sector, which holds the first
+ * <tt>numDirect</tt> block addresses and the addresses of up to
+ * <tt>numDirect</tt> pointer sectors, each holding the addresses of the
+ * next <tt>perSector</tt> blocks. Every one of these sectors moves each time
+ * it is written, so the inode keeps track of which pointer sectors changed.
+ */
+class LogInode {
+	/**
+	 * Allocate an empty inode.
+	 *
+	 * @param number the number of the inode.
+	 * @param sectorSize the number of bytes in a sector.
+	 */
+	LogInode(int number, int sectorSize) {
+		this.number = number;
+
+		numDirect = (sectorSize - 8) / 8;
+		perSector = sectorSize / 4;
+
+		pointers = new int[numDirect];
+		pointersDirty = new boolean[numDirect];
+	}
+
+	/**
+	 * Return the largest number of blocks a file can have.
+	 *
+	 * @return the number of blocks the inode can address.
+	 */
+	int getMaxBlocks() {
+		return numDirect + numDirect * perSector;
+	}
+
+	/**
+	 * Return the disk sector holding a block of the file.
+	 *
+	 * @param index the index of the block in the file.
+	 * @return the sector, or 0 if the block was never written.
+	 */
+	int getBlock(int index) {
+		return index < numBlocks ? blocks[index] : 0;
+	}
+
+	/**
+	 * Set the disk sector holding a block of the file, and mark the inode
+	 * dirty.
+	 *
+	 * @param index the index of the block in the file.
+	 * @param sector the sector, or 0.
+	 * @return the sector that held the block before, or 0.
+	 */
+	int setBlock(int index, int sector) {
+		Lib.assertTrue(index < getMaxBlocks());
+
+		if (index >= blocks.length) {
+			int[] grown = new int[Math.max(index + 1, blocks.length * 2)];
+			System.arraycopy(blocks, 0, grown, 0, numBlocks);
+			blocks = grown;
+		}
+		numBlocks = Math.max(numBlocks, index + 1);
+
+		int old = blocks[index];
+		blocks[index] = sector;
+
+		if (index >= numDirect)
+			pointersDirty[(index - numDirect) / perSector] = true;
+		dirty = true;
+		return old;
+	}
+
+	/**
+	 * Return the number of blocks the file has addresses for.
+	 *
+	 * @return one more than the index of the last block.
+	 */
+	int getNumBlocks() {
+		return numBlocks;
+	}
+
+	/**
+	 * Forget every block of the file, and mark the inode dirty. The pointer
+	 * sectors are kept until the inode is next written.
+	 */
+	void truncate() {
+		blocks = new int[0];
+		numBlocks = 0;
+		length = 0;
+		dirty = true;
+	}
+
+	/**
+	 * Return the number of pointer sectors needed for the blocks of the
+	 * file.
+	 *
+	 * @return the number of pointer sectors.
+	 */
+	int getNumPointerSectors() {
+		return Math.max(0, (numBlocks - numDirect + perSector - 1)
+				/ perSector);
+	}
+
+	/**
+	 * Store this inode in a sector.
+	 *
+	 * @param sector the buffer holding the sector.
+	 */
+	void encode(byte[] sector) {
+		Lib.bytesFromInt(sector, 0, type);
+		Lib.bytesFromInt(sector, 4, length);
+
+		for (int i = 0; i < numDirect; i++) {
+			Lib.bytesFromInt(sector, 8 + i * 4, getBlock(i));
+			Lib.bytesFromInt(sector, 8 + (numDirect + i) * 4, pointers[i]);
+		}
+	}
+
+	/**
+	 * Load this inode from a sector. The pointer sectors it lists must then
+	 * be loaded with <tt>decodePointers()</tt>.
+	 *
+	 * @param sector the buffer holding the sector.
+	 */
+	void decode(byte[] sector) {
+		type = Lib.bytesToInt(sector, 0);
+		length = Lib.bytesToInt(sector, 4);
+
+		for (int i = 0; i < numDirect; i++) {
+			int block = Lib.bytesToInt(sector, 8 + i * 4);
+			if (block != 0)
+				setBlock(i, block);
+			pointers[i] = Lib.bytesToInt(sector, 8 + (numDirect + i) * 4);
+		}
+		dirty = false;
+	}
+
+	/**
+	 * Store the addresses held by a pointer sector.
+	 *
+	 * @param index the index of the pointer sector.
+	 * @param sector the buffer to store them in.
+	 */
+	void encodePointers(int index, byte[] sector) {
+		int first = numDirect + index * perSector;
+		for (int i = 0; i < perSector; i++)
+			Lib.bytesFromInt(sector, i * 4, getBlock(first + i));
+	}
+
+	/**
+	 * Load the addresses held by a pointer sector.
+	 *
+	 * @param index the index of the pointer sector.
+	 * @param sector the buffer holding the sector.
+	 */
+	void decodePointers(int index, byte[] sector) {
+		int first = numDirect + index * perSector;
+		for (int i = 0; i < perSector; i++) {
+			int block = Lib.bytesToInt(sector, i * 4);
+			if (block != 0)
+				setBlock(first + i, block);
+		}
+		pointersDirty[index] = false;
+		dirty = false;
+	}
+
+	/** The number of this inode. */
+	final int number;
+
+	int type = free;
+
+	/** The length of the file in bytes. */
+	int length = 0;
+
+	/** The sectors of the pointer sectors, 0 for none. */
+	int[] pointers;
+
+	/** Which pointer sectors changed since they were last written. */
+	boolean[] pointersDirty;
+
+	/** Whether the inode changed since it was last written. */
+	boolean dirty = false;
+
+	/** The number of open files on this inode. */
+	int openCount = 0;
+
+	/** Whether the file was removed while open. */
+	boolean removed = false;
+
+	/** The number of block and pointer-sector addresses in a sector. */
+	final int numDirect, perSector;
+
+	private int[] blocks = new int[0];
+
+	private int numBlocks = 0;
+
+	static final int free = Inode.free, file = Inode.file,
+			directory = Inode.directory;
+}
@@ -0,0 +1,54 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+
+/**
+ * A file open on a <tt>LogFileSystem</tt>.
+ */
+class LogOpenFile extends OpenFileWithPosition {
+	/**
+	 * Allocate an open file. The inode's open count must already include it.
+	 *
+	 * @param fileSystem the file system.
+	 * @param name the name the file was opened by.
+	 * @param inode the file's inode.
+	 */
+	LogOpenFile(LogFileSystem fileSystem, String name, LogInode inode) {
+		super(fileSystem, name);
+
+		this.fileSystem = fileSystem;
+		this.inode = inode;
+	}
+
+	public int read(int pos, byte[] buf, int offset, int length) {
+		if (inode == null || pos < 0 || length < 0 || offset < 0
+				|| offset + length > buf.length)
+			return -1;
+
+		return fileSystem.read(inode, pos, buf, offset, length);
+	}
+
+	public int write(int pos, byte[] buf, int offset, int length) {
+		if (inode == null || pos < 0 || length < 0 || offset < 0
+				|| offset + length > buf.length)
+			return -1;
+
+		return fileSystem.write(inode, pos, buf, offset, length);
+	}
+
+	public int length() {
+		return inode == null ? -1 : inode.length;
+	}
+
+	public void close() {
+		if (inode != null) {
+			fileSystem.close(inode);
+			inode = null;
+		}
+	}
+
+	private LogFileSystem fileSystem;
+
+	/** The file's inode, or <tt>null</tt> once closed. */
+	private LogInode inode;
+}
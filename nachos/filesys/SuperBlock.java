@@ -0,0 +1,91 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+
+/**
+ * The first sector of a formatted disk, which records where everything else
+ * is. The disk is laid out as the superblock, the free-sector bitmap, the
+ * inode table, the journal and then data sectors, which hold file contents,
+ * directories and the sectors of extents that do not fit in an inode.
+ */
+class SuperBlock {
+	/**
+	 * Allocate an empty superblock, to be filled in by <tt>decode()</tt>.
+	 */
+	SuperBlock() {
+	}
+
+	/**
+	 * Lay out a new file system.
+	 *
+	 * @param numSectors the number of sectors on the disk.
+	 * @param sectorSize the number of bytes in a sector.
+	 * @param numInodes the number of inodes in the inode table.
+	 * @param journalSectors the number of sectors of the journal.
+	 */
+	SuperBlock(int numSectors, int sectorSize, int numInodes,
+			int journalSectors) {
+		this.numSectors = numSectors;
+		this.numInodes = numInodes;
+
+		bitmapStart = 1;
+		bitmapSectors = (numSectors + sectorSize * 8 - 1) / (sectorSize * 8);
+		inodeStart = bitmapStart + bitmapSectors;
+		inodeSectors = (numInodes * Inode.size + sectorSize - 1) / sectorSize;
+		journalStart = inodeStart + inodeSectors;
+		this.journalSectors = journalSectors;
+		dataStart = journalStart + journalSectors;
+	}
+
+	/**
+	 * Store this superblock in the first bytes of a sector.
+	 *
+	 * @param sector the buffer holding the sector.
+	 */
+	void encode(byte[] sector) {
+		Lib.bytesFromInt(sector, 0, magic);
+		Lib.bytesFromInt(sector, 4, numSectors);
+		Lib.bytesFromInt(sector, 8, bitmapStart);
+		Lib.bytesFromInt(sector, 12, bitmapSectors);
+		Lib.bytesFromInt(sector, 16, inodeStart);
+		Lib.bytesFromInt(sector, 20, inodeSectors);
+		Lib.bytesFromInt(sector, 24, numInodes);
+		Lib.bytesFromInt(sector, 28, journalStart);
+		Lib.bytesFromInt(sector, 32, journalSectors);
+		Lib.bytesFromInt(sector, 36, dataStart);
+	}
+
+	/**
+	 * Load this superblock from a sector.
+	 *
+	 * @param sector the buffer holding the sector.
+	 * @return <tt>false</tt> if the sector does not hold a superblock.
+	 */
+	boolean decode(byte[] sector) {
+		if (Lib.bytesToInt(sector, 0) != magic)
+			return false;
+
+		numSectors = Lib.bytesToInt(sector, 4);
+		bitmapStart = Lib.bytesToInt(sector, 8);
+		bitmapSectors = Lib.bytesToInt(sector, 12);
+		inodeStart = Lib.bytesToInt(sector, 16);
+		inodeSectors = Lib.bytesToInt(sector, 20);
+		numInodes = Lib.bytesToInt(sector, 24);
+		journalStart = Lib.bytesToInt(sector, 28);
+		journalSectors = Lib.bytesToInt(sector, 32);
+		dataStart = Lib.bytesToInt(sector, 36);
+		return true;
+	}
+
+	int numSectors;
+
+	int bitmapStart, bitmapSectors;
+
+	int inodeStart, inodeSectors, numInodes;
+
+	int journalStart, journalSectors;
+
+	int dataStart;
+
+	static final int magic = 0x4e465333;
+}
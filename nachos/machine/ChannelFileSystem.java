@@ -0,0 +1,378 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+import nachos.threads.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+
+/**
+ * A file system that, like <tt>StubFileSystem</tt>, redirects all requests to
+ * the host operating system's file system, but does its I/O with positional
+ * <tt>FileChannel</tt> reads and writes and does not hold a host handle for
+ * every open file.
+ *
+ * <p>
+ * Host handles are kept in a pool of at most
+ * <tt>ChannelFileSystem.maxHandles</tt>, shared by all the open files of the
+ * same name. When the pool is full, the least recently used handle is closed
+ * and its file is reopened the next time it is used. Since every transfer
+ * names its own position, a reopened handle needs no state restored. Up to
+ * <tt>ChannelFileSystem.maxOpenFiles</tt> files can be open at once. A file
+ * that is removed while it is open keeps its handle outside the pool until
+ * it is closed, so it can still be read and written.
+ *
+ * <p>
+ * Transfers go through one direct buffer, so the host I/O does not need a
+ * temporary buffer of its own. Every open, remove, read and write, and every
+ * reopen of an evicted handle, takes the same time as in
+ * <tt>StubFileSystem</tt>.
+ */
+public class ChannelFileSystem implements FileSystem {
+	/**
+	 * Allocate a new channel file system.
+	 *
+	 * @param privilege encapsulates privileged access to the Nachos machine.
+	 * @param directory the root directory of the file system.
+	 */
+	public ChannelFileSystem(Privilege privilege, File directory) {
+		this.privilege = privilege;
+		this.directory = directory;
+
+		maxHandles = Config.getInteger("ChannelFileSystem.maxHandles", 16);
+		maxOpenFiles = Config.getInteger("ChannelFileSystem.maxOpenFiles", 256);
+		Lib.assertTrue(maxHandles > 0 && maxOpenFiles > 0);
+
+		buffer = ByteBuffer.allocateDirect(Config.getInteger(
+				"ChannelFileSystem.bufferSize", 16384));
+	}
+
+	public OpenFile open(String name, boolean truncate) {
+		if (!checkName(name))
+			return null;
+
+		delay();
+
+		if (openCount == maxOpenFiles)
+			return null;
+
+		HostFile file = files.get(name);
+		if (file == null) {
+			file = new HostFile(name);
+			files.put(name, file);
+		}
+
+		if (file.channel == null && !openHandle(file, truncate)) {
+			forgetIfIdle(file);
+			return null;
+		}
+		touch(file);
+
+		if (truncate) {
+			try {
+				file.channel.truncate(0);
+			}
+			catch (IOException e) {
+				forgetIfIdle(file);
+				return null;
+			}
+		}
+
+		file.openCount++;
+		openCount++;
+		return new ChannelOpenFile(file);
+	}
+
+	public boolean remove(String name) {
+		if (!checkName(name))
+			return false;
+
+		delay();
+
+		HostFile file = files.remove(name);
+		if (file != null) {
+			if (file.openCount > 0) {
+				// keep the data reachable for the files still open
+				if (getChannel(file) != null) {
+					handles.remove(file);
+					file.removed = true;
+				}
+			}
+			else {
+				closeChannel(file);
+			}
+		}
+
+		final File f = new File(directory, name);
+		final boolean[] successful = new boolean[1];
+		privilege.doPrivileged(new Runnable() {
+			public void run() {
+				successful[0] = f.delete();
+			}
+		});
+		return successful[0];
+	}
+
+	private void delay() {
+		long time = Machine.timer().getTime();
+		int amount = 1000;
+		ThreadedKernel.alarm.waitUntil(amount);
+		Lib.assertTrue(Machine.timer().getTime() >= time + amount);
+	}
+
+	/**
+	 * Return the host handle of an open file, reopening it if it was evicted
+	 * from the pool. Does not block once the handle is open, so the caller
+	 * can use it before any other thread runs.
+	 *
+	 * @param file the file.
+	 * @return the handle, or <tt>null</tt> if the file could not be reopened.
+	 */
+	private FileChannel getChannel(HostFile file) {
+		if (file.channel == null) {
+			if (file.removed)
+				return null;
+
+			// reopening costs as much as any other host request
+			delay();
+
+			// another thread may have reopened it meanwhile
+			if (file.channel == null && !openHandle(file, false))
+				return null;
+		}
+
+		touch(file);
+		return file.channel;
+	}
+
+	/**
+	 * Open the host handle of a file, evicting the least recently used handle
+	 * if the pool is full.
+	 *
+	 * @param file the file.
+	 * @param create <tt>true</tt> to create the file if it does not exist.
+	 * @return <tt>true</tt> if the handle was opened.
+	 */
+	private boolean openHandle(final HostFile file, final boolean create) {
+		while (handles.size() >= maxHandles) {
+			HostFile victim = handles.iterator().next();
+			closeChannel(victim);
+			forgetIfIdle(victim);
+		}
+
+		privilege.doPrivileged(new Runnable() {
+			public void run() {
+				openChannel(file, create);
+			}
+		});
+
+		if (file.channel == null)
+			return false;
+
+		touch(file);
+		return true;
+	}
+
+	/**
+	 * Make a file the most recently used in the pool.
+	 */
+	private void touch(HostFile file) {
+		if (!file.removed) {
+			handles.remove(file);
+			handles.add(file);
+		}
+	}
+
+	private void openChannel(HostFile file, boolean create) {
+		File f = new File(directory, file.name);
+		try {
+			if (!create && !f.exists())
+				return;
+
+			file.channel = new RandomAccessFile(f, "rw").getChannel();
+		}
+		catch (IOException e) {
+		}
+	}
+
+	private void closeChannel(HostFile file) {
+		handles.remove(file);
+		if (file.channel != null) {
+			try {
+				file.channel.close();
+			}
+			catch (IOException e) {
+			}
+			file.channel = null;
+		}
+	}
+
+	/**
+	 * Drop a file that is neither open nor holding a handle.
+	 */
+	private void forgetIfIdle(HostFile file) {
+		if (file.openCount == 0 && file.channel == null
+				&& files.get(file.name) == file)
+			files.remove(file.name);
+	}
+
+	/**
+	 * Test whether a name is one the stub file system allows: letters,
+	 * digits, '-', '_', '.' and ','.
+	 */
+	static boolean checkName(String name) {
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if (!(c >= 'A' && c <= 'Z' || c >= 'a' && c <= 'z' || c >= '0'
+					&& c <= '9' || "-_.,".indexOf(c) != -1))
+				return false;
+		}
+		return true;
+	}
+
+	private class HostFile {
+		HostFile(String name) {
+			this.name = name;
+		}
+
+		String name;
+
+		/** The host handle, or <tt>null</tt> if it was evicted. */
+		FileChannel channel = null;
+
+		/** The number of <tt>ChannelOpenFile</tt>s open on this file. */
+		int openCount = 0;
+
+		/** Whether the file was removed; its handle is then out of the pool. */
+		boolean removed = false;
+	}
+
+	private class ChannelOpenFile extends OpenFileWithPosition {
+		ChannelOpenFile(HostFile file) {
+			super(ChannelFileSystem.this, file.name);
+
+			this.file = file;
+		}
+
+		public int read(int pos, byte[] buf, int offset, int length) {
+			if (!open || pos < 0 || offset < 0 || length < 0
+					|| offset + length > buf.length)
+				return -1;
+
+			delay();
+
+			FileChannel channel = getChannel(file);
+			if (channel == null)
+				return -1;
+
+			int amount = 0;
+			try {
+				while (amount < length) {
+					buffer.clear();
+					buffer.limit(Math.min(length - amount, buffer.capacity()));
+					int n = channel.read(buffer, (long) pos + amount);
+					if (n <= 0)
+						break;
+
+					buffer.flip();
+					buffer.get(buf, offset + amount, n);
+					amount += n;
+				}
+			}
+			catch (IOException e) {
+				return -1;
+			}
+			return amount;
+		}
+
+		public int write(int pos, byte[] buf, int offset, int length) {
+			if (!open || pos < 0 || offset < 0 || length < 0
+					|| offset + length > buf.length)
+				return -1;
+
+			delay();
+
+			FileChannel channel = getChannel(file);
+			if (channel == null)
+				return -1;
+
+			int amount = 0;
+			try {
+				while (amount < length) {
+					buffer.clear();
+					buffer.put(buf, offset + amount,
+							Math.min(length - amount, buffer.capacity()));
+					buffer.flip();
+					while (buffer.hasRemaining())
+						amount += channel.write(buffer, (long) pos + amount);
+				}
+			}
+			catch (IOException e) {
+				return -1;
+			}
+			return length;
+		}
+
+		public int length() {
+			if (!open)
+				return -1;
+
+			FileChannel channel = getChannel(file);
+			if (channel == null)
+				return -1;
+
+			try {
+				return (int) channel.size();
+			}
+			catch (IOException e) {
+				return -1;
+			}
+		}
+
+		public void close() {
+			if (!open)
+				return;
+
+			open = false;
+			openCount--;
+			file.openCount--;
+
+			// the handle of a closed file stays in the pool for the next open
+			if (file.removed) {
+				if (file.openCount == 0)
+					closeChannel(file);
+			}
+			else {
+				forgetIfIdle(file);
+			}
+		}
+
+		private HostFile file;
+
+		private boolean open = true;
+	}
+
+	private int maxHandles, maxOpenFiles;
+
+	private int openCount = 0;
+
+	/** Files that are open or hold a handle, by name. */
+	private HashMap<String, HostFile> files = new HashMap<>();
+
+	/** Files holding a pooled handle, least recently used first. */
+	private LinkedHashSet<HostFile> handles = new LinkedHashSet<>();
+
+	/** The buffer every transfer goes through. */
+	private ByteBuffer buffer;
+
+	private Privilege privilege;
+
+	private File directory;
+}
@@ -0,0 +1,354 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A single-surface disk, stored in a host image file. The disk has
+ * <tt>numTracks</tt> tracks of <tt>sectorsPerTrack</tt> sectors each, and
+ * sector <i>s</i> is on track <i>s</i> / <tt>sectorsPerTrack</tt>.
+ *
+ * <p>
+ * Requests are asynchronous and one at a time: <tt>readSectors()</tt> or
+ * <tt>writeSectors()</tt> starts a transfer of a run of sectors, and the
+ * interrupt handler is called when it is done. The caller's buffer is only
+ * read or written when the transfer completes, so it must not be touched
+ * until then.
+ *
+ * <p>
+ * The time a request takes is the sum, for each track it covers, of:
+ * <ul>
+ * <li>a seek, which is free on the same track and otherwise takes
+ * <tt>trackToTrackTime</tt> plus a share of the rest of <tt>seekTime</tt>
+ * proportional to the distance;
+ * <li>a rotational delay until the first sector comes under the head. The
+ * disk turns once every <tt>rotationTime</tt> ticks of simulated time,
+ * whether or not it is in use, and each track is skewed by
+ * <tt>trackSkew</tt> sectors so that a transfer that runs onto the next track
+ * does not miss its first sector;
+ * <li>the transfer time, the time for the sectors to pass under the head.
+ * </ul>
+ */
+public final class Disk {
+	/**
+	 * Allocate a new disk. The geometry and timing are read from
+	 * <tt>nachos.conf</tt>, and the image file, <tt>Disk.imageFile</tt> in
+	 * <i>directory</i>, is created or extended to the size of the disk.
+	 *
+	 * @param privilege encapsulates privileged access to the Nachos machine.
+	 * @param directory the directory holding the image file.
+	 */
+	public Disk(Privilege privilege, File directory) {
+		System.out.print(" disk");
+
+		this.privilege = privilege;
+
+		numTracks = Config.getInteger("Disk.numTracks", 256);
+		sectorsPerTrack = Config.getInteger("Disk.sectorsPerTrack", 32);
+		sectorSize = Config.getInteger("Disk.sectorSize", 512);
+		rotationTime = Config.getInteger("Disk.rotationTime",
+				Stats.RotationTime);
+		seekTime = Config.getInteger("Disk.seekTime", Stats.SeekTime);
+		trackToTrackTime = Config.getInteger("Disk.trackToTrackTime",
+				seekTime / 10);
+		trackSkew = Config.getInteger("Disk.trackSkew",
+				(trackToTrackTime * sectorsPerTrack + rotationTime - 1)
+						/ rotationTime);
+
+		Lib.assertTrue(numTracks > 0 && sectorsPerTrack > 0 && sectorSize > 0);
+		Lib.assertTrue(rotationTime >= sectorsPerTrack);
+		Lib.assertTrue(trackToTrackTime >= 0 && seekTime >= trackToTrackTime);
+		Lib.assertTrue(trackSkew >= 0);
+
+		numSectors = numTracks * sectorsPerTrack;
+
+		final File f = new File(directory, Config.getString("Disk.imageFile",
+				"nachos.disk"));
+		final long size = (long) numSectors * sectorSize;
+
+		privilege.doPrivileged(new Runnable() {
+			public void run() {
+				openImage(f, size);
+			}
+		});
+
+		if (image == null) {
+			System.out.println("");
+			System.out.println("Unable to open disk image " + f + "!");
+			Lib.assertNotReached();
+		}
+
+		completeInterrupt = new Runnable() {
+			public void run() {
+				completeInterrupt();
+			}
+		};
+	}
+
+	private void openImage(File f, long size) {
+		try {
+			RandomAccessFile file = new RandomAccessFile(f, "rw");
+			if (file.length() < size)
+				file.setLength(size);
+			image = file.getChannel();
+		}
+		catch (IOException e) {
+		}
+	}
+
+	/**
+	 * Set the interrupt handler, which is called every time a transfer
+	 * started by <tt>readSectors()</tt> or <tt>writeSectors()</tt> is done.
+	 *
+	 * @param interruptHandler the callback to call when a transfer is done.
+	 */
+	public void setInterruptHandler(Runnable interruptHandler) {
+		this.interruptHandler = interruptHandler;
+	}
+
+	/**
+	 * Start reading a run of sectors. The disk must not be busy.
+	 *
+	 * @param sector the first sector to read.
+	 * @param count the number of sectors to read.
+	 * @param data the array to read the sectors into.
+	 * @param offset the offset in <tt>data</tt> of the first sector.
+	 */
+	public void readSectors(int sector, int count, byte[] data, int offset) {
+		start(false, sector, count, data, offset);
+	}
+
+	/**
+	 * Start writing a run of sectors. The disk must not be busy.
+	 *
+	 * @param sector the first sector to write.
+	 * @param count the number of sectors to write.
+	 * @param data the array holding the sectors.
+	 * @param offset the offset in <tt>data</tt> of the first sector.
+	 */
+	public void writeSectors(int sector, int count, byte[] data, int offset) {
+		start(true, sector, count, data, offset);
+	}
+
+	/**
+	 * Test if a transfer is in progress.
+	 *
+	 * @return <tt>true</tt> if a transfer has been started and is not done.
+	 */
+	public boolean isBusy() {
+		return busy;
+	}
+
+	/**
+	 * Return the number of ticks a transfer would take if it were started
+	 * now, from the current position of the head.
+	 *
+	 * @param sector the first sector of the transfer.
+	 * @param count the number of sectors.
+	 * @return the time the transfer would take.
+	 */
+	public long getAccessTime(int sector, int count) {
+		checkRange(sector, count);
+
+		return accessTime(privilege.stats.totalTicks, headTrack, sector, count,
+				new long[3]);
+	}
+
+	/**
+	 * Return the track the head is on, or will be on when the transfer in
+	 * progress is done.
+	 *
+	 * @return the track under the head.
+	 */
+	public int getHeadTrack() {
+		return headTrack;
+	}
+
+	/**
+	 * Return the track holding a sector.
+	 *
+	 * @param sector the sector.
+	 * @return the track of <tt>sector</tt>.
+	 */
+	public int getTrack(int sector) {
+		return sector / sectorsPerTrack;
+	}
+
+	/**
+	 * Return the number of sectors on this disk.
+	 *
+	 * @return the number of sectors.
+	 */
+	public int getNumSectors() {
+		return numSectors;
+	}
+
+	/**
+	 * Return the number of tracks on this disk.
+	 *
+	 * @return the number of tracks.
+	 */
+	public int getNumTracks() {
+		return numTracks;
+	}
+
+	/**
+	 * Return the number of sectors on each track.
+	 *
+	 * @return the number of sectors per track.
+	 */
+	public int getSectorsPerTrack() {
+		return sectorsPerTrack;
+	}
+
+	/**
+	 * Return the number of bytes in a sector.
+	 *
+	 * @return the sector size.
+	 */
+	public int getSectorSize() {
+		return sectorSize;
+	}
+
+	private void start(boolean write, int sector, int count, byte[] data,
+			int offset) {
+		Lib.assertTrue(!busy);
+		checkRange(sector, count);
+		Lib.assertTrue(offset >= 0
+				&& offset + (long) count * sectorSize <= data.length);
+
+		long[] parts = new long[3];
+		long time = accessTime(privilege.stats.totalTicks, headTrack, sector,
+				count, parts);
+		privilege.stats.numDiskTransfers++;
+		privilege.stats.diskSeekTicks += parts[0];
+		privilege.stats.diskRotationTicks += parts[1];
+		privilege.stats.diskTransferTicks += parts[2];
+
+		Lib.debug(dbgDisk, (write ? "write" : "read") + " sectors " + sector
+				+ "-" + (sector + count - 1) + ", track " + headTrack + " to "
+				+ getTrack(sector + count - 1) + ", " + time + " ticks");
+
+		busy = true;
+		this.write = write;
+		this.sector = sector;
+		this.count = count;
+		this.data = data;
+		this.offset = offset;
+		headTrack = getTrack(sector + count - 1);
+
+		privilege.interrupt.schedule(time, "disk", completeInterrupt);
+	}
+
+	private void checkRange(int sector, int count) {
+		Lib.assertTrue(count > 0 && sector >= 0 && sector <= numSectors - count);
+	}
+
+	private void completeInterrupt() {
+		Lib.assertTrue(busy);
+
+		long pos = (long) sector * sectorSize;
+		ByteBuffer buffer = ByteBuffer.wrap(data, offset, count * sectorSize);
+
+		try {
+			while (buffer.hasRemaining()) {
+				int amount = write ? image.write(buffer, pos) : image.read(
+						buffer, pos);
+				Lib.assertTrue(amount > 0);
+				pos += amount;
+			}
+		}
+		catch (IOException e) {
+			Lib.assertNotReached("disk image I/O failed: " + e);
+		}
+
+		if (write)
+			privilege.stats.numDiskWrites += count;
+		else
+			privilege.stats.numDiskReads += count;
+
+		busy = false;
+		data = null;
+
+		if (interruptHandler != null)
+			interruptHandler.run();
+	}
+
+	/**
+	 * Return the time a transfer takes if it starts at <i>now</i> with the
+	 * head on <i>track</i>, adding its seek, rotational and transfer times to
+	 * <i>parts</i>.
+	 */
+	private long accessTime(long now, int track, int sector, int count,
+			long[] parts) {
+		long time = now;
+
+		while (count > 0) {
+			int t = getTrack(sector), s = sector % sectorsPerTrack;
+			int n = Math.min(count, sectorsPerTrack - s);
+
+			long seek = seekTime(Math.abs(t - track));
+			time += seek;
+			track = t;
+
+			// wait for the start of the sector, then let n sectors pass
+			long position = (s + (long) t * trackSkew) % sectorsPerTrack
+					* rotationTime / sectorsPerTrack;
+			long delay = (position - time % rotationTime) % rotationTime;
+			if (delay < 0)
+				delay += rotationTime;
+			long transfer = ((long) (s + n) * rotationTime / sectorsPerTrack)
+					- ((long) s * rotationTime / sectorsPerTrack);
+			time += delay + transfer;
+
+			parts[0] += seek;
+			parts[1] += delay;
+			parts[2] += transfer;
+
+			sector += n;
+			count -= n;
+		}
+
+		return time - now;
+	}
+
+	private long seekTime(int distance) {
+		if (distance == 0)
+			return 0;
+		else if (numTracks == 2)
+			return trackToTrackTime;
+
+		return trackToTrackTime + (long) (seekTime - trackToTrackTime)
+				* (distance - 1) / (numTracks - 2);
+	}
+
+	private Privilege privilege;
+
+	private Runnable interruptHandler = null;
+
+	private Runnable completeInterrupt;
+
+	private FileChannel image = null;
+
+	private int numTracks, sectorsPerTrack, sectorSize, numSectors;
+
+	private int rotationTime, seekTime, trackToTrackTime, trackSkew;
+
+	private int headTrack = 0;
+
+	/** The transfer in progress. */
+	private boolean busy = false, write;
+
+	private int sector, count, offset;
+
+	private byte[] data;
+
+	private static final char dbgDisk = 'd';
+}
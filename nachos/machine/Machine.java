@@ -183,8 +183,18 @@ public final class Machine {
 		if (Config.getBoolean("Machine.console"))
 			console = new StandardConsole(privilege);
 
-		if (Config.getBoolean("Machine.stubFileSystem"))
-			stubFileSystem = new StubFileSystem(privilege, testDirectory);
+		if (Config.getBoolean("Machine.disk"))
+			disk = new Disk(privilege, testDirectory);
+
+		if (Config.getBoolean("Machine.stubFileSystem")) {
+			if (Config.getBoolean("Machine.channelFileSystem", false))
+				stubFileSystem = new ChannelFileSystem(privilege, testDirectory);
+			else
+				stubFileSystem = new StubFileSystem(privilege, testDirectory);
+		}
+
+		if (Config.getBoolean("Machine.mappedFileSystem", false))
+			mappedFileSystem = new MappedFileSystem(privilege, testDirectory);
 
 		if (Config.getBoolean("Machine.networkLink"))
 			networkLink = new NetworkLink(privilege);
@@ -340,6 +350,15 @@ public final class Machine {
 		return console;
 	}
 
+	/**
+	 * Return the disk.
+	 * 
+	 * @return the disk, or <tt>null</tt> if it is not present.
+	 */
+	public static Disk disk() {
+		return disk;
+	}
+
 	/**
 	 * Return the stub filesystem.
 	 * 
@@ -349,6 +368,16 @@ public final class Machine {
 		return stubFileSystem;
 	}
 
+	/**
+	 * Return the file system of memory-mapped host files, which shares its
+	 * directory with the stub file system.
+	 *
+	 * @return the mapped file system, or <tt>null</tt> if it is not present.
+	 */
+	public static FileSystem mappedFileSystem() {
+		return mappedFileSystem;
+	}
+
 	/**
 	 * Return the network link.
 	 * 
@@ -377,8 +406,12 @@ public final class Machine {
 
 	private static SerialConsole console = null;
 
+	private static Disk disk = null;
+
 	private static FileSystem stubFileSystem = null;
 
+	private static FileSystem mappedFileSystem = null;
+
 	private static NetworkLink networkLink = null;
 
 	private static AutoGrader autoGrader = null;
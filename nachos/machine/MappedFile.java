@@ -0,0 +1,198 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+
+/**
+ * An <tt>OpenFile</tt> backed by a host file mapped into memory, so that
+ * reads and writes are copies to and from the mapping.
+ *
+ * <p>
+ * The mapping covers at least the length of the file. A write past the end
+ * of the mapping remaps the file, at least doubling the mapped size, which
+ * also extends the host file; the extra bytes are past the length of the
+ * <tt>MappedFile</tt> and are cut off when it is closed, unless the host
+ * file has changed size since. The host file must not be truncated through
+ * another handle while it is mapped.
+ *
+ * <p>
+ * A file opened for reading only is mapped read-only, is never extended or
+ * cut, and follows the size of the host file, which <tt>length()</tt>
+ * checks.
+ */
+public class MappedFile extends OpenFileWithPosition {
+	/**
+	 * Allocate a new <tt>MappedFile</tt>.
+	 *
+	 * @param fileSystem the file system the file belongs to.
+	 * @param name the name of the file, on that file system.
+	 * @param channel an open host handle on the file, readable, and writable
+	 * unless <tt>readOnly</tt> is set.
+	 * @param readOnly whether the file is only to be read.
+	 * @throws IOException if the file cannot be mapped.
+	 */
+	MappedFile(MappedFileSystem fileSystem, String name, FileChannel channel,
+			boolean readOnly) throws IOException {
+		super(fileSystem, name);
+
+		this.fileSystem = fileSystem;
+		this.channel = channel;
+		this.readOnly = readOnly;
+
+		long size = channel.size();
+		if (size > Integer.MAX_VALUE)
+			throw new IOException();
+
+		length = (int) size;
+		if (length > 0)
+			remap(length);
+	}
+
+	public int length() {
+		if (channel == null)
+			return -1;
+
+		if (readOnly)
+			follow();
+		return length;
+	}
+
+	public int read(int pos, byte[] buf, int offset, int length) {
+		Lib.assertTrue(offset >= 0 && length >= 0
+				&& offset + length <= buf.length);
+
+		if (channel == null || pos < 0)
+			return -1;
+
+		fileSystem.delay();
+
+		if (pos >= this.length)
+			return 0;
+
+		length = Math.min(length, this.length - pos);
+		map.position(pos);
+		map.get(buf, offset, length);
+
+		return length;
+	}
+
+	public int write(int pos, byte[] buf, int offset, int length) {
+		Lib.assertTrue(offset >= 0 && length >= 0
+				&& offset + length <= buf.length);
+
+		if (channel == null || readOnly || pos < 0
+				|| pos > Integer.MAX_VALUE - length)
+			return -1;
+
+		fileSystem.delay();
+
+		int end = pos + length;
+		if (end > mapSize) {
+			try {
+				remap((int) Math.min(Integer.MAX_VALUE, Math.max(end,
+						Math.max(2L * mapSize, minMapSize))));
+			}
+			catch (IOException e) {
+				return -1;
+			}
+		}
+
+		map.position(pos);
+		map.put(buf, offset, length);
+		this.length = Math.max(this.length, end);
+
+		return length;
+	}
+
+	public void close() {
+		if (channel == null)
+			return;
+
+		// drop the mapping before cutting off what remapping added, unless
+		// another handle has changed the size of the host file since
+		map = null;
+		try {
+			if (hostSize != -1 && channel.size() == mapSize)
+				channel.truncate(Math.max(length, hostSize));
+		}
+		catch (IOException e) {
+		}
+
+		try {
+			channel.close();
+		}
+		catch (IOException e) {
+		}
+		channel = null;
+	}
+
+	/**
+	 * Map the file again if the host file has changed size through another
+	 * handle.
+	 */
+	private void follow() {
+		try {
+			long size = channel.size();
+			if (size == length)
+				return;
+
+			map = null;
+			mapSize = 0;
+			length = (int) Math.min(size, Integer.MAX_VALUE);
+			if (length > 0)
+				remap(length);
+		}
+		catch (IOException e) {
+			length = 0;
+		}
+	}
+
+	private void remap(final int size) throws IOException {
+		long oldSize = channel.size();
+		if (size > oldSize && hostSize == -1)
+			hostSize = oldSize;
+
+		final FileChannel.MapMode mode = readOnly
+				? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE;
+
+		// the first mapping sets up JDK classes that need privilege
+		try {
+			map = (MappedByteBuffer) fileSystem.privilege.doPrivileged(
+					new PrivilegedExceptionAction<MappedByteBuffer>() {
+						public MappedByteBuffer run() throws IOException {
+							return channel.map(mode, 0, size);
+						}
+					});
+		}
+		catch (PrivilegedActionException e) {
+			throw (IOException) e.getException();
+		}
+		mapSize = size;
+	}
+
+	private MappedFileSystem fileSystem;
+
+	private FileChannel channel;
+
+	private MappedByteBuffer map = null;
+
+	private int mapSize = 0;
+
+	/** The length of the file, which may be less than the mapping. */
+	private int length;
+
+	private boolean readOnly;
+
+	/**
+	 * The size of the host file before this handle first extended it, or -1
+	 * if it has not.
+	 */
+	private long hostSize = -1;
+
+	private static final int minMapSize = 64 * 1024;
+}
@@ -0,0 +1,123 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+import nachos.threads.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * A file system over the same host directory as <tt>StubFileSystem</tt>,
+ * whose open files are <tt>MappedFile</tt>s. Each open file holds a host
+ * handle and a mapping until it is closed, so it suits a few large files
+ * that are used for a long time, like the swap file and executables.
+ *
+ * <p>
+ * A transfer costs the same simulated time as in <tt>StubFileSystem</tt>;
+ * it only saves the host the system call.
+ */
+public class MappedFileSystem implements FileSystem {
+	/**
+	 * Allocate a new mapped file system.
+	 *
+	 * @param privilege encapsulates privileged access to the Nachos machine.
+	 * @param directory the root directory of the file system.
+	 */
+	public MappedFileSystem(Privilege privilege, File directory) {
+		this.privilege = privilege;
+		this.directory = directory;
+	}
+
+	public OpenFile open(final String name, final boolean truncate) {
+		if (!ChannelFileSystem.checkName(name))
+			return null;
+
+		delay();
+
+		final OpenFile[] file = new OpenFile[1];
+		privilege.doPrivileged(new Runnable() {
+			public void run() {
+				file[0] = map(name, truncate, false);
+			}
+		});
+		return file[0];
+	}
+
+	/**
+	 * Open a file for reading only. It is mapped read-only, so that nothing
+	 * done through it can change the host file.
+	 *
+	 * @param name the name of the file to open.
+	 * @return an <tt>OpenFile</tt> whose writes fail, or <tt>null</tt> if the
+	 * file does not exist or cannot be mapped.
+	 */
+	public OpenFile openReadOnly(final String name) {
+		if (!ChannelFileSystem.checkName(name))
+			return null;
+
+		delay();
+
+		final OpenFile[] file = new OpenFile[1];
+		privilege.doPrivileged(new Runnable() {
+			public void run() {
+				file[0] = map(name, false, true);
+			}
+		});
+		return file[0];
+	}
+
+	private MappedFile map(String name, boolean truncate, boolean readOnly) {
+		File f = new File(directory, name);
+		if (!truncate && !f.exists())
+			return null;
+
+		RandomAccessFile file = null;
+		try {
+			file = new RandomAccessFile(f, readOnly ? "r" : "rw");
+			if (truncate)
+				file.setLength(0);
+
+			return new MappedFile(this, name, file.getChannel(), readOnly);
+		}
+		catch (IOException e) {
+			if (file != null) {
+				try {
+					file.close();
+				}
+				catch (IOException e2) {
+				}
+			}
+			return null;
+		}
+	}
+
+	public boolean remove(String name) {
+		if (!ChannelFileSystem.checkName(name))
+			return false;
+
+		delay();
+
+		final File f = new File(directory, name);
+		final boolean[] successful = new boolean[1];
+		privilege.doPrivileged(new Runnable() {
+			public void run() {
+				successful[0] = f.delete();
+			}
+		});
+		return successful[0];
+	}
+
+	void delay() {
+		long time = Machine.timer().getTime();
+		int amount = 1000;
+		ThreadedKernel.alarm.waitUntil(amount);
+		Lib.assertTrue(Machine.timer().getTime() >= time + amount);
+	}
+
+	Privilege privilege;
+
+	private File directory;
+}
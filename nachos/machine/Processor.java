@@ -175,6 +175,28 @@ public final class Processor {
 		Lib.assertTrue(!usingTLB);
 
 		this.translations = pageTable;
+		directory = null;
+	}
+
+	/**
+	 * Set a two-level page table. All further address translations will use
+	 * the specified page directory, until the next call to
+	 * <tt>setPageTable()</tt> or <tt>setPageDirectory()</tt>.
+	 * 
+	 * <p>
+	 * Slot <i>i</i> of the directory is either <tt>null</tt>, if none of its
+	 * pages are mapped, or a second-level table of <tt>pageTableSize</tt>
+	 * entries for virtual pages <i>i</i> * <tt>pageTableSize</tt> and up. A
+	 * <tt>null</tt> entry is the same as an invalid one.
+	 * 
+	 * @param directory the page directory to use.
+	 */
+	public void setPageDirectory(TranslationEntry[][] directory) {
+		Lib.assertTrue(!usingTLB);
+		Lib.assertTrue(directory.length == maxPages / pageTableSize);
+
+		this.directory = directory;
+		translations = null;
 	}
 
 	/**
@@ -218,6 +240,31 @@ public final class Processor {
 		translations[number] = new TranslationEntry(entry);
 	}
 
+	/**
+	 * Set the address-space identifier of the running program. Only TLB
+	 * entries tagged with this identifier are used to translate addresses, so
+	 * the entries of other address spaces may stay in the TLB.
+	 * 
+	 * @param asid the address-space identifier.
+	 */
+	public void setASID(int asid) {
+		Lib.assertTrue(usingTLB);
+
+		this.asid = asid;
+	}
+
+	/**
+	 * Return the address-space identifier set by the last call to
+	 * <tt>setASID()</tt>.
+	 * 
+	 * @return the current address-space identifier.
+	 */
+	public int getASID() {
+		Lib.assertTrue(usingTLB);
+
+		return asid;
+	}
+
 	/**
 	 * Return the number of pages of physical memory attached to this simulated
 	 * processor.
@@ -308,21 +355,29 @@ public final class Processor {
 
 		TranslationEntry entry = null;
 
-		// if not using a TLB, then the vpn is an index into the table
+		// if not using a TLB, then the vpn is an index into the table, or
+		// into the directory and a second-level table
 		if (!usingTLB) {
-			if (translations == null || vpn >= translations.length
-					|| translations[vpn] == null || !translations[vpn].valid) {
+			if (directory != null) {
+				TranslationEntry[] table = directory[vpn / pageTableSize];
+				if (table != null)
+					entry = table[vpn % pageTableSize];
+			}
+			else if (translations != null && vpn < translations.length) {
+				entry = translations[vpn];
+			}
+
+			if (entry == null || !entry.valid) {
 				privilege.stats.numPageFaults++;
 				Lib.debug(dbgProcessor, "\t\tpage fault");
 				throw new MipsException(exceptionPageFault, vaddr);
 			}
-
-			entry = translations[vpn];
 		}
-		// else, look through all TLB entries for matching vpn
+		// else, look through all TLB entries for matching vpn and asid
 		else {
 			for (int i = 0; i < tlbSize; i++) {
-				if (translations[i].valid && translations[i].vpn == vpn) {
+				if (translations[i].valid && translations[i].vpn == vpn
+						&& translations[i].asid == asid) {
 					entry = translations[i];
 					break;
 				}
@@ -552,18 +607,27 @@ public final class Processor {
 	/** Number of TLB entries. */
 	private int tlbSize = 4;
 
+	/** The address-space identifier TLB entries must match. */
+	private int asid = 0;
+
 	/**
 	 * Either an associative or direct-mapped set of translation entries,
 	 * depending on whether there is a TLB.
 	 */
 	private TranslationEntry[] translations;
 
+	/** The page directory, if a two-level page table is in use. */
+	private TranslationEntry[][] directory = null;
+
 	/** Size of a page, in bytes. */
 	public static final int pageSize = 0x400;
 
 	/** Number of pages in a 32-bit address space. */
 	public static final int maxPages = (int) (0x100000000L / pageSize);
 
+	/** Number of entries in a second-level page table. */
+	public static final int pageTableSize = 0x400;
+
 	/** Number of physical pages in memory. */
 	private int numPhysPages;
 
@@ -22,6 +22,10 @@ public final class Stats {
 				+ kernelTicks + ", user " + userTicks);
 		System.out.println("Disk I/O: reads " + numDiskReads + ", writes "
 				+ numDiskWrites);
+		if (numDiskTransfers > 0)
+			System.out.println("Disk time: transfers " + numDiskTransfers
+					+ ", seek " + diskSeekTicks + ", rotation "
+					+ diskRotationTicks + ", transfer " + diskTransferTicks);
 		System.out.println("Console I/O: reads " + numConsoleReads
 				+ ", writes " + numConsoleWrites);
 		System.out.println("Paging: page faults " + numPageFaults
@@ -54,6 +58,18 @@ public final class Stats {
 	/** The total number of sectors Nachos has written to the simulated disk. */
 	public int numDiskWrites = 0;
 
+	/** The total number of transfers the simulated disk has done. */
+	public int numDiskTransfers = 0;
+
+	/** The total time the simulated disk has spent seeking. */
+	public long diskSeekTicks = 0;
+
+	/** The total time the simulated disk has spent waiting for a sector. */
+	public long diskRotationTicks = 0;
+
+	/** The total time the simulated disk has spent transferring sectors. */
+	public long diskTransferTicks = 0;
+
 	/** The total number of characters Nachos has read from the console. */
 	public int numConsoleReads = 0;
 
@@ -0,0 +1,88 @@
+/*
+ * sbrk.c
+ *
+ * Test the heap and the stack of the VM kernel.  Grows the heap with sbrk
+ * and fills it, shrinks it and checks that the pages still in the heap
+ * kept their values, grows it again and checks that the released pages
+ * come back filled with zeroes, and then recurses deep enough to grow the
+ * stack by several pages.
+ *
+ * If everything validates, the program exits with status -1000.
+ * Otherwise it exits with a status between 1 and 6 naming the check
+ * that failed.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+
+#define PAGESIZE	1024
+#define GROWPAGES	20
+#define SHRINKPAGES	10
+#define DEPTH		40
+
+int
+fill (int *start, int count)
+{
+    int i;
+
+    for (i = 0; i < count; i++)
+	start[i] = i;
+    for (i = 0; i < count; i++)
+	if (start[i] != i)
+	    return 0;
+    return 1;
+}
+
+int
+recurse (int depth)
+{
+    // a frame of more than a page, so every call touches a new one
+    int frame[PAGESIZE / sizeof (int) + 16];
+    int i, sum;
+
+    for (i = 0; i < sizeof (frame) / sizeof (int); i++)
+	frame[i] = depth + i;
+    sum = depth > 0 ? recurse (depth - 1) : 0;
+    for (i = 0; i < sizeof (frame) / sizeof (int); i++)
+	if (frame[i] != depth + i)
+	    return -1;
+    return sum < 0 ? -1 : sum + depth;
+}
+
+int
+main (int argc, char *argv[])
+{
+    int *heap, *old;
+    int words = GROWPAGES * PAGESIZE / sizeof (int);
+    int kept = (GROWPAGES - SHRINKPAGES) * PAGESIZE / sizeof (int);
+    int i;
+
+    heap = (int *) sbrk (0);
+    if (sbrk (GROWPAGES * PAGESIZE) != heap)
+	exit (1);
+    if (!fill (heap, words))
+	exit (2);
+
+    // give back the top pages; the rest keep their values
+    old = (int *) sbrk (-SHRINKPAGES * PAGESIZE);
+    if (old != heap + words)
+	exit (3);
+    for (i = 0; i < kept; i++)
+	if (heap[i] != i)
+	    exit (4);
+
+    // the released pages come back as zeroes
+    sbrk (SHRINKPAGES * PAGESIZE);
+    for (i = kept; i < words; i++)
+	if (heap[i] != 0)
+	    exit (5);
+    if (!fill (heap + kept, words - kept))
+	exit (5);
+
+    if (recurse (DEPTH) != DEPTH * (DEPTH + 1) / 2)
+	exit (6);
+
+    printf ("sbrk: heap of %d pages and stack of %d frames validated\n",
+	    GROWPAGES, DEPTH);
+    exit (-1000);
+}
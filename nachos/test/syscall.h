@@ -25,6 +25,7 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallSbrk		13
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -248,6 +249,16 @@ int connect(int host, int port);
  */
 int accept(int port);
 
+/**
+ * Move the end of the heap, which starts right after the program, by
+ * increment bytes; a negative increment gives memory back. New heap pages
+ * are filled with zeroes when they are first touched.
+ *
+ * Returns the old end of the heap, or (void *) -1 if the heap cannot grow
+ * that far or would shrink below its start.
+ */
+void *sbrk(int increment);
+
 #endif /* START_S */
 
 #endif /* SYSCALL_H */
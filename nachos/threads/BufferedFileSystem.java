@@ -0,0 +1,26 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A file system that holds changes in memory before writing them to the
+ * disk. <tt>ThreadedKernel</tt> syncs it and prints its statistics when it
+ * terminates.
+ */
+public interface BufferedFileSystem extends FileSystem {
+	/**
+	 * Write the changes held in memory to the disk, and wait until they are
+	 * there.
+	 */
+	public void sync();
+
+	/**
+	 * Print the statistics of this file system.
+	 */
+	public void print();
+
+	/**
+	 * Test this file system. Files the test creates are removed again.
+	 */
+	public void selfTest();
+}
@@ -0,0 +1,40 @@
+package nachos.threads;
+
+import java.util.TreeSet;
+
+/**
+ * Circular SCAN: the head only serves requests while moving towards higher
+ * sectors, and when none are left ahead it goes back to the lowest request,
+ * so every sector waits at most one sweep. The disk only moves its head for a
+ * transfer, so the return goes straight to the lowest queued request rather
+ * than to sector 0 (the variant also known as C-LOOK).
+ */
+public class CSCANDiskPolicy implements DiskSchedulingPolicy {
+	/**
+	 * Allocate a new C-SCAN policy.
+	 */
+	public CSCANDiskPolicy() {
+	}
+
+	public void add(DiskRequest request) {
+		queue.add(request);
+	}
+
+	public void remove(DiskRequest request) {
+		queue.remove(request);
+	}
+
+	public DiskRequest next(int head) {
+		if (queue.isEmpty())
+			return null;
+
+		DiskRequest request = queue.ceiling(DiskRequest.probe(head));
+		if (request == null)
+			request = queue.first();
+
+		queue.remove(request);
+		return request;
+	}
+
+	private TreeSet<DiskRequest> queue = new TreeSet<>();
+}
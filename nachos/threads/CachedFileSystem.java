@@ -0,0 +1,779 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+
+/**
+ * A block buffer cache in front of another file system.
+ *
+ * <p>
+ * Files are cached in blocks of <tt>blockSize</tt> bytes, at most
+ * <tt>numBlocks</tt> of them. Reads are served from cached blocks, and
+ * writes only change the cached block and mark it dirty; a flusher thread
+ * writes dirty blocks back every <tt>flushInterval</tt> ticks, and a dirty
+ * block chosen for eviction is written back first. All files opened under
+ * one name share their blocks and one handle on the underlying file system,
+ * which is closed once the file is closed and clean. Its blocks stay cached,
+ * so opening the file again and reading it needs no I/O.
+ *
+ * <p>
+ * Blocks are evicted in LRU order, or with 2Q: a block is first kept in a
+ * FIFO queue, <tt>a1in</tt>, of about a quarter of the cache. The blocks it
+ * evicts are remembered in a ghost queue, <tt>a1out</tt>, and only a block
+ * missed again while it is remembered joins the LRU list <tt>am</tt>. A
+ * single pass over a large file therefore only churns <tt>a1in</tt>.
+ *
+ * <p>
+ * Each open file watches for sequential reads. While a reader keeps reading
+ * the next blocks, a read-ahead thread fetches the blocks ahead of it, with
+ * one read of the underlying file per window, and the window grows up to
+ * <tt>maxReadAhead</tt> blocks, but no more than a quarter of the cache.
+ */
+public class CachedFileSystem implements BufferedFileSystem {
+	/**
+	 * Allocate a new buffer cache.
+	 *
+	 * @param fileSystem the file system to cache.
+	 * @param blockSize the number of bytes in a block.
+	 * @param numBlocks the number of blocks to cache.
+	 * @param twoQueue <tt>true</tt> to evict with 2Q, <tt>false</tt> for
+	 * LRU.
+	 * @param flushInterval the number of ticks between write-backs.
+	 * @param maxReadAhead the most blocks to read ahead of a sequential
+	 * reader, or 0 to disable read-ahead.
+	 */
+	public CachedFileSystem(FileSystem fileSystem, int blockSize,
+			int numBlocks, boolean twoQueue, long flushInterval,
+			int maxReadAhead) {
+		Lib.assertTrue(blockSize > 0 && numBlocks > 0 && flushInterval > 0
+				&& maxReadAhead >= 0);
+
+		this.fileSystem = fileSystem;
+		this.blockSize = blockSize;
+		this.numBlocks = numBlocks;
+		this.twoQueue = twoQueue;
+		this.flushInterval = flushInterval;
+		// a run holds its blocks busy while it allocates the next one
+		this.maxReadAhead = Math.min(maxReadAhead, Math.max(1, numBlocks / 4));
+		maxA1in = Math.max(1, numBlocks / 4);
+		maxA1out = Math.max(1, numBlocks / 2);
+	}
+
+	/**
+	 * Fork the flusher thread, and the read-ahead thread if read-ahead is
+	 * enabled.
+	 */
+	public void start() {
+		if (maxReadAhead > 0) {
+			new KThread(new Runnable() {
+				public void run() {
+					readAhead();
+				}
+			}).setName("buffer cache read-ahead").fork();
+		}
+
+		new KThread(new Runnable() {
+			public void run() {
+				while (true) {
+					ThreadedKernel.alarm.waitUntil(flushInterval);
+					flushes++;
+					sync();
+				}
+			}
+		}).setName("buffer cache flusher").fork();
+	}
+
+	/**
+	 * Return the file system this cache is in front of.
+	 *
+	 * @return the cached file system.
+	 */
+	public FileSystem getFileSystem() {
+		return fileSystem;
+	}
+
+	public OpenFile open(String name, boolean truncate) {
+		lock.acquire();
+		FileEntry entry = files.get(name);
+
+		if (entry == null || truncate) {
+			// opening with truncation also truncates the underlying file
+			OpenFile file = fileSystem.open(name, truncate);
+			if (file == null) {
+				lock.release();
+				return null;
+			}
+
+			if (entry == null) {
+				entry = new FileEntry(name, file);
+				files.put(name, entry);
+			}
+			else {
+				// held open so that dropping its last block does not close
+				// and detach it
+				entry.openCount++;
+				discard(entry);
+				entry.openCount--;
+				entry.length = 0;
+				if (entry.file == null)
+					entry.file = file;
+				else
+					file.close();
+			}
+		}
+
+		entry.openCount++;
+		lock.release();
+
+		return new CachedOpenFile(entry);
+	}
+
+	public boolean remove(String name) {
+		lock.acquire();
+		FileEntry entry = files.remove(name);
+		if (entry != null) {
+			discard(entry);
+			closeIfIdle(entry);
+		}
+		lock.release();
+
+		return fileSystem.remove(name);
+	}
+
+	/**
+	 * Write every dirty block back to the underlying file system.
+	 */
+	public void sync() {
+		lock.acquire();
+		ArrayList<Block> dirty = new ArrayList<>();
+		for (Block block : am)
+			if (block.dirty && !block.busy)
+				dirty.add(block);
+		for (Block block : a1in)
+			if (block.dirty && !block.busy)
+				dirty.add(block);
+		lock.release();
+
+		for (Block block : dirty) {
+			lock.acquire();
+			if (block.dirty && !block.busy && block.valid)
+				writeBack(block);
+			lock.release();
+		}
+	}
+
+	/**
+	 * Test that re-creating a file which is cached but no longer open keeps
+	 * its entry, so that a later open reads the new contents.
+	 */
+	public void selfTest() {
+		String name = "_cachetest.tmp";
+		byte[] data = new byte[blockSize * 2];
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) i;
+
+		OpenFile file = open(name, true);
+		Lib.assertTrue(file != null);
+		Lib.assertTrue(file.write(0, data, 0, data.length) == data.length);
+		file.close();
+
+		int length = blockSize + blockSize / 2;
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) (i * 3 + 1);
+		file = open(name, true);
+		Lib.assertTrue(file != null && file.length() == 0);
+		Lib.assertTrue(file.write(0, data, 0, length) == length);
+		file.close();
+
+		lock.acquire();
+		FileEntry entry = files.get(name);
+		lock.release();
+		Lib.assertTrue(entry != null);
+
+		file = open(name, false);
+		Lib.assertTrue(file != null && file.length() == length);
+		byte[] check = new byte[data.length];
+		Lib.assertTrue(file.read(0, check, 0, check.length) == length);
+		for (int i = 0; i < length; i++)
+			Lib.assertTrue(check[i] == data[i]);
+		lock.acquire();
+		Lib.assertTrue(files.get(name) == entry);
+		lock.release();
+		file.close();
+
+		Lib.assertTrue(remove(name));
+		Lib.debug(dbgFileSystem, "CachedFileSystem.selfTest passed");
+	}
+
+	/**
+	 * Print the statistics of this cache.
+	 */
+	public void print() {
+		System.out.println("Buffer cache (" + (twoQueue ? "2Q" : "LRU")
+				+ "): hits " + hits + ", misses " + misses + ", ghost hits "
+				+ ghostHits + ", evictions " + evictions + ", write-backs "
+				+ writeBacks + ", flushes " + flushes);
+		System.out.println("Buffer cache read-ahead: blocks " + readAheadBlocks
+				+ " in " + readAheadReads + " reads, used " + readAheadHits
+				+ ", evicted unused " + readAheadWasted);
+	}
+
+	/**
+	 * Require lock. Return the block of a file, reading it in unless
+	 * <i>fill</i> is <tt>false</tt>, and mark it busy. The caller must
+	 * release it with <tt>release()</tt>.
+	 */
+	private Block acquire(FileEntry entry, int number, boolean fill) {
+		while (true) {
+			Block block = entry.blocks.get(number);
+			if (block == null)
+				break;
+			if (!block.busy) {
+				hits++;
+				if (block.prefetched) {
+					block.prefetched = false;
+					readAheadHits++;
+				}
+				if (am.remove(block))
+					am.add(block);
+				block.busy = true;
+				return block;
+			}
+			blockReady.sleep();
+		}
+
+		Block block = allocate();
+		if (entry.blocks.get(number) != null) {
+			// filled by another thread while this one was evicting
+			free.add(block);
+			return acquire(entry, number, fill);
+		}
+
+		misses++;
+		install(block, entry, number);
+
+		int start = number * blockSize;
+		int amount = Math.min(blockSize, entry.length - start);
+		if (fill && amount > 0) {
+			lock.release();
+			int read = entry.file.read(start, block.data, 0, amount);
+			lock.acquire();
+			amount = Math.max(read, 0);
+		}
+		else {
+			amount = 0;
+		}
+		for (int i = amount; i < blockSize; i++)
+			block.data[i] = 0;
+
+		return block;
+	}
+
+	/**
+	 * The read-ahead thread. Takes runs of blocks queued by sequential
+	 * readers and reads each run with one read of the underlying file.
+	 */
+	private void readAhead() {
+		lock.acquire();
+		while (true) {
+			while (readAheadQueue.isEmpty())
+				readAheadQueued.sleep();
+
+			ReadAhead run = readAheadQueue.removeFirst();
+			FileEntry entry = run.entry;
+			if (files.get(entry.name) == entry && entry.file != null) {
+				// keep the underlying file open until the read is done
+				entry.openCount++;
+				prefetch(entry, run.first, run.count);
+				entry.openCount--;
+				closeIfIdle(entry);
+			}
+		}
+	}
+
+	/**
+	 * Require lock. Read the blocks of a run that are not cached, from the
+	 * first one that is not (the reader may have caught up with the run) up
+	 * to the next one that is.
+	 */
+	private void prefetch(FileEntry entry, int first, int count) {
+		ArrayList<Block> run = new ArrayList<>();
+		int end = first + count;
+		for (int number = first; number < end; number++) {
+			if (entry.blocks.containsKey(number)) {
+				if (!run.isEmpty())
+					break;
+				first = number + 1;
+				continue;
+			}
+			Block block = allocate();
+			if (entry.blocks.containsKey(number)) {
+				free.add(block);
+				if (!run.isEmpty())
+					break;
+				first = number + 1;
+				continue;
+			}
+			install(block, entry, number);
+			block.prefetched = true;
+			run.add(block);
+		}
+
+		int start = first * blockSize;
+		int amount = Math.min(run.size() * blockSize, entry.length - start);
+		if (run.isEmpty() || amount <= 0) {
+			for (Block block : run)
+				drop(block);
+			return;
+		}
+
+		byte[] buffer = new byte[run.size() * blockSize];
+		lock.release();
+		int read = entry.file.read(start, buffer, 0, amount);
+		lock.acquire();
+
+		readAheadReads++;
+		for (int i = 0; i < run.size(); i++) {
+			Block block = run.get(i);
+			if (read < 0) {
+				drop(block);
+				continue;
+			}
+			System.arraycopy(buffer, i * blockSize, block.data, 0, blockSize);
+			readAheadBlocks++;
+			release(block);
+		}
+	}
+
+	/**
+	 * Require lock. Drop a busy block that could not be filled.
+	 */
+	private void drop(Block block) {
+		block.prefetched = false;
+		a1in.remove(block);
+		am.remove(block);
+		forget(block);
+		free.add(block);
+		release(block);
+	}
+
+	/**
+	 * Require lock. Make a free block the busy block <i>number</i> of a
+	 * file, and queue it for eviction.
+	 */
+	private void install(Block block, FileEntry entry, int number) {
+		block.entry = entry;
+		block.number = number;
+		block.valid = true;
+		block.busy = true;
+		entry.blocks.put(number, block);
+
+		long key = key(entry, number);
+		if (!twoQueue || a1out.remove(key)) {
+			if (twoQueue)
+				ghostHits++;
+			am.add(block);
+		}
+		else {
+			a1in.add(block);
+		}
+	}
+
+	/**
+	 * Require lock. Release a block returned by <tt>acquire()</tt>.
+	 */
+	private void release(Block block) {
+		block.busy = false;
+		blockReady.wakeAll();
+	}
+
+	/**
+	 * Require lock. Return a free block, evicting one if the cache is full.
+	 */
+	private Block allocate() {
+		if (!free.isEmpty())
+			return free.removeFirst();
+		if (numCached < numBlocks) {
+			numCached++;
+			return new Block(blockSize);
+		}
+
+		while (true) {
+			LinkedHashSet<Block> queue = twoQueue
+					&& (a1in.size() > maxA1in || am.isEmpty()) ? a1in : am;
+			Block victim = findVictim(queue);
+			if (victim == null)
+				victim = findVictim(queue == am ? a1in : am);
+
+			if (victim == null) {
+				blockReady.sleep();
+			}
+			else if (victim.dirty) {
+				writeBack(victim);
+			}
+			else {
+				evictions++;
+				if (victim.prefetched) {
+					victim.prefetched = false;
+					readAheadWasted++;
+				}
+				queue = a1in.remove(victim) ? a1in : am;
+				am.remove(victim);
+				if (queue == a1in) {
+					a1out.add(key(victim.entry, victim.number));
+					if (a1out.size() > maxA1out) {
+						Iterator<Long> i = a1out.iterator();
+						i.next();
+						i.remove();
+					}
+				}
+				forget(victim);
+				return victim;
+			}
+		}
+	}
+
+	/**
+	 * Require lock. Return the least recently used block of a queue that is
+	 * not busy, preferring clean blocks.
+	 */
+	private Block findVictim(LinkedHashSet<Block> queue) {
+		Block dirty = null;
+		for (Block block : queue) {
+			if (block.busy)
+				continue;
+			if (!block.dirty)
+				return block;
+			if (dirty == null)
+				dirty = block;
+		}
+		return dirty;
+	}
+
+	/**
+	 * Require lock. Write a dirty block to the underlying file, up to the end
+	 * of the file. The block is busy during the write.
+	 */
+	private void writeBack(Block block) {
+		FileEntry entry = block.entry;
+		int start = block.number * blockSize;
+		int amount = Math.min(blockSize, entry.length - start);
+
+		block.busy = true;
+		block.dirty = false;
+		writeBacks++;
+
+		if (amount > 0) {
+			lock.release();
+			entry.file.write(start, block.data, 0, amount);
+			lock.acquire();
+		}
+
+		// counted as dirty until now, so the file was not closed meanwhile
+		entry.numDirty--;
+		release(block);
+		closeIfIdle(entry);
+	}
+
+	/**
+	 * Require lock. Drop every block of a file without writing it back.
+	 */
+	private void discard(FileEntry entry) {
+		while (true) {
+			Block busy = null;
+			for (Block block : entry.blocks.values())
+				if (block.busy)
+					busy = block;
+			if (busy == null)
+				break;
+			blockReady.sleep();
+		}
+
+		for (Block block : new ArrayList<>(entry.blocks.values())) {
+			a1in.remove(block);
+			am.remove(block);
+			forget(block);
+			free.add(block);
+		}
+	}
+
+	/**
+	 * Require lock. Detach a block that has left the queues from its file.
+	 */
+	private void forget(Block block) {
+		FileEntry entry = block.entry;
+		entry.blocks.remove(block.number);
+		if (block.dirty) {
+			block.dirty = false;
+			entry.numDirty--;
+		}
+		block.valid = false;
+		block.entry = null;
+		closeIfIdle(entry);
+	}
+
+	/**
+	 * Require lock. Close the underlying file of an entry that is no longer
+	 * open and has nothing to write back, and forget the entry once it has
+	 * no blocks either.
+	 */
+	private void closeIfIdle(FileEntry entry) {
+		if (entry.openCount > 0 || entry.numDirty > 0)
+			return;
+
+		if (entry.file != null) {
+			entry.file.close();
+			entry.file = null;
+		}
+
+		if (entry.blocks.isEmpty() && files.get(entry.name) == entry)
+			files.remove(entry.name);
+	}
+
+	/**
+	 * Require lock. Reopen the underlying file of an entry whose handle was
+	 * closed.
+	 */
+	private boolean reopen(FileEntry entry) {
+		if (entry.file == null)
+			entry.file = fileSystem.open(entry.name, false);
+		return entry.file != null;
+	}
+
+	private static long key(FileEntry entry, int number) {
+		return entry.id << 32 | number;
+	}
+
+	private class CachedOpenFile extends OpenFileWithPosition {
+		CachedOpenFile(FileEntry entry) {
+			super(CachedFileSystem.this, entry.name);
+			this.entry = entry;
+		}
+
+		public int read(int pos, byte[] buf, int offset, int length) {
+			if (!open || pos < 0 || length < 0)
+				return -1;
+
+			lock.acquire();
+			length = Math.max(0, Math.min(length, entry.length - pos));
+			if (length > 0 && !reopen(entry)) {
+				lock.release();
+				return -1;
+			}
+
+			int done = 0;
+			while (done < length) {
+				int number = (pos + done) / blockSize;
+				int start = (pos + done) % blockSize;
+				int amount = Math.min(length - done, blockSize - start);
+
+				Block block = acquire(entry, number, true);
+				System.arraycopy(block.data, start, buf, offset + done, amount);
+				release(block);
+				done += amount;
+			}
+
+			if (length > 0)
+				sequential(pos / blockSize, (pos + length - 1) / blockSize);
+			lock.release();
+
+			return done;
+		}
+
+		public int write(int pos, byte[] buf, int offset, int length) {
+			if (!open || pos < 0 || length < 0)
+				return -1;
+
+			lock.acquire();
+			if (length > 0 && !reopen(entry)) {
+				lock.release();
+				return -1;
+			}
+
+			int done = 0;
+			while (done < length) {
+				int number = (pos + done) / blockSize;
+				int start = (pos + done) % blockSize;
+				int amount = Math.min(length - done, blockSize - start);
+
+				// a block that is overwritten whole need not be read first
+				boolean whole = start == 0
+						&& (amount == blockSize || number * blockSize
+								+ amount >= entry.length);
+				Block block = acquire(entry, number, !whole);
+				System.arraycopy(buf, offset + done, block.data, start, amount);
+				if (!block.dirty) {
+					block.dirty = true;
+					entry.numDirty++;
+				}
+				entry.length = Math.max(entry.length, pos + done + amount);
+				release(block);
+				done += amount;
+			}
+			lock.release();
+
+			return done;
+		}
+
+		public int length() {
+			return entry.length;
+		}
+
+		/**
+		 * Require lock. Track a read of blocks <i>first</i> through
+		 * <i>last</i>. A read that starts in or just after the last block read
+		 * continues a sequential stream. Once the reader gets within half a
+		 * window of the blocks already read ahead, the window doubles, up to
+		 * <tt>maxReadAhead</tt>, and the blocks of the next window are queued
+		 * for the read-ahead thread.
+		 */
+		private void sequential(int first, int last) {
+			if (maxReadAhead == 0)
+				return;
+
+			boolean sequential = first == lastBlock || first == lastBlock + 1;
+			lastBlock = last;
+			if (!sequential) {
+				window = 0;
+				readAheadEnd = 0;
+				return;
+			}
+			if (readAheadEnd - last > window / 2)
+				return;
+
+			window = Math.min(window == 0 ? 2 : window * 2, maxReadAhead);
+			int start = Math.max(readAheadEnd, last + 1);
+			int end = Math.min(last + 1 + window, (entry.length + blockSize - 1)
+					/ blockSize);
+			if (start < end) {
+				readAheadQueue.add(new ReadAhead(entry, start, end - start));
+				readAheadQueued.wake();
+			}
+			readAheadEnd = Math.max(readAheadEnd, end);
+		}
+
+		public void close() {
+			if (!open)
+				return;
+			open = false;
+
+			lock.acquire();
+			entry.openCount--;
+			closeIfIdle(entry);
+			lock.release();
+		}
+
+		private FileEntry entry;
+
+		private boolean open = true;
+
+		/** The last block read, the read-ahead window, and the block after
+		 * the last one read ahead. */
+		private int lastBlock = -1, window = 0, readAheadEnd = 0;
+	}
+
+	/** A run of blocks for the read-ahead thread. */
+	private static class ReadAhead {
+		ReadAhead(FileEntry entry, int first, int count) {
+			this.entry = entry;
+			this.first = first;
+			this.count = count;
+		}
+
+		FileEntry entry;
+
+		int first, count;
+	}
+
+	/** The cache's view of one file. */
+	private static class FileEntry {
+		FileEntry(String name, OpenFile file) {
+			this.name = name;
+			this.file = file;
+			length = file.length();
+			id = nextId++;
+		}
+
+		String name;
+
+		long id;
+
+		/** The handle on the underlying file, or null while idle. */
+		OpenFile file;
+
+		/** The length of the file, including unwritten blocks. */
+		int length;
+
+		int openCount = 0, numDirty = 0;
+
+		HashMap<Integer, Block> blocks = new HashMap<>();
+
+		private static long nextId = 0;
+	}
+
+	private static class Block {
+		Block(int blockSize) {
+			data = new byte[blockSize];
+		}
+
+		FileEntry entry;
+
+		int number;
+
+		byte[] data;
+
+		/** Busy blocks are being read, written or copied. */
+		boolean valid = false, dirty = false, busy = false;
+
+		/** Read ahead and not referenced since. */
+		boolean prefetched = false;
+	}
+
+	private FileSystem fileSystem;
+
+	private int blockSize, numBlocks, numCached = 0;
+
+	/** Blocks that hold nothing. */
+	private LinkedList<Block> free = new LinkedList<>();
+
+	private boolean twoQueue;
+
+	private long flushInterval;
+
+	private int maxReadAhead;
+
+	private LinkedList<ReadAhead> readAheadQueue = new LinkedList<>();
+
+	/** Open or cached files by name. */
+	private HashMap<String, FileEntry> files = new HashMap<>();
+
+	/** The LRU list, least recently used first. */
+	private LinkedHashSet<Block> am = new LinkedHashSet<>();
+
+	/** The 2Q FIFO of blocks seen once, oldest first. */
+	private LinkedHashSet<Block> a1in = new LinkedHashSet<>();
+
+	/** Blocks recently evicted from a1in, oldest first. */
+	private LinkedHashSet<Long> a1out = new LinkedHashSet<>();
+
+	private int maxA1in, maxA1out;
+
+	private Lock lock = new Lock();
+
+	/** Signalled when a block stops being busy. */
+	private Condition blockReady = new Condition(lock);
+
+	/** Signalled when a run is queued for read-ahead. */
+	private Condition readAheadQueued = new Condition(lock);
+
+	private int hits = 0, misses = 0, ghostHits = 0, evictions = 0,
+			writeBacks = 0, flushes = 0, readAheadBlocks = 0,
+			readAheadReads = 0, readAheadHits = 0, readAheadWasted = 0;
+
+	private static final char dbgFileSystem = 'f';
+}
@@ -0,0 +1,76 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Comparator;
+import java.util.TreeSet;
+
+/**
+ * Sweeps the disk like C-SCAN, but gives every request a deadline: reads
+ * expire <tt>DeadlineDiskPolicy.readExpire</tt> ticks after they were
+ * submitted and writes <tt>DeadlineDiskPolicy.writeExpire</tt> ticks after.
+ * When the oldest read or write has expired it is served first, reads before
+ * writes, and the sweep continues from there. Reads get the shorter deadline
+ * because a thread usually waits for them, while writes can often be
+ * delayed.
+ */
+public class DeadlineDiskPolicy implements DiskSchedulingPolicy {
+	/**
+	 * Allocate a new deadline policy.
+	 */
+	public DeadlineDiskPolicy() {
+		readExpire = Config.getInteger("DeadlineDiskPolicy.readExpire", 25000);
+		writeExpire = Config.getInteger("DeadlineDiskPolicy.writeExpire",
+				125000);
+		Lib.assertTrue(readExpire >= 0 && writeExpire >= 0);
+	}
+
+	public void add(DiskRequest request) {
+		sorted.add(request);
+		(request.isWrite() ? writes : reads).add(request);
+	}
+
+	public void remove(DiskRequest request) {
+		sorted.remove(request);
+		(request.isWrite() ? writes : reads).remove(request);
+	}
+
+	public DiskRequest next(int head) {
+		if (sorted.isEmpty())
+			return null;
+
+		long now = Machine.timer().getTime();
+		DiskRequest request;
+
+		if (!reads.isEmpty() && reads.first().getTime() + readExpire <= now)
+			request = reads.first();
+		else if (!writes.isEmpty()
+				&& writes.first().getTime() + writeExpire <= now)
+			request = writes.first();
+		else {
+			request = sorted.ceiling(DiskRequest.probe(head));
+			if (request == null)
+				request = sorted.first();
+		}
+
+		remove(request);
+		return request;
+	}
+
+	private long readExpire, writeExpire;
+
+	private TreeSet<DiskRequest> sorted = new TreeSet<>();
+
+	/** Reads and writes, oldest first. */
+	private TreeSet<DiskRequest> reads = new TreeSet<>(byTime),
+			writes = new TreeSet<>(byTime);
+
+	private static final Comparator<DiskRequest> byTime = new Comparator<DiskRequest>() {
+		public int compare(DiskRequest a, DiskRequest b) {
+			if (a.getTime() != b.getTime())
+				return a.getTime() < b.getTime() ? -1 : 1;
+			else
+				return a.compareTo(b);
+		}
+	};
+}
@@ -0,0 +1,144 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedList;
+
+/**
+ * A queued disk transfer: a run of sectors to read or write. Requests for
+ * adjacent sectors in the same direction are merged into one request, which
+ * keeps the pieces it was made of so each submitter can be woken when the
+ * transfer is done.
+ *
+ * <p>
+ * Requests are ordered by first sector, then by the order they were
+ * submitted.
+ */
+public class DiskRequest implements Comparable<DiskRequest> {
+	DiskRequest(boolean write, int sector, int count, byte[] data, int offset) {
+		this.write = write;
+		this.sector = sector;
+		this.count = count;
+		time = Machine.timer().getTime();
+		id = nextId++;
+		parts.add(new Part(sector, count, data, offset, time));
+	}
+
+	private DiskRequest(int sector) {
+		this.sector = sector;
+		id = -1;
+	}
+
+	/**
+	 * Return a request that orders before every request starting at or after
+	 * <i>sector</i> and after every request starting before it, for searching
+	 * a sorted set.
+	 *
+	 * @param sector the sector to search from.
+	 * @return a request that is never queued.
+	 */
+	public static DiskRequest probe(int sector) {
+		return new DiskRequest(sector);
+	}
+
+	/**
+	 * Test if this request writes to the disk.
+	 *
+	 * @return <tt>true</tt> for a write, <tt>false</tt> for a read.
+	 */
+	public boolean isWrite() {
+		return write;
+	}
+
+	/**
+	 * Return the first sector of this request.
+	 *
+	 * @return the first sector.
+	 */
+	public int getSector() {
+		return sector;
+	}
+
+	/**
+	 * Return the number of sectors in this request.
+	 *
+	 * @return the number of sectors.
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Return the time the oldest piece of this request was submitted.
+	 *
+	 * @return the submission time, in ticks.
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	public int compareTo(DiskRequest request) {
+		if (sector != request.sector)
+			return sector < request.sector ? -1 : 1;
+		else
+			return Long.compare(id, request.id);
+	}
+
+	/**
+	 * Test if this request and another touch a common sector and at least one
+	 * of them writes it.
+	 */
+	boolean conflicts(DiskRequest request) {
+		return (write || request.write) && sector < request.sector + request.count
+				&& request.sector < sector + count;
+	}
+
+	/**
+	 * Append the pieces of a request for the sectors just after this one.
+	 */
+	void mergeBack(DiskRequest request) {
+		count += request.count;
+		parts.addAll(request.parts);
+		time = Math.min(time, request.time);
+	}
+
+	/**
+	 * Prepend the pieces of a request for the sectors just before this one.
+	 */
+	void mergeFront(DiskRequest request) {
+		sector = request.sector;
+		count += request.count;
+		parts.addAll(0, request.parts);
+		time = Math.min(time, request.time);
+	}
+
+	/** One submitter's share of a request. */
+	static class Part {
+		Part(int sector, int count, byte[] data, int offset, long time) {
+			this.sector = sector;
+			this.count = count;
+			this.data = data;
+			this.offset = offset;
+			this.time = time;
+		}
+
+		int sector, count, offset;
+
+		byte[] data;
+
+		long time;
+
+		/** Released when the transfer is done. */
+		Semaphore done = new Semaphore(0);
+	}
+
+	private boolean write;
+
+	private int sector, count;
+
+	private long time, id;
+
+	LinkedList<Part> parts = new LinkedList<>();
+
+	private static long nextId = 0;
+}
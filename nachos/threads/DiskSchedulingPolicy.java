@@ -0,0 +1,31 @@
+package nachos.threads;
+
+/**
+ * Chooses the order in which queued disk requests are sent to the disk.
+ * <tt>SynchDisk</tt> calls a policy with its own lock held, so a policy needs
+ * no locking of its own.
+ */
+public interface DiskSchedulingPolicy {
+	/**
+	 * Add a request to the queue.
+	 *
+	 * @param request the new request.
+	 */
+	public void add(DiskRequest request);
+
+	/**
+	 * Remove a queued request. Called before a request is merged with a new
+	 * one, after which it is added again.
+	 *
+	 * @param request a queued request.
+	 */
+	public void remove(DiskRequest request);
+
+	/**
+	 * Remove and return the request to send to the disk next.
+	 *
+	 * @param head the sector just after the last one transferred.
+	 * @return the next request, or <tt>null</tt> if the queue is empty.
+	 */
+	public DiskRequest next(int head);
+}
@@ -0,0 +1,28 @@
+package nachos.threads;
+
+import java.util.LinkedList;
+
+/**
+ * Serves disk requests in the order they were submitted.
+ */
+public class FCFSDiskPolicy implements DiskSchedulingPolicy {
+	/**
+	 * Allocate a new first-come first-served policy.
+	 */
+	public FCFSDiskPolicy() {
+	}
+
+	public void add(DiskRequest request) {
+		queue.add(request);
+	}
+
+	public void remove(DiskRequest request) {
+		queue.remove(request);
+	}
+
+	public DiskRequest next(int head) {
+		return queue.poll();
+	}
+
+	private LinkedList<DiskRequest> queue = new LinkedList<>();
+}
@@ -0,0 +1,50 @@
+package nachos.threads;
+
+import java.util.TreeSet;
+
+/**
+ * The elevator algorithm, LOOK: the head sweeps in one direction serving
+ * every request on its way, and turns around when there are no requests left
+ * ahead of it.
+ */
+public class LOOKDiskPolicy implements DiskSchedulingPolicy {
+	/**
+	 * Allocate a new LOOK policy.
+	 */
+	public LOOKDiskPolicy() {
+	}
+
+	public void add(DiskRequest request) {
+		queue.add(request);
+	}
+
+	public void remove(DiskRequest request) {
+		queue.remove(request);
+	}
+
+	public DiskRequest next(int head) {
+		if (queue.isEmpty())
+			return null;
+
+		DiskRequest request = ahead(head);
+		if (request == null) {
+			up = !up;
+			request = ahead(head);
+		}
+
+		queue.remove(request);
+		return request;
+	}
+
+	private DiskRequest ahead(int head) {
+		if (up)
+			return queue.ceiling(DiskRequest.probe(head));
+		else
+			return queue.lower(DiskRequest.probe(head));
+	}
+
+	private TreeSet<DiskRequest> queue = new TreeSet<>();
+
+	/** The direction of the sweep. */
+	private boolean up = true;
+}
@@ -0,0 +1,43 @@
+package nachos.threads;
+
+import java.util.TreeSet;
+
+/**
+ * Shortest seek first: serves the request whose first sector is closest to
+ * the head, in either direction. Requests far from a busy region can starve.
+ */
+public class SSTFDiskPolicy implements DiskSchedulingPolicy {
+	/**
+	 * Allocate a new shortest-seek-first policy.
+	 */
+	public SSTFDiskPolicy() {
+	}
+
+	public void add(DiskRequest request) {
+		queue.add(request);
+	}
+
+	public void remove(DiskRequest request) {
+		queue.remove(request);
+	}
+
+	public DiskRequest next(int head) {
+		DiskRequest above = queue.ceiling(DiskRequest.probe(head));
+		DiskRequest below = queue.lower(DiskRequest.probe(head));
+
+		DiskRequest request;
+		if (above == null)
+			request = below;
+		else if (below == null)
+			request = above;
+		else
+			request = above.getSector() - head <= head - below.getSector() ? above
+					: below;
+
+		if (request != null)
+			queue.remove(request);
+		return request;
+	}
+
+	private TreeSet<DiskRequest> queue = new TreeSet<>();
+}
@@ -0,0 +1,373 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+
+/**
+ * Provides a simple, synchronized interface to the machine's disk. A read or
+ * write blocks the calling thread until the transfer is done.
+ *
+ * <p>
+ * Requests are queued and a kernel thread sends them to the disk one at a
+ * time, in the order chosen by a <tt>DiskSchedulingPolicy</tt> named by
+ * <tt>SynchDisk.policy</tt>. A new request for the sectors just before or
+ * just after a queued request in the same direction is merged into it, up to
+ * <tt>SynchDisk.maxMergeSectors</tt> sectors, and the merged request is done
+ * in one transfer. A request that overlaps an earlier one it conflicts with
+ * (either of them writes) waits for it to finish, so no policy can reorder
+ * them.
+ */
+public class SynchDisk {
+	/**
+	 * Allocate a new <tt>SynchDisk</tt> and fork its scheduler thread.
+	 *
+	 * @param disk the underlying disk to use.
+	 */
+	public SynchDisk(Disk disk) {
+		this.disk = disk;
+		sectorSize = disk.getSectorSize();
+
+		policyName = Config.getString("SynchDisk.policy",
+				"nachos.threads.DeadlineDiskPolicy");
+		policy = (DiskSchedulingPolicy) Lib.constructObject(policyName);
+		maxMergeSectors = Config.getInteger("SynchDisk.maxMergeSectors",
+				disk.getSectorsPerTrack());
+		Lib.assertTrue(maxMergeSectors > 0);
+
+		disk.setInterruptHandler(new Runnable() {
+			public void run() {
+				transferDone.V();
+			}
+		});
+
+		new KThread(new Runnable() {
+			public void run() {
+				dispatch();
+			}
+		}).setName("disk scheduler").fork();
+	}
+
+	/**
+	 * Read a run of sectors. Blocks until the transfer is done.
+	 *
+	 * @param sector the first sector to read.
+	 * @param count the number of sectors to read.
+	 * @param data the array to read the sectors into.
+	 * @param offset the offset in <tt>data</tt> of the first sector.
+	 */
+	public void readSectors(int sector, int count, byte[] data, int offset) {
+		submit(new DiskRequest(false, sector, count, data, offset));
+	}
+
+	/**
+	 * Write a run of sectors. Blocks until the transfer is done.
+	 *
+	 * @param sector the first sector to write.
+	 * @param count the number of sectors to write.
+	 * @param data the array holding the sectors.
+	 * @param offset the offset in <tt>data</tt> of the first sector.
+	 */
+	public void writeSectors(int sector, int count, byte[] data, int offset) {
+		submit(new DiskRequest(true, sector, count, data, offset));
+	}
+
+	/**
+	 * Return the underlying disk.
+	 *
+	 * @return the disk.
+	 */
+	public Disk getDisk() {
+		return disk;
+	}
+
+	/**
+	 * Print the scheduling statistics.
+	 */
+	public void print() {
+		System.out.println("Disk scheduler (" + policyName + "): requests "
+				+ requests + ", merged " + merges + ", transfers " + transfers
+				+ ", conflict waits " + conflictWaits + ", latency avg "
+				+ (requests == 0 ? 0 : totalLatency / requests) + ", max "
+				+ maxLatency);
+	}
+
+	private void submit(DiskRequest request) {
+		DiskRequest.Part part = request.parts.getFirst();
+		Lib.assertTrue(request.getSector() >= 0 && request.getCount() > 0
+				&& request.getSector() + request.getCount() <= disk
+						.getNumSectors());
+
+		lock.acquire();
+		while (hasConflict(request)) {
+			conflictWaits++;
+			conflictDone.sleep();
+		}
+
+		if (!merge(request)) {
+			policy.add(request);
+			index(request);
+			pending.add(request);
+			numQueued++;
+			requestQueued.wake();
+		}
+		lock.release();
+
+		part.done.P();
+	}
+
+	/**
+	 * Require lock. Test if a request conflicts with a queued or active one.
+	 */
+	private boolean hasConflict(DiskRequest request) {
+		for (DiskRequest other : pending) {
+			if (request.conflicts(other))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Require lock. Merge a new request into a queued request for the
+	 * sectors just before or just after it.
+	 *
+	 * @return <tt>true</tt> if the request was merged.
+	 */
+	private boolean merge(DiskRequest request) {
+		int end = request.getSector() + request.getCount();
+
+		DiskRequest before = queuedByEnd.get(key(request.isWrite(),
+				request.getSector()));
+		if (before != null
+				&& before.getCount() + request.getCount() <= maxMergeSectors) {
+			unindex(before);
+			policy.remove(before);
+			before.mergeBack(request);
+			policy.add(before);
+			index(before);
+			merges++;
+			return true;
+		}
+
+		DiskRequest after = queuedByStart.get(key(request.isWrite(), end));
+		if (after != null
+				&& after.getCount() + request.getCount() <= maxMergeSectors) {
+			unindex(after);
+			policy.remove(after);
+			after.mergeFront(request);
+			policy.add(after);
+			index(after);
+			merges++;
+			return true;
+		}
+
+		return false;
+	}
+
+	private void index(DiskRequest request) {
+		queuedByStart.put(key(request.isWrite(), request.getSector()), request);
+		queuedByEnd.put(key(request.isWrite(), request.getSector()
+				+ request.getCount()), request);
+	}
+
+	private void unindex(DiskRequest request) {
+		queuedByStart.remove(key(request.isWrite(), request.getSector()));
+		queuedByEnd.remove(key(request.isWrite(), request.getSector()
+				+ request.getCount()));
+	}
+
+	private static long key(boolean write, int sector) {
+		return (long) sector << 1 | (write ? 1 : 0);
+	}
+
+	/**
+	 * The scheduler thread. Sends the request chosen by the policy to the
+	 * disk, waits for the completion interrupt, and wakes the submitters.
+	 */
+	private void dispatch() {
+		while (true) {
+			lock.acquire();
+			while (numQueued == 0)
+				requestQueued.sleep();
+
+			DiskRequest request = policy.next(head);
+			Lib.assertTrue(request != null);
+			unindex(request);
+			numQueued--;
+			head = request.getSector() + request.getCount();
+			lock.release();
+
+			transfer(request);
+
+			long now = Machine.timer().getTime();
+
+			lock.acquire();
+			pending.remove(request);
+			transfers++;
+			for (DiskRequest.Part part : request.parts) {
+				long latency = now - part.time;
+				requests++;
+				totalLatency += latency;
+				maxLatency = Math.max(maxLatency, latency);
+			}
+			conflictDone.wakeAll();
+			lock.release();
+
+			for (DiskRequest.Part part : request.parts)
+				part.done.V();
+		}
+	}
+
+	/**
+	 * Do one transfer, through a bounce buffer if the request was merged.
+	 */
+	private void transfer(DiskRequest request) {
+		int sector = request.getSector(), count = request.getCount();
+
+		if (request.parts.size() == 1) {
+			DiskRequest.Part part = request.parts.getFirst();
+			if (request.isWrite())
+				disk.writeSectors(sector, count, part.data, part.offset);
+			else
+				disk.readSectors(sector, count, part.data, part.offset);
+			transferDone.P();
+			return;
+		}
+
+		byte[] buffer = new byte[count * sectorSize];
+		if (request.isWrite()) {
+			for (DiskRequest.Part part : request.parts)
+				System.arraycopy(part.data, part.offset, buffer,
+						(part.sector - sector) * sectorSize, part.count
+								* sectorSize);
+			disk.writeSectors(sector, count, buffer, 0);
+			transferDone.P();
+		}
+		else {
+			disk.readSectors(sector, count, buffer, 0);
+			transferDone.P();
+			for (DiskRequest.Part part : request.parts)
+				System.arraycopy(buffer, (part.sector - sector) * sectorSize,
+						part.data, part.offset, part.count * sectorSize);
+		}
+	}
+
+	/**
+	 * Test the disk. Writes patterns to the last two tracks, reads them back
+	 * one sector per thread so the reads can be merged, and restores what was
+	 * there. Then reads scattered sectors from many threads.
+	 */
+	public void selfTest() {
+		int perTrack = disk.getSectorsPerTrack();
+		final int count = Math.min(2 * perTrack, disk.getNumSectors());
+		final int first = disk.getNumSectors() - count;
+
+		byte[] saved = new byte[count * sectorSize];
+		readSectors(first, count, saved, 0);
+
+		byte[] pattern = new byte[count * sectorSize];
+		for (int i = 0; i < pattern.length; i++)
+			pattern[i] = (byte) (i * 7 + i / sectorSize);
+
+		long time = Machine.timer().getTime();
+		writeSectors(first, count, pattern, 0);
+		long runTime = Machine.timer().getTime() - time;
+
+		// sector by sector backwards from one thread, so nothing merges
+		final byte[] check = new byte[pattern.length];
+		time = Machine.timer().getTime();
+		for (int i = count - 1; i >= 0; i--)
+			readSectors(first + i, 1, check, i * sectorSize);
+		long singleTime = Machine.timer().getTime() - time;
+
+		for (int i = 0; i < pattern.length; i++)
+			Lib.assertTrue(check[i] == pattern[i]);
+
+		// one thread per sector, in reverse order
+		int mergesBefore = merges;
+		KThread[] readers = new KThread[count];
+		time = Machine.timer().getTime();
+		for (int i = count - 1; i >= 0; i--) {
+			final int j = i;
+			readers[i] = new KThread(new Runnable() {
+				public void run() {
+					readSectors(first + j, 1, check, j * sectorSize);
+				}
+			}).setName("disk test " + i);
+			readers[i].fork();
+		}
+		for (int i = 0; i < count; i++)
+			readers[i].join();
+		long parallelTime = Machine.timer().getTime() - time;
+
+		for (int i = 0; i < pattern.length; i++)
+			Lib.assertTrue(check[i] == pattern[i]);
+
+		writeSectors(first, count, saved, 0);
+
+		// scattered reads from many threads, which the policy can reorder
+		final int numSectors = disk.getNumSectors();
+		time = Machine.timer().getTime();
+		for (int i = 0; i < count; i++) {
+			final int j = i;
+			readers[i] = new KThread(new Runnable() {
+				public void run() {
+					byte[] buffer = new byte[sectorSize];
+					readSectors((int) ((j * 2654435761L) % numSectors), 1, buffer,
+							0);
+				}
+			}).setName("disk test " + i);
+			readers[i].fork();
+		}
+		for (int i = 0; i < count; i++)
+			readers[i].join();
+		long scatterTime = Machine.timer().getTime() - time;
+
+		Lib.debug(dbgDisk, "SynchDisk.selfTest: " + count + " sectors in "
+				+ runTime + " ticks as one transfer, " + singleTime
+				+ " ticks one at a time, " + parallelTime + " ticks from "
+				+ count + " threads (" + (merges - mergesBefore)
+				+ " merged), " + scatterTime + " ticks scattered");
+	}
+
+	private Disk disk;
+
+	private int sectorSize;
+
+	private String policyName;
+
+	private DiskSchedulingPolicy policy;
+
+	private int maxMergeSectors;
+
+	/** Queued requests by direction and first sector. */
+	private HashMap<Long, DiskRequest> queuedByStart = new HashMap<>();
+
+	/** Queued requests by direction and the sector just after their last. */
+	private HashMap<Long, DiskRequest> queuedByEnd = new HashMap<>();
+
+	/** Queued requests and the request being transferred. */
+	private LinkedList<DiskRequest> pending = new LinkedList<>();
+
+	private int numQueued = 0;
+
+	/** The sector just after the last one transferred. */
+	private int head = 0;
+
+	private Lock lock = new Lock();
+
+	/** Signalled when a request is queued. */
+	private Condition requestQueued = new Condition(lock);
+
+	/** Signalled when a transfer is done. */
+	private Condition conflictDone = new Condition(lock);
+
+	private Semaphore transferDone = new Semaphore(0);
+
+	private int requests = 0, merges = 0, transfers = 0, conflictWaits = 0;
+
+	private long totalLatency = 0, maxLatency = 0;
+
+	private static final char dbgDisk = 'd';
+}
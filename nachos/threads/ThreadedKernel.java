@@ -15,13 +15,22 @@ public class ThreadedKernel extends Kernel {
 
 	/**
 	 * Initialize this kernel. Creates a scheduler, the first thread, and an
-	 * alarm, and enables interrupts. Creates a file system if necessary.
+	 * alarm, and enables interrupts. Creates a synchronized disk, a file
+	 * system and a buffer cache in front of it if necessary.
 	 */
 	public void initialize(String[] args) {
 		// set scheduler
 		String schedulerName = Config.getString("ThreadedKernel.scheduler");
 		scheduler = (Scheduler) Lib.constructObject(schedulerName);
 
+		// start threading
+		new KThread(null);
+
+		alarm = new Alarm();
+
+		if (Machine.disk() != null)
+			disk = new SynchDisk(Machine.disk());
+
 		// set fileSystem
 		String fileSystemName = Config.getString("ThreadedKernel.fileSystem");
 		if (fileSystemName != null)
@@ -31,19 +40,27 @@ public class ThreadedKernel extends Kernel {
 		else
 			fileSystem = null;
 
-		// start threading
-		new KThread(null);
-
-		alarm = new Alarm();
+		if (fileSystem != null
+				&& Config.getBoolean("ThreadedKernel.bufferCache", false)) {
+			String policy = Config.getString("CachedFileSystem.policy", "2q");
+			Lib.assertTrue(policy.equals("lru") || policy.equals("2q"));
+			bufferCache = new CachedFileSystem(fileSystem, Config.getInteger(
+					"CachedFileSystem.blockSize", 1024), Config.getInteger(
+					"CachedFileSystem.numBlocks", 64), policy.equals("2q"),
+					Config.getInteger("CachedFileSystem.flushInterval", 20000),
+					Config.getInteger("CachedFileSystem.maxReadAhead", 8));
+			bufferCache.start();
+			fileSystem = bufferCache;
+		}
 
 		Machine.interrupt().enable();
 	}
 
 	/**
 	 * Test this kernel. Test the <tt>KThread</tt>, <tt>Semaphore</tt>,
-	 * <tt>SynchList</tt>, and <tt>ElevatorBank</tt> classes. Note that the
-	 * autograder never calls this method, so it is safe to put additional tests
-	 * here.
+	 * <tt>SynchList</tt>, <tt>SynchDisk</tt> and <tt>ElevatorBank</tt>
+	 * classes, and the file system. Note that the autograder never calls this
+	 * method, so it is safe to put additional tests here.
 	 */
 	public void selfTest() {
 		KThread.selfTest();
@@ -52,6 +69,15 @@ public class ThreadedKernel extends Kernel {
 //		Alarm.selfTest();
 //		Condition2.selfTest();
 //		Communicator.selfTest();
+		if (disk != null)
+			disk.selfTest();
+		FileSystem base = fileSystem;
+		if (bufferCache != null) {
+			bufferCache.selfTest();
+			base = bufferCache.getFileSystem();
+		}
+		if (base instanceof BufferedFileSystem)
+			((BufferedFileSystem) base).selfTest();
 		if (Machine.bank() != null) {
 			ElevatorBank.selfTest();
 		}
@@ -68,6 +94,18 @@ public class ThreadedKernel extends Kernel {
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
+		FileSystem base = fileSystem;
+		if (bufferCache != null) {
+			bufferCache.sync();
+			bufferCache.print();
+			base = bufferCache.getFileSystem();
+		}
+		if (base instanceof BufferedFileSystem) {
+			((BufferedFileSystem) base).sync();
+			((BufferedFileSystem) base).print();
+		}
+		if (disk != null)
+			disk.print();
 		Machine.halt();
 	}
 
@@ -77,9 +115,15 @@ public class ThreadedKernel extends Kernel {
 	/** Globally accessible reference to the alarm. */
 	public static Alarm alarm = null;
 
+	/** Globally accessible reference to the synchronized disk. */
+	public static SynchDisk disk = null;
+
 	/** Globally accessible reference to the file system. */
 	public static FileSystem fileSystem = null;
 
+	/** The buffer cache that is <tt>fileSystem</tt>, if there is one. */
+	public static CachedFileSystem bufferCache = null;
+
 	// dummy variables to make javac smarter
 	private static RoundRobinScheduler dummy1 = null;
 
@@ -0,0 +1,252 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.io.EOFException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A kernel-wide cache of parsed COFF executables, keyed by file name.
+ *
+ * <p>
+ * Parsing an executable reads the file header and every section header
+ * through the file system, and each of those reads costs simulated disk time.
+ * Processes that exec the same program share one parsed <tt>Coff</tt> (and
+ * the file handle its sections load pages from), so only the first exec pays
+ * for the parse. A cached entry is checked against the current length of the
+ * file before it is handed out, and is dropped when the file is created,
+ * opened, written or unlinked through the kernel, since a rewrite can keep
+ * the length.
+ *
+ * <p>
+ * Entries that no process is using are kept in LRU order and closed once there
+ * are more than <tt>capacity</tt> of them. A capacity of 0 disables caching;
+ * every <tt>acquire()</tt> then parses the file and every <tt>release()</tt>
+ * closes it.
+ */
+public class CoffCache {
+	/**
+	 * Allocate a new COFF cache.
+	 *
+	 * @param capacity the maximum number of executables to keep open while no
+	 * process is using them.
+	 */
+	public CoffCache(int capacity) {
+		Lib.assertTrue(capacity >= 0);
+		this.capacity = capacity;
+
+		// map executables only when the kernel reads the host directory
+		// directly, with no cache in between that could hold newer data;
+		// they are mapped read-only, so only the kernel's handles write them
+		if (Machine.mappedFileSystem() != null
+				&& ThreadedKernel.fileSystem == Machine.stubFileSystem())
+			mappedFileSystem = (MappedFileSystem) Machine.mappedFileSystem();
+		fileSystem = ThreadedKernel.fileSystem;
+	}
+
+	/**
+	 * Return a parsed executable for the named file, parsing it if it is not
+	 * cached or the cached copy is stale. The caller must hand the result back
+	 * with <tt>release()</tt> instead of closing it.
+	 *
+	 * @param name the name of the file containing the executable.
+	 * @return the parsed executable, or <tt>null</tt> if the file could not be
+	 * opened or is not a valid executable.
+	 */
+	public Coff acquire(String name) {
+		lock.acquire();
+
+		Entry entry = entries.get(name);
+		if (entry != null && entry.file.length() != entry.length) {
+			Lib.debug(dbgCache, "stale executable " + name);
+			drop(entry);
+			entry = null;
+		}
+
+		if (entry != null) {
+			hits++;
+		}
+		else {
+			misses++;
+			entry = parse(name);
+			if (entry != null && capacity > 0)
+				entries.put(name, entry);
+		}
+
+		Coff coff = null;
+		if (entry != null) {
+			entry.refCount++;
+			inUse.put(entry.coff, entry);
+			coff = entry.coff;
+		}
+
+		lock.release();
+		return coff;
+	}
+
+	/**
+	 * Give back an executable returned by <tt>acquire()</tt>. The executable
+	 * stays cached if the cache has room for it.
+	 *
+	 * @param coff the executable to release.
+	 */
+	public void release(Coff coff) {
+		lock.acquire();
+
+		Entry entry = inUse.get(coff);
+		Lib.assertTrue(entry != null && entry.refCount > 0);
+
+		if (--entry.refCount == 0) {
+			inUse.remove(coff);
+			if (entries.get(entry.name) != entry)
+				entry.coff.close();
+			else
+				trim();
+		}
+
+		lock.release();
+	}
+
+	/**
+	 * Return the open file an executable returned by <tt>acquire()</tt> was
+	 * parsed from. The file belongs to the executable; do not close it.
+	 *
+	 * @param coff an executable in use.
+	 * @return the file the executable was parsed from.
+	 */
+	public OpenFile getFile(Coff coff) {
+		lock.acquire();
+		Entry entry = inUse.get(coff);
+		Lib.assertTrue(entry != null);
+		lock.release();
+
+		return entry.file;
+	}
+
+	/**
+	 * Forget the cached copy of the named file, if any. Called when the file
+	 * is created, opened, written or unlinked. Processes already running the executable keep
+	 * using their copy until they release it.
+	 *
+	 * @param name the name of the file.
+	 */
+	public void invalidate(String name) {
+		lock.acquire();
+
+		Entry entry = entries.get(name);
+		if (entry != null)
+			drop(entry);
+
+		lock.release();
+	}
+
+	/**
+	 * Print the hit and miss counts of this cache.
+	 */
+	public void print() {
+		System.out.println("COFF cache: hits " + hits + ", misses " + misses);
+	}
+
+	/**
+	 * Open and parse the named executable. Require lock.
+	 */
+	private Entry parse(String name) {
+		OpenFile executable;
+		if (mappedFileSystem != null)
+			executable = mappedFileSystem.openReadOnly(name);
+		else
+			executable = fileSystem.open(name, false);
+		if (executable == null) {
+			Lib.debug(dbgCache, "\topen failed");
+			return null;
+		}
+
+		try {
+			return new Entry(name, new Coff(executable), executable);
+		}
+		catch (EOFException e) {
+			executable.close();
+			Lib.debug(dbgCache, "\tcoff load failed");
+			return null;
+		}
+	}
+
+	/**
+	 * Remove an entry from the cache, closing it if no process is using it.
+	 * Require lock.
+	 */
+	private void drop(Entry entry) {
+		entries.remove(entry.name);
+		if (entry.refCount == 0)
+			entry.coff.close();
+	}
+
+	/**
+	 * Close least recently used idle entries until at most <tt>capacity</tt>
+	 * idle entries remain. Require lock.
+	 */
+	private void trim() {
+		int idle = 0;
+		for (Entry entry : entries.values()) {
+			if (entry.refCount == 0)
+				idle++;
+		}
+
+		Iterator<Entry> i = entries.values().iterator();
+		while (idle > capacity && i.hasNext()) {
+			Entry entry = i.next();
+			if (entry.refCount == 0) {
+				Lib.debug(dbgCache, "evicting executable " + entry.name);
+				i.remove();
+				entry.coff.close();
+				idle--;
+			}
+		}
+	}
+
+	private static class Entry {
+		Entry(String name, Coff coff, OpenFile file) {
+			this.name = name;
+			this.coff = coff;
+			this.file = file;
+			this.length = file.length();
+		}
+
+		String name;
+
+		Coff coff;
+
+		/** The open executable; owned by <tt>coff</tt>. */
+		OpenFile file;
+
+		/** The length of the file when it was parsed. */
+		int length;
+
+		int refCount = 0;
+	}
+
+	private int capacity;
+
+	/** The file system executables are opened on. */
+	private FileSystem fileSystem;
+
+	/** The file system executables are mapped from instead, or null. */
+	private MappedFileSystem mappedFileSystem = null;
+
+	/** Cached entries by file name, least recently used first. */
+	private LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16,
+			0.75f, true);
+
+	/** Entries handed out and not yet released, by executable. */
+	private HashMap<Coff, Entry> inUse = new HashMap<>();
+
+	private Lock lock = new Lock();
+
+	private int hits = 0, misses = 0;
+
+	private static final char dbgCache = 'c';
+}
@@ -0,0 +1,257 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+/**
+ * Tracks which physical frames are free with a two-level bitmap.
+ *
+ * <p>
+ * Each bit of <tt>map</tt> is set when the corresponding frame is free, and
+ * each bit of <tt>summary</tt> is set when the corresponding word of
+ * <tt>map</tt> has at least one free frame. Allocating a single frame only
+ * looks at the first non-zero summary word and the map word it points to, so
+ * allocation and freeing take constant time for up to 4096 frames and never
+ * allocate memory. Contiguous runs of frames can be requested for callers
+ * that want physically adjacent pages.
+ *
+ * <p>
+ * The allocator does no locking of its own; callers must provide mutual
+ * exclusion.
+ */
+public class FrameAllocator {
+	/**
+	 * Allocate a new frame allocator with every frame free.
+	 *
+	 * @param numFrames the number of physical frames to manage.
+	 */
+	public FrameAllocator(int numFrames) {
+		Lib.assertTrue(numFrames >= 0);
+
+		this.numFrames = numFrames;
+		map = new long[(numFrames + 63) / 64];
+		summary = new long[(map.length + 63) / 64];
+
+		freeRange(0, numFrames);
+	}
+
+	/**
+	 * Allocate one free frame.
+	 *
+	 * @return the allocated frame, or -1 if every frame is in use.
+	 */
+	public int allocate() {
+		for (int s = 0; s < summary.length; s++) {
+			if (summary[s] != 0) {
+				int w = s * 64 + Long.numberOfTrailingZeros(summary[s]);
+				int ppn = w * 64 + Long.numberOfTrailingZeros(map[w]);
+				clear(ppn);
+				return ppn;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Allocate <tt>ppns.length</tt> frames at once, storing them in
+	 * <tt>ppns</tt>. Either every frame is allocated or none is.
+	 *
+	 * @param ppns the array to fill with the allocated frames.
+	 * @return <tt>true</tt> if the frames were allocated.
+	 */
+	public boolean allocate(int[] ppns) {
+		if (ppns.length > freeCount)
+			return false;
+
+		int n = 0;
+		for (int w = 0; w < map.length && n < ppns.length; w++) {
+			while (map[w] != 0 && n < ppns.length) {
+				int ppn = w * 64 + Long.numberOfTrailingZeros(map[w]);
+				clear(ppn);
+				ppns[n++] = ppn;
+			}
+		}
+
+		Lib.assertTrue(n == ppns.length);
+		return true;
+	}
+
+	/**
+	 * Allocate a run of physically contiguous frames whose first frame is a
+	 * multiple of <tt>alignment</tt>.
+	 *
+	 * @param count the number of frames in the run.
+	 * @param alignment the required alignment of the first frame.
+	 * @return the first frame of the run, or -1 if no such run is free.
+	 */
+	public int allocateContiguous(int count, int alignment) {
+		Lib.assertTrue(count > 0 && alignment > 0);
+
+		if (count > freeCount)
+			return -1;
+
+		int start = nextFree(0);
+		while (start != -1) {
+			start = (start + alignment - 1) / alignment * alignment;
+			if (start + count > numFrames)
+				break;
+
+			int end = nextUsed(start);
+			if (end - start >= count) {
+				for (int ppn = start; ppn < start + count; ppn++)
+					clear(ppn);
+				return start;
+			}
+			start = nextFree(end);
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Allocate a run of physically contiguous frames.
+	 *
+	 * @param count the number of frames in the run.
+	 * @return the first frame of the run, or -1 if no such run is free.
+	 */
+	public int allocateContiguous(int count) {
+		return allocateContiguous(count, 1);
+	}
+
+	/**
+	 * Return a frame to the free pool.
+	 *
+	 * @param ppn the frame to free; must be allocated.
+	 */
+	public void free(int ppn) {
+		Lib.assertTrue(ppn >= 0 && ppn < numFrames && !isFree(ppn));
+		set(ppn);
+	}
+
+	/**
+	 * Return a run of contiguous frames to the free pool.
+	 *
+	 * @param first the first frame of the run.
+	 * @param count the number of frames in the run.
+	 */
+	public void freeRange(int first, int count) {
+		for (int ppn = first; ppn < first + count; ppn++)
+			free(ppn);
+	}
+
+	/**
+	 * Test whether a frame is free.
+	 *
+	 * @param ppn the frame to test.
+	 * @return <tt>true</tt> if the frame is free.
+	 */
+	public boolean isFree(int ppn) {
+		return (map[ppn / 64] & (1L << (ppn % 64))) != 0;
+	}
+
+	/**
+	 * Return the number of free frames.
+	 *
+	 * @return the number of free frames.
+	 */
+	public int getFreeCount() {
+		return freeCount;
+	}
+
+	/**
+	 * Return the length of the longest run of contiguous free frames.
+	 *
+	 * @return the length of the longest free run.
+	 */
+	public int getLargestFreeRun() {
+		int largest = 0;
+		int start = nextFree(0);
+		while (start != -1) {
+			int end = nextUsed(start);
+			largest = Math.max(largest, end - start);
+			start = nextFree(end);
+		}
+		return largest;
+	}
+
+	/**
+	 * Return how fragmented the free frames are: 0 when they form a single
+	 * contiguous run, approaching 1 as they are scattered into single frames.
+	 *
+	 * @return the fragmentation of the free frames.
+	 */
+	public double getFragmentation() {
+		if (freeCount == 0)
+			return 0;
+		return 1.0 - (double) getLargestFreeRun() / freeCount;
+	}
+
+	/**
+	 * Print the free counts of this allocator.
+	 */
+	public void print() {
+		System.out.println("Frames: free " + freeCount + " of " + numFrames
+				+ ", largest free run " + getLargestFreeRun()
+				+ ", fragmentation "
+				+ String.format("%.2f", getFragmentation()));
+	}
+
+	/**
+	 * Return the first free frame at or after <tt>from</tt>, or -1.
+	 */
+	private int nextFree(int from) {
+		if (from >= numFrames)
+			return -1;
+
+		int w = from / 64;
+		long bits = map[w] & (-1L << (from % 64));
+		while (bits == 0) {
+			if (++w == map.length)
+				return -1;
+			bits = map[w];
+		}
+		return w * 64 + Long.numberOfTrailingZeros(bits);
+	}
+
+	/**
+	 * Return the first allocated frame at or after <tt>from</tt>, or
+	 * <tt>numFrames</tt> if every frame from there on is free.
+	 */
+	private int nextUsed(int from) {
+		if (from >= numFrames)
+			return numFrames;
+
+		int w = from / 64;
+		long bits = ~map[w] & (-1L << (from % 64));
+		while (bits == 0) {
+			if (++w == map.length)
+				return numFrames;
+			bits = ~map[w];
+		}
+		return Math.min(numFrames, w * 64 + Long.numberOfTrailingZeros(bits));
+	}
+
+	private void set(int ppn) {
+		int w = ppn / 64;
+		map[w] |= 1L << (ppn % 64);
+		summary[w / 64] |= 1L << (w % 64);
+		freeCount++;
+	}
+
+	private void clear(int ppn) {
+		int w = ppn / 64;
+		map[w] &= ~(1L << (ppn % 64));
+		if (map[w] == 0)
+			summary[w / 64] &= ~(1L << (w % 64));
+		freeCount--;
+	}
+
+	private int numFrames;
+
+	private int freeCount = 0;
+
+	/** One bit per frame, set when the frame is free. */
+	private long[] map;
+
+	/** One bit per word of <tt>map</tt>, set when the word is non-zero. */
+	private long[] summary;
+}
@@ -28,6 +28,12 @@ public class SynchConsole {
 			}
 		};
 		console.setInterruptHandlers(receiveHandler, sendHandler);
+
+		// a byte that arrived while the kernel was initializing had no
+		// handler to report it, and the console waits for it to be read
+		earlyByte = console.readByte();
+		if (earlyByte != -1)
+			receiveInterrupt();
 	}
 
 	/**
@@ -49,7 +55,13 @@ public class SynchConsole {
 			charAvailable = false;
 			readWait.P();
 
-			value = console.readByte();
+			if (earlyByte != -1) {
+				value = earlyByte;
+				earlyByte = -1;
+			}
+			else {
+				value = console.readByte();
+			}
 			Lib.assertTrue(value != -1);
 		}
 		else {
@@ -102,6 +114,9 @@ public class SynchConsole {
 
 	private boolean charAvailable = false;
 
+	/** A byte received before this was allocated, or -1. */
+	private int earlyByte;
+
 	private SerialConsole console;
 
 	private Lock readLock = new Lock();
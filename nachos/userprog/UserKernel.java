@@ -4,9 +4,6 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 
-import java.util.LinkedList;
-import java.util.Queue;
-
 /**
  * A kernel that can support multiple user processes.
  */
@@ -34,6 +31,9 @@ public class UserKernel extends ThreadedKernel {
 		});
 
 		initFreePage();
+
+		coffCache = new CoffCache(Config.getInteger("UserKernel.coffCacheSize",
+				4));
 	}
 
 	/**
@@ -107,26 +107,33 @@ public class UserKernel extends ThreadedKernel {
 	}
 
 	private void initFreePage() {
-		freePage = new LinkedList<>();
 		numPhyPages = Machine.processor().getNumPhysPages();
-		for(int i = 0; i < numPhyPages; i++)
-			freePage.add(i);
-
-
+		freePage = new FrameAllocator(numPhyPages);
 	}
 
-	/*
-
+	/**
+	 * Take a free physical page. There must be one.
+	 * @return the ppn of the page
 	 */
 	public static int getFreePage() {
-		Lib.assertTrue(freePage != null && !freePage.isEmpty());
-		int ppn = freePage.poll();
+		Lib.assertTrue(freePage != null && freePage.getFreeCount() > 0);
+		int ppn = freePage.allocate();
 		return ppn;
 	}
 
+	/**
+	 * Take ppns.length free physical pages at once
+	 * @param ppns filled with the allocated ppns
+	 * @return false, and allocate nothing, if there are not enough free pages
+	 */
+	public static boolean getFreePages(int[] ppns) {
+		Lib.assertTrue(freePage != null);
+		return freePage.allocate(ppns);
+	}
+
 	public static int getFreePageSize() {
 		Lib.assertTrue(freePage != null);
-		return freePage.size();
+		return freePage.getFreeCount();
 	}
 
 	/**
@@ -135,23 +142,28 @@ public class UserKernel extends ThreadedKernel {
 	 */
 	public static void returnFreePage(int ppn) {
 		Lib.assertTrue(freePage != null);
-		freePage.add(ppn);
+		freePage.free(ppn);
 	}
 
 	/**
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
+		coffCache.print();
+		freePage.print();
 		super.terminate();
 	}
 
 	/** Globally accessible reference to the synchronized console. */
 	public static SynchConsole console;
 
+	/** Globally accessible cache of parsed executables. */
+	public static CoffCache coffCache;
+
 	// dummy variables to make javac smarter
 	private static Coff dummy1 = null;
 
-	protected static Queue<Integer> freePage = null;
+	protected static FrameAllocator freePage = null;
 
 	protected static int numPhyPages = 0;
 
@@ -5,7 +5,6 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
-import java.io.EOFException;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -260,17 +259,8 @@ public class UserProcess {
 	public boolean load(String name, String[] args) {
 		Lib.debug(dbgProcess, "UserProcess.load(\"" + name + "\")");
 
-		OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
-		if (executable == null) {
-			Lib.debug(dbgProcess, "\topen failed");
-			return false;
-		}
-
-		try {
-			coff = new Coff(executable);
-		}
-		catch (EOFException e) {
-			executable.close();
+		coff = UserKernel.coffCache.acquire(name);
+		if (coff == null) {
 			Lib.debug(dbgProcess, "\tcoff load failed");
 			return false;
 		}
@@ -280,7 +270,7 @@ public class UserProcess {
 		for (int s = 0; s < coff.getNumSections(); s++) {
 			CoffSection section = coff.getSection(s);
 			if (section.getFirstVPN() != numPages) {
-				coff.close();
+				releaseCoff();
 				Lib.debug(dbgProcess, "\tfragmented executable");
 				return false;
 			}
@@ -296,7 +286,7 @@ public class UserProcess {
 			argsSize += 4 + argv[i].length + 1;
 		}
 		if (argsSize > pageSize) {
-			coff.close();
+			releaseCoff();
 			Lib.debug(dbgProcess, "\targuments too long");
 			return false;
 		}
@@ -304,6 +294,9 @@ public class UserProcess {
 		// program counter initially points at the program entry point
 		initialPC = coff.getEntryPoint();
 
+		// next comes the heap, empty until the program grows it
+		numPages += heapPages;
+
 		// next comes the stack; stack pointer initially points to top of it
 		numPages += stackPages;
 		initialSP = numPages * pageSize;
@@ -342,9 +335,10 @@ public class UserProcess {
 	 * @return <tt>true</tt> if the sections were successfully loaded.
 	 */
 	public boolean loadSections() {
+		int[] ppns = new int[numPages];
 		mutex.acquire();
-		if (numPages > UserKernel.getFreePageSize()) {
-			coff.close();
+		if (!UserKernel.getFreePages(ppns)) {
+			releaseCoff();
 			Lib.debug(dbgProcess, "\tinsufficient physical memory");
 			mutex.release();
 			return false;
@@ -360,8 +354,8 @@ public class UserProcess {
 
 			// coff
 			for (int i = 0; i < section.getLength(); i++) {
-				int ppn = UserKernel.getFreePage();
 				int vpn = section.getFirstVPN() + i;
+				int ppn = ppns[vpn];
 				section.loadPage(i, ppn);
 				if(section.isReadOnly())
 					pageTable[vpn] = new TranslationEntry(vpn, ppn, true, true, false, false);
@@ -373,7 +367,7 @@ public class UserProcess {
 
 		//stack, and argument
 		for(int vpn = numPages - stackPages - 1; vpn < numPages; vpn++) {
-			int ppn = UserKernel.getFreePage();
+			int ppn = ppns[vpn];
 			pageTable[vpn] = new TranslationEntry(vpn, ppn, true, false, false, false);
 		}
 
@@ -434,6 +428,10 @@ public class UserProcess {
 		return new UserProcess();
 	}
 
+	public int getPID() {
+		return pid;
+	}
+
 	public int handleExec(int nameAddr, int argc, int argvAddr) {
 		String name = readVirtualMemoryString(nameAddr, 256);
 		if(argc < 0) return -1;
@@ -517,6 +515,7 @@ public class UserProcess {
 		String name = readVirtualMemoryString(nameAddr, 256);
 		if(name == null) return -1;
 
+		UserKernel.coffCache.invalidate(name);
 		OpenFile f = UserKernel.fileSystem.open(name, true);
 		if(f == null) return  -1;
 
@@ -532,6 +531,8 @@ public class UserProcess {
 		String name = readVirtualMemoryString(nameAddr, 256);
 		if(name == null) return -1;
 
+		// the file may be rewritten in place, at the same length
+		UserKernel.coffCache.invalidate(name);
 		OpenFile f = UserKernel.fileSystem.open(name, false);
 		if(f == null) return  -1;
 
@@ -584,6 +585,9 @@ public class UserProcess {
 		OpenFile f = fileTable[fd];
 		if(f == null) return -1;
 
+		// an exec since the open may have cached the file again
+		UserKernel.coffCache.invalidate(f.getName());
+
 		byte[] localBuffer = new byte[pageSize];
 		int byteWrite = 0;
 		int i = 0, j = 0;
@@ -626,6 +630,7 @@ public class UserProcess {
 
 		// the file exists in filesystem
 		f.close();
+		UserKernel.coffCache.invalidate(f.getName());
 		UserKernel.fileSystem.remove(f.getName());
 
 		return 0;
@@ -636,6 +641,9 @@ public class UserProcess {
 			syscallRead = 6, syscallWrite = 7, syscallClose = 8,
 			syscallUnlink = 9;
 
+	/** Handled by <tt>VMProcess</tt>, which gives a process a heap. */
+	protected static final int syscallSbrk = 13;
+
 	/**
 	 * Handle a syscall exception. Called by <tt>handleException()</tt>. The
 	 * <i>syscall</i> argument identifies which syscall the user executed:
@@ -806,8 +814,18 @@ public class UserProcess {
 			if(fileTable[i] != null)
 				fileTable[i].close();
 		}
-		if(coff != null)
-			coff.close();
+		releaseCoff();
+	}
+
+	/**
+	 * Hand the executable back to the kernel's COFF cache. The process must
+	 * not load any more pages from it.
+	 */
+	protected void releaseCoff() {
+		if (coff != null) {
+			UserKernel.coffCache.release(coff);
+			coff = null;
+		}
 	}
 
 	/** The program being run by this process. */
@@ -819,8 +837,11 @@ public class UserProcess {
 	/** The number of contiguous pages occupied by the program. */
 	protected int numPages;
 
+	/** The number of pages reserved for the program's heap. */
+	protected int heapPages = 0;
+
 	/** The number of pages in the program's stack. */
-	protected final int stackPages = 8;
+	protected int stackPages = 8;
 
 	public UThread thisThread = null;
 
@@ -0,0 +1,162 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * Adaptive replacement (ARC), in its clock form CAR, since the kernel only
+ * sees pages through their used bits and not on every access.
+ *
+ * <p>
+ * Resident pages are kept in two clocks: <tt>t1</tt> for pages referenced
+ * once since they were loaded, and <tt>t2</tt> for pages referenced again.
+ * A page found referenced in <tt>t1</tt> moves to <tt>t2</tt>, so a scan
+ * that touches each page once only churns <tt>t1</tt> and leaves hot pages
+ * in <tt>t2</tt> alone. The history lists <tt>b1</tt> and <tt>b2</tt>
+ * remember pages recently evicted from each clock. A fault on a page in
+ * <tt>b1</tt> grows the target size <tt>p</tt> of <tt>t1</tt>, and a fault
+ * on a page in <tt>b2</tt> shrinks it.
+ */
+public class ARCPolicy implements PageReplacementPolicy {
+	/**
+	 * Allocate a new ARC policy.
+	 */
+	public ARCPolicy() {
+		c = Machine.processor().getNumPhysPages();
+	}
+
+	public void pageLoaded(int ppn) {
+		lock.acquire();
+		VMKernel.lockFrame(ppn);
+		boolean loaded = VMKernel.getVMProcess(ppn) != null
+				&& !VMKernel.isInTransit(ppn);
+		long key = loaded ? VMProcess.pageKey(ppn) : 0;
+		VMKernel.unlockFrame(ppn);
+
+		if (loaded && !t1.contains(ppn) && !t2.contains(ppn)) {
+			if (b1.remove(key)) {
+				p = Math.min(p + Math.max(1, b2.size() / (b1.size() + 1)), c);
+				t2.add(ppn);
+				b1Hits++;
+			}
+			else if (b2.remove(key)) {
+				p = Math.max(p - Math.max(1, b1.size() / (b2.size() + 1)), 0);
+				t2.add(ppn);
+				b2Hits++;
+			}
+			else {
+				if (t1.size() + b1.size() >= c && !b1.isEmpty())
+					removeFirst(b1);
+				else if (t1.size() + t2.size() + b1.size() + b2.size() >= 2 * c
+						&& !b2.isEmpty())
+					removeFirst(b2);
+				t1.add(ppn);
+			}
+		}
+		lock.release();
+	}
+
+	public void pageFreed(int ppn) {
+		lock.acquire();
+		t1.remove(ppn);
+		t2.remove(ppn);
+		lock.release();
+	}
+
+	public int findVictim() {
+		lock.acquire();
+		for (int i = 0; i < 4 * c; i++) {
+			boolean fromT1 = !t1.isEmpty() && (t1.size() >= Math.max(1, p)
+					|| t2.isEmpty());
+			LinkedHashSet<Integer> clock = fromT1 ? t1 : t2;
+			if (clock.isEmpty())
+				break;
+
+			int ppn = removeFirst(clock);
+			scanned++;
+
+			VMKernel.lockFrame(ppn);
+			if (!VMKernel.isEvictable(ppn)) {
+				// pinned or in transit: look again later; free: forget it
+				if (VMKernel.getVMProcess(ppn) != null)
+					clock.add(ppn);
+			}
+			else if (VMProcess.testAndClearUsed(ppn)) {
+				t2.add(ppn);
+			}
+			else {
+				long key = VMProcess.pageKey(ppn);
+				VMProcess.startEviction(ppn);
+				VMKernel.unlockFrame(ppn);
+				LinkedHashSet<Long> history = fromT1 ? b1 : b2;
+				history.add(key);
+				if (history.size() > c)
+					removeFirst(history);
+				evictions++;
+				lock.release();
+				return ppn;
+			}
+			VMKernel.unlockFrame(ppn);
+		}
+		lock.release();
+
+		waits++;
+		return -1;
+	}
+
+	public int[] getCandidates(int count) {
+		lock.acquire();
+		boolean fromT1 = !t1.isEmpty() && (t1.size() >= Math.max(1, p)
+				|| t2.isEmpty());
+		int[] candidates = new int[Math.min(count, t1.size() + t2.size())];
+		int i = 0;
+		for (int ppn : fromT1 ? t1 : t2) {
+			if (i == candidates.length)
+				break;
+			candidates[i++] = ppn;
+		}
+		for (int ppn : fromT1 ? t2 : t1) {
+			if (i == candidates.length)
+				break;
+			candidates[i++] = ppn;
+		}
+		lock.release();
+		return candidates;
+	}
+
+	public void print() {
+		System.out.println("ARC: evictions " + evictions + ", frames scanned "
+				+ scanned + ", history hits " + b1Hits + "/" + b2Hits
+				+ ", target p " + p + ", t1 " + t1.size() + ", t2 " + t2.size()
+				+ ", waits " + waits);
+	}
+
+	private static <T> T removeFirst(LinkedHashSet<T> set) {
+		Iterator<T> i = set.iterator();
+		T first = i.next();
+		i.remove();
+		return first;
+	}
+
+	/** The number of frames. */
+	private int c;
+
+	/** The target size of t1. */
+	private int p = 0;
+
+	/** Resident pages by frame, in clock order. */
+	private LinkedHashSet<Integer> t1 = new LinkedHashSet<>(),
+			t2 = new LinkedHashSet<>();
+
+	/** Recently evicted pages by <tt>VMProcess.pageKey</tt>, oldest first. */
+	private LinkedHashSet<Long> b1 = new LinkedHashSet<>(),
+			b2 = new LinkedHashSet<>();
+
+	/** Protects the lists and p. */
+	private Lock lock = new Lock();
+
+	private int evictions = 0, scanned = 0, waits = 0, b1Hits = 0, b2Hits = 0;
+}
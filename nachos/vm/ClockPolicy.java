@@ -0,0 +1,73 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * The clock algorithm: a single hand sweeps all frames, clearing used bits,
+ * and evicts the first page whose used bit is already clear.
+ */
+public class ClockPolicy implements PageReplacementPolicy {
+	/**
+	 * Allocate a new clock policy.
+	 */
+	public ClockPolicy() {
+		numPhysPages = Machine.processor().getNumPhysPages();
+	}
+
+	public void pageLoaded(int ppn) {
+	}
+
+	public void pageFreed(int ppn) {
+	}
+
+	/**
+	 * Sweep at most twice around memory; the second sweep finds every page
+	 * whose used bit the first one cleared.
+	 */
+	public int findVictim() {
+		lock.acquire();
+		for (int i = 0; i <= 2 * numPhysPages; i++) {
+			hand = (hand + 1) % numPhysPages;
+			int ppn = hand;
+			scanned++;
+
+			VMKernel.lockFrame(ppn);
+			if (VMKernel.isEvictable(ppn) && !VMProcess.testAndClearUsed(ppn)) {
+				VMProcess.startEviction(ppn);
+				VMKernel.unlockFrame(ppn);
+				evictions++;
+				lock.release();
+				return ppn;
+			}
+			VMKernel.unlockFrame(ppn);
+		}
+		lock.release();
+
+		waits++;
+		return -1;
+	}
+
+	public int[] getCandidates(int count) {
+		lock.acquire();
+		int[] candidates = new int[Math.min(count, numPhysPages)];
+		for (int i = 0; i < candidates.length; i++)
+			candidates[i] = (hand + 1 + i) % numPhysPages;
+		lock.release();
+		return candidates;
+	}
+
+	public void print() {
+		System.out.println("Clock: evictions " + evictions + ", frames scanned "
+				+ scanned + ", waits " + waits);
+	}
+
+	private int numPhysPages;
+
+	private int hand = 0;
+
+	/** Protects the hand. */
+	private Lock lock = new Lock();
+
+	private int evictions = 0, scanned = 0, waits = 0;
+}
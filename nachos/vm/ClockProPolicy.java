@@ -0,0 +1,322 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * The CLOCK-Pro algorithm. Resident pages are either hot (reused within a
+ * short distance) or cold. A newly loaded page is cold and starts a test
+ * period; if it is referenced again before the test ends it becomes hot.
+ * Cold pages evicted during their test period stay in the clock as
+ * non-resident entries, so a fault on one of them is recognized as a short
+ * reuse distance: the page comes back hot and the target number of cold
+ * frames grows. Test periods that end without reuse shrink it.
+ *
+ * <p>
+ * Three hands sweep one circular list. <tt>handCold</tt> evicts unreferenced
+ * cold pages, <tt>handHot</tt> turns unreferenced hot pages cold when there
+ * are too many hot pages and ends the test periods it passes, and
+ * <tt>handTest</tt> ends test periods when there are too many non-resident
+ * entries. A scan loads each page once, so its pages stay cold and are
+ * evicted without disturbing the hot pages.
+ */
+public class ClockProPolicy implements PageReplacementPolicy {
+	/**
+	 * Allocate a new CLOCK-Pro policy.
+	 */
+	public ClockProPolicy() {
+		m = Machine.processor().getNumPhysPages();
+		coldTarget = Math.max(1, m / 2);
+		frames = new Node[m];
+	}
+
+	public void pageLoaded(int ppn) {
+		lock.acquire();
+		VMKernel.lockFrame(ppn);
+		boolean loaded = VMKernel.getVMProcess(ppn) != null
+				&& !VMKernel.isInTransit(ppn);
+		long key = loaded ? VMProcess.pageKey(ppn) : 0;
+		VMKernel.unlockFrame(ppn);
+
+		if (loaded && (frames[ppn] == null || frames[ppn].key != key)) {
+			if (frames[ppn] != null)
+				forget(frames[ppn]);
+
+			Node node = nonResident.remove(key);
+			if (node != null) {
+				// reused during its test period
+				remove(node);
+				coldTarget = Math.min(coldTarget + 1, m - 1);
+				node.hot = true;
+				node.test = false;
+				numHot++;
+				testHits++;
+			}
+			else {
+				node = new Node(key);
+				node.test = true;
+				numCold++;
+			}
+			node.ppn = ppn;
+			frames[ppn] = node;
+			insertAtHead(node);
+
+			while (numHot > m - coldTarget && runHandHot())
+				;
+		}
+		lock.release();
+	}
+
+	public void pageFreed(int ppn) {
+		lock.acquire();
+		if (frames[ppn] != null)
+			forget(frames[ppn]);
+		lock.release();
+	}
+
+	public int findVictim() {
+		lock.acquire();
+		for (int i = 0; i < 4 * m; i++) {
+			if (numCold == 0 && !runHandHot())
+				break;
+
+			Node node = nextCold();
+			if (node == null)
+				break;
+			int ppn = node.ppn;
+			scanned++;
+
+			VMKernel.lockFrame(ppn);
+			if (!VMKernel.isEvictable(ppn)) {
+				VMKernel.unlockFrame(ppn);
+				if (VMKernel.getVMProcess(ppn) == null)
+					forget(node);
+			}
+			else if (VMProcess.testAndClearUsed(ppn)) {
+				VMKernel.unlockFrame(ppn);
+				remove(node);
+				if (node.test) {
+					node.hot = true;
+					node.test = false;
+					numCold--;
+					numHot++;
+					promotions++;
+				}
+				else {
+					node.test = true;
+				}
+				insertAtHead(node);
+				while (numHot > m - coldTarget && runHandHot())
+					;
+			}
+			else {
+				VMProcess.startEviction(ppn);
+				VMKernel.unlockFrame(ppn);
+				frames[ppn] = null;
+				numCold--;
+				if (node.test) {
+					node.ppn = -1;
+					nonResident.put(node.key, node);
+					while (nonResident.size() > m)
+						runHandTest();
+				}
+				else {
+					remove(node);
+				}
+				evictions++;
+				lock.release();
+				return ppn;
+			}
+		}
+		lock.release();
+
+		waits++;
+		return -1;
+	}
+
+	public int[] getCandidates(int count) {
+		lock.acquire();
+		int[] candidates = new int[Math.min(count, numCold)];
+		int found = 0;
+		Node node = handCold;
+		for (int i = 0; i < size && found < candidates.length; i++) {
+			if (!node.hot && node.ppn != -1)
+				candidates[found++] = node.ppn;
+			node = node.next;
+		}
+		lock.release();
+		return Arrays.copyOf(candidates, found);
+	}
+
+	public void print() {
+		System.out.println("CLOCK-Pro: evictions " + evictions
+				+ ", frames scanned " + scanned + ", promotions " + promotions
+				+ ", demotions " + demotions + ", test hits " + testHits
+				+ ", cold target " + coldTarget + ", waits " + waits);
+	}
+
+	/**
+	 * Move <tt>handCold</tt> to the next resident cold page and return it,
+	 * advancing the hand past it.
+	 */
+	private Node nextCold() {
+		for (int i = 0; i < size && handCold != null; i++) {
+			Node node = handCold;
+			handCold = node.next;
+			if (!node.hot && node.ppn != -1)
+				return node;
+		}
+		return null;
+	}
+
+	/**
+	 * Advance <tt>handHot</tt> until it turns one hot page cold, ending the
+	 * test periods of the cold pages it passes.
+	 *
+	 * @return <tt>false</tt> if no hot page could be turned cold.
+	 */
+	private boolean runHandHot() {
+		for (int i = 0; i < 2 * size && handHot != null; i++) {
+			Node node = handHot;
+			handHot = node.next;
+
+			if (!node.hot) {
+				if (node.test)
+					endTest(node);
+				continue;
+			}
+
+			VMKernel.lockFrame(node.ppn);
+			boolean demote = VMKernel.isEvictable(node.ppn)
+					&& !VMProcess.testAndClearUsed(node.ppn);
+			VMKernel.unlockFrame(node.ppn);
+
+			if (demote) {
+				node.hot = false;
+				numHot--;
+				numCold++;
+				demotions++;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Advance <tt>handTest</tt> until it ends one test period.
+	 */
+	private void runHandTest() {
+		for (int i = 0; i < size && handTest != null; i++) {
+			Node node = handTest;
+			handTest = node.next;
+			if (!node.hot && node.test) {
+				endTest(node);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * A cold page was not reused during its test period.
+	 */
+	private void endTest(Node node) {
+		node.test = false;
+		coldTarget = Math.max(coldTarget - 1, 1);
+		if (node.ppn == -1) {
+			nonResident.remove(node.key);
+			remove(node);
+		}
+	}
+
+	/**
+	 * Drop a resident page from the clock without keeping any history.
+	 */
+	private void forget(Node node) {
+		frames[node.ppn] = null;
+		if (node.hot)
+			numHot--;
+		else
+			numCold--;
+		remove(node);
+	}
+
+	/**
+	 * Insert a node just behind <tt>handHot</tt>, so that it is the last
+	 * node the hands reach.
+	 */
+	private void insertAtHead(Node node) {
+		if (handHot == null) {
+			node.next = node.prev = node;
+			handHot = handCold = handTest = node;
+		}
+		else {
+			node.next = handHot;
+			node.prev = handHot.prev;
+			handHot.prev.next = node;
+			handHot.prev = node;
+		}
+		size++;
+	}
+
+	/**
+	 * Unlink a node, moving any hand that points to it to the next node.
+	 */
+	private void remove(Node node) {
+		if (node.next == node) {
+			handHot = handCold = handTest = null;
+		}
+		else {
+			if (handHot == node)
+				handHot = node.next;
+			if (handCold == node)
+				handCold = node.next;
+			if (handTest == node)
+				handTest = node.next;
+			node.prev.next = node.next;
+			node.next.prev = node.prev;
+		}
+		node.next = node.prev = null;
+		size--;
+	}
+
+	private static class Node {
+		Node(long key) {
+			this.key = key;
+		}
+
+		/** The page, as a <tt>VMProcess.pageKey</tt>. */
+		long key;
+
+		/** The frame holding the page, or -1 if it is not resident. */
+		int ppn = -1;
+
+		boolean hot = false, test = false;
+
+		Node prev, next;
+	}
+
+	/** The number of frames. */
+	private int m;
+
+	/** The target number of resident cold pages. */
+	private int coldTarget;
+
+	/** The resident node of each frame. */
+	private Node[] frames;
+
+	/** Cold pages evicted during their test period, by key. */
+	private HashMap<Long, Node> nonResident = new HashMap<>();
+
+	private Node handHot = null, handCold = null, handTest = null;
+
+	private int size = 0, numHot = 0, numCold = 0;
+
+	/** Protects the clock. */
+	private Lock lock = new Lock();
+
+	private int evictions = 0, scanned = 0, promotions = 0, demotions = 0,
+			testHits = 0, waits = 0;
+}
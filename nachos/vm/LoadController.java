@@ -0,0 +1,170 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.util.LinkedList;
+
+/**
+ * Estimates the working set of every process and keeps the system out of
+ * thrashing by deactivating whole processes.
+ *
+ * <p>
+ * A sampler thread wakes every <tt>interval</tt> ticks (at a timer
+ * interrupt). It moves each resident page's used bit into a soft reference
+ * bit, recording the time, so the working set of a process is the set of
+ * pages it referenced in the last <tt>window</tt> ticks of its own virtual
+ * time (the ticks it spent running). If more than
+ * <tt>faultThreshold</tt> page faults happened in the last interval and the
+ * working sets of the active processes do not fit in memory, the most
+ * recently activated process is suspended and its resident pages are
+ * swapped out. A suspended process blocks at its next page fault. Suspended
+ * processes are resumed in the order they were suspended, once their
+ * working set fits next to the active ones, or once no process faults at all
+ * in an interval, which also covers active processes that are all blocked.
+ */
+public class LoadController {
+	/**
+	 * Allocate a new load controller.
+	 *
+	 * @param interval the number of ticks between samples.
+	 * @param window the working-set window, in ticks.
+	 * @param faultThreshold the number of faults per interval above which
+	 * the system is considered to be thrashing.
+	 */
+	public LoadController(long interval, long window, int faultThreshold) {
+		Lib.assertTrue(interval > 0 && window > 0 && faultThreshold >= 0);
+
+		this.interval = interval;
+		this.window = window;
+		this.faultThreshold = faultThreshold;
+		numPhysPages = Machine.processor().getNumPhysPages();
+	}
+
+	/**
+	 * Fork the sampler thread.
+	 */
+	public void start() {
+		new KThread(new Runnable() {
+			public void run() {
+				while (true) {
+					ThreadedKernel.alarm.waitUntil(interval);
+					sample();
+				}
+			}
+		}).setName("working-set sampler").fork();
+	}
+
+	/**
+	 * Start tracking a process whose page table has been set up.
+	 *
+	 * @param process the new process.
+	 */
+	public void register(VMProcess process) {
+		lock.acquire();
+		active.add(process);
+		lock.release();
+	}
+
+	/**
+	 * Stop tracking a process that is exiting.
+	 *
+	 * @param process the exiting process.
+	 */
+	public void unregister(VMProcess process) {
+		lock.acquire();
+		active.remove(process);
+		if (suspended.remove(process))
+			resumed.wakeAll();
+		lock.release();
+	}
+
+	/**
+	 * Count a page fault, and block the faulting process while it is
+	 * suspended.
+	 *
+	 * @param process the process that faulted.
+	 */
+	public void pageFault(VMProcess process) {
+		lock.acquire();
+		faults++;
+		while (suspended.contains(process))
+			resumed.sleep();
+		lock.release();
+	}
+
+	/**
+	 * Print the load control statistics.
+	 */
+	public void print() {
+		System.out.println("Load control: samples " + samples
+				+ ", suspensions " + suspensions + ", resumptions " + resumptions
+				+ ", largest total working set " + largestWorkingSet);
+	}
+
+	private void sample() {
+		VMProcess victim = null;
+
+		lock.acquire();
+		samples++;
+
+		for (int ppn = 0; ppn < numPhysPages; ppn++)
+			VMProcess.sampleFrame(ppn);
+
+		int activeSize = 0;
+		for (VMProcess process : active)
+			activeSize += process.sampleWorkingSet(window);
+		largestWorkingSet = Math.max(largestWorkingSet, activeSize);
+
+		if (faults > faultThreshold && activeSize > numPhysPages
+				&& active.size() > 1) {
+			victim = active.removeLast();
+			suspended.add(victim);
+			suspensions++;
+			Lib.debug(dbgVM, "suspend process " + victim.getPID()
+					+ ", working sets " + activeSize + ", faults " + faults);
+		}
+		else if (!suspended.isEmpty()) {
+			VMProcess next = suspended.getFirst();
+			if (activeSize + next.getWorkingSetSize() <= numPhysPages
+					|| faults == 0) {
+				suspended.removeFirst();
+				active.add(next);
+				resumptions++;
+				resumed.wakeAll();
+				Lib.debug(dbgVM, "resume process " + next.getPID());
+			}
+		}
+		faults = 0;
+		lock.release();
+
+		if (victim != null)
+			victim.swapOut();
+	}
+
+	private long interval, window;
+
+	private int faultThreshold;
+
+	private int numPhysPages;
+
+	/** Processes allowed to run, least recently activated first. */
+	private LinkedList<VMProcess> active = new LinkedList<>();
+
+	/** Suspended processes, least recently suspended first. */
+	private LinkedList<VMProcess> suspended = new LinkedList<>();
+
+	/** Page faults since the last sample. */
+	private int faults = 0;
+
+	private Lock lock = new Lock();
+
+	/** Signalled when a process is resumed. */
+	private Condition resumed = new Condition(lock);
+
+	private int samples = 0, suspensions = 0, resumptions = 0,
+			largestWorkingSet = 0;
+
+	private static final char dbgVM = 'v';
+}
@@ -0,0 +1,117 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * A kernel thread that keeps a reserve of free frames, so page faults can
+ * usually take a free frame instead of evicting one themselves.
+ *
+ * <p>
+ * The daemon sleeps until the number of free frames drops below the low
+ * watermark. It then reclaims victims chosen by the replacement policy until
+ * the high watermark is reached, and writes back the dirty pages that the
+ * policy will examine next, so that they can later be reclaimed without a
+ * swap write. A fault that still finds no free frame evicts one itself.
+ */
+public class PageOutDaemon {
+	/**
+	 * Allocate a new page-out daemon.
+	 *
+	 * @param lowWatermark wake up when fewer frames than this are free.
+	 * @param highWatermark reclaim frames until this many are free.
+	 */
+	public PageOutDaemon(int lowWatermark, int highWatermark) {
+		Lib.assertTrue(lowWatermark > 0 && lowWatermark <= highWatermark);
+
+		this.lowWatermark = lowWatermark;
+		this.highWatermark = highWatermark;
+	}
+
+	/**
+	 * Fork the daemon thread.
+	 */
+	public void start() {
+		new KThread(new Runnable() {
+			public void run() {
+				pageOut();
+			}
+		}).setName("page-out daemon").fork();
+	}
+
+	/**
+	 * Wake the daemon if free frames have dropped below the low watermark.
+	 * Called after a frame is allocated.
+	 */
+	public void checkWatermark() {
+		if (UserKernel.getFreePageSize() >= lowWatermark)
+			return;
+
+		lock.acquire();
+		belowWatermark.wake();
+		lock.release();
+	}
+
+	/**
+	 * Print the number of frames reclaimed and pages cleaned by the daemon.
+	 */
+	public void print() {
+		System.out.println("Page-out daemon: reclaimed " + reclaimed
+				+ ", cleaned " + cleaned + ", watermarks " + lowWatermark + "/"
+				+ highWatermark);
+	}
+
+	private void pageOut() {
+		while (true) {
+			lock.acquire();
+			while (UserKernel.getFreePageSize() >= lowWatermark)
+				belowWatermark.sleep();
+			lock.release();
+
+			Lib.debug(dbgVM, "page-out daemon: "
+					+ UserKernel.getFreePageSize() + " free frames");
+
+			while (UserKernel.getFreePageSize() < highWatermark) {
+				int ppn = VMKernel.findVictim();
+				if (ppn == -1) {
+					// frames are still free, so wait for one that is busy
+					VMKernel.waitForFrameChange();
+					continue;
+				}
+
+				VMProcess.evict(ppn);
+				VMKernel.freeFrame(ppn);
+				reclaimed++;
+			}
+
+			clean();
+		}
+	}
+
+	/**
+	 * Write back up to <tt>highWatermark</tt> dirty pages that are next in
+	 * line for eviction.
+	 */
+	private void clean() {
+		int[] candidates = VMKernel.getEvictionCandidates(Machine.processor()
+				.getNumPhysPages());
+		int count = 0;
+		for (int i = 0; i < candidates.length && count < highWatermark; i++) {
+			if (VMProcess.cleanFrame(candidates[i])) {
+				cleaned++;
+				count++;
+			}
+		}
+	}
+
+	private int lowWatermark, highWatermark;
+
+	private Lock lock = new Lock();
+
+	private Condition belowWatermark = new Condition(lock);
+
+	private int reclaimed = 0, cleaned = 0;
+
+	private static final char dbgVM = 'v';
+}
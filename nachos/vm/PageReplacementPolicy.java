@@ -0,0 +1,62 @@
+package nachos.vm;
+
+/**
+ * Chooses which resident page to evict when a frame is needed. The policy
+ * in use is named by the <tt>VMKernel.replacementPolicy</tt> key of
+ * <tt>nachos.conf</tt>.
+ *
+ * <p>
+ * A policy only sees frames and their reference bits. Each frame is locked
+ * with <tt>VMKernel.lockFrame()</tt> while it is examined; a frame may be
+ * chosen only if <tt>VMKernel.isEvictable()</tt> holds, and is claimed with
+ * <tt>VMProcess.startEviction()</tt>. Policies do not sleep while holding
+ * a lock of their own; waiting for a frame to become evictable is left to
+ * the caller.
+ *
+ * @see nachos.vm.ClockPolicy
+ * @see nachos.vm.WSClockPolicy
+ * @see nachos.vm.ClockProPolicy
+ * @see nachos.vm.ARCPolicy
+ */
+public interface PageReplacementPolicy {
+	/**
+	 * A page has been loaded into a frame and made valid. May be called more
+	 * than once for the same load, and after the page is gone again, so
+	 * policies must check the frame's current owner.
+	 *
+	 * @param ppn the frame the page was loaded into.
+	 */
+	public void pageLoaded(int ppn);
+
+	/**
+	 * A frame has been returned to the free pool, either because its owner
+	 * exited or after the frame was evicted.
+	 *
+	 * @param ppn the frame that was freed.
+	 */
+	public void pageFreed(int ppn);
+
+	/**
+	 * Choose a victim, put its frame in transit and make its page table entry
+	 * invalid. Never waits.
+	 *
+	 * @return the frame to evict, or -1 if every frame is free, pinned or in
+	 * transit.
+	 */
+	public int findVictim();
+
+	/**
+	 * Return the frames this policy will examine next when looking for a
+	 * victim, in order, without changing any state. The page-out daemon
+	 * writes back dirty pages among them ahead of time.
+	 *
+	 * @param count the most frames to return.
+	 * @return the frames, at most <tt>count</tt> of them.
+	 */
+	public int[] getCandidates(int count);
+
+	/**
+	 * Print the statistics of this policy.
+	 */
+	public void print();
+}
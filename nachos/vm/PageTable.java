@@ -0,0 +1,87 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * A two-level page table covering the whole 32-bit address space.
+ *
+ * <p>
+ * The directory has one slot for every <tt>Processor.pageTableSize</tt>
+ * virtual pages. A second-level table, and each entry in it, is only
+ * allocated the first time a page in its range is asked for with
+ * <tt>get()</tt>, so a sparse address space costs memory in proportion to the
+ * pages it uses rather than to its extent. The processor walks the same
+ * structure, given by <tt>getDirectory()</tt>, in page-table mode.
+ */
+public class PageTable {
+	/**
+	 * Allocate a new page table with no pages mapped.
+	 */
+	public PageTable() {
+		directory = new TranslationEntry[Processor.maxPages
+				/ Processor.pageTableSize][];
+	}
+
+	/**
+	 * Return the entry of a virtual page, allocating it, invalid, if it does
+	 * not exist yet.
+	 *
+	 * @param vpn the virtual page.
+	 * @return the page table entry of <tt>vpn</tt>.
+	 */
+	public TranslationEntry get(int vpn) {
+		Lib.assertTrue(vpn >= 0 && vpn < Processor.maxPages);
+
+		TranslationEntry[] table = directory[vpn / Processor.pageTableSize];
+		if (table == null) {
+			table = new TranslationEntry[Processor.pageTableSize];
+			directory[vpn / Processor.pageTableSize] = table;
+			numTables++;
+		}
+
+		TranslationEntry entry = table[vpn % Processor.pageTableSize];
+		if (entry == null) {
+			entry = new TranslationEntry(vpn, -1, false, false, false, false);
+			table[vpn % Processor.pageTableSize] = entry;
+		}
+		return entry;
+	}
+
+	/**
+	 * Return the entry of a virtual page without allocating anything.
+	 *
+	 * @param vpn the virtual page.
+	 * @return the page table entry of <tt>vpn</tt>, or <tt>null</tt> if it has
+	 * never been asked for with <tt>get()</tt>.
+	 */
+	public TranslationEntry lookup(int vpn) {
+		Lib.assertTrue(vpn >= 0 && vpn < Processor.maxPages);
+
+		TranslationEntry[] table = directory[vpn / Processor.pageTableSize];
+		if (table == null)
+			return null;
+		return table[vpn % Processor.pageTableSize];
+	}
+
+	/**
+	 * Return the page directory, for <tt>Processor.setPageDirectory()</tt>.
+	 *
+	 * @return the page directory.
+	 */
+	public TranslationEntry[][] getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Return the number of second-level tables allocated so far.
+	 *
+	 * @return the number of second-level tables.
+	 */
+	public int getNumTables() {
+		return numTables;
+	}
+
+	private TranslationEntry[][] directory;
+
+	private int numTables = 0;
+}
@@ -0,0 +1,96 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+import java.util.BitSet;
+
+/**
+ * Allocates page-sized slots of the swap file with a bitmap.
+ *
+ * <p>
+ * Slots are handed out in contiguous runs, first fit. A run that does not
+ * fit in any hole goes past the end of the slots used so far, which grows
+ * the swap file when it is written. Keeping the slots of neighbouring pages
+ * adjacent lets them be read and written with single file operations.
+ *
+ * <p>
+ * The allocator does no locking of its own; callers must provide mutual
+ * exclusion.
+ */
+public class SwapAllocator {
+	/**
+	 * Allocate a new swap allocator with no slots in use.
+	 */
+	public SwapAllocator() {
+	}
+
+	/**
+	 * Allocate a run of contiguous slots.
+	 *
+	 * @param count the number of slots in the run.
+	 * @return the first slot of the run.
+	 */
+	public int allocate(int count) {
+		Lib.assertTrue(count > 0);
+
+		int start = used.nextClearBit(0);
+		while (true) {
+			int end = used.nextSetBit(start);
+			if (end == -1 || end - start >= count)
+				break;
+			start = used.nextClearBit(end);
+		}
+
+		used.set(start, start + count);
+		inUse += count;
+		size = Math.max(size, start + count);
+		return start;
+	}
+
+	/**
+	 * Return a run of slots allocated by <tt>allocate()</tt>.
+	 *
+	 * @param first the first slot of the run.
+	 * @param count the number of slots in the run.
+	 */
+	public void free(int first, int count) {
+		Lib.assertTrue(first >= 0 && first + count <= size);
+		Lib.assertTrue(used.nextClearBit(first) >= first + count);
+
+		used.clear(first, first + count);
+		inUse -= count;
+	}
+
+	/**
+	 * Return the number of slots the swap file must hold: one past the
+	 * highest slot ever allocated.
+	 *
+	 * @return the size of the swap space in slots.
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Return the number of slots currently allocated.
+	 *
+	 * @return the number of allocated slots.
+	 */
+	public int getUsedCount() {
+		return inUse;
+	}
+
+	/**
+	 * Print the usage of the swap space.
+	 */
+	public void print() {
+		System.out.println("Swap slots: in use " + inUse + ", size " + size);
+	}
+
+	/** One bit per slot, set when the slot is allocated. */
+	private BitSet used = new BitSet();
+
+	private int inUse = 0;
+
+	private int size = 0;
+}
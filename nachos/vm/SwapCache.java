@@ -0,0 +1,336 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A compressed, in-memory tier in front of the swap file.
+ *
+ * <p>
+ * Pages written to swap are compressed and kept in memory, by swap slot, as
+ * long as they fit in a budget of <tt>capacity</tt> bytes. Pages of zeroes
+ * take no space, and pages that do not compress to at most three quarters
+ * of their size go straight to the swap file. When the budget is exceeded,
+ * the oldest cached pages are spilled to their slots in the swap file. A
+ * capacity of 0 disables the cache.
+ *
+ * <p>
+ * A page read back from the cache leaves it, so the cache does not hold
+ * copies of resident pages that will never be evicted again. The caller must
+ * then treat the page as dirty, because its slot in the swap file may be
+ * stale.
+ */
+public class SwapCache {
+	/**
+	 * Allocate a new swap cache.
+	 *
+	 * @param file the swap file.
+	 * @param capacity the most bytes of compressed pages to keep.
+	 */
+	public SwapCache(OpenFile file, int capacity) {
+		Lib.assertTrue(capacity >= 0);
+
+		this.file = file;
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Write a page to a swap slot.
+	 *
+	 * @param spn the swap slot.
+	 * @param data the array holding the page.
+	 * @param offset the offset of the page in <tt>data</tt>.
+	 */
+	public void write(int spn, byte[] data, int offset) {
+		byte[] compressed = compress(data, offset);
+
+		lock.acquire();
+		waitForSpill(spn);
+		byte[] old = cache.remove(spn);
+		if (old != null)
+			usedBytes -= old.length;
+
+		if (capacity == 0 || compressed == null
+				|| compressed.length > capacity) {
+			lock.release();
+			writeFile(spn, data, offset);
+			return;
+		}
+
+		if (compressed.length == 0)
+			zeroPages++;
+		cache.put(spn, compressed);
+		usedBytes += compressed.length;
+		storedBytes += compressed.length;
+		stored++;
+
+		// spill the oldest pages until the budget is met
+		while (usedBytes > capacity) {
+			Iterator<Map.Entry<Integer, byte[]>> i = cache.entrySet()
+					.iterator();
+			Map.Entry<Integer, byte[]> oldest = i.next();
+			while (oldest.getValue().length == 0)
+				oldest = i.next();
+			i.remove();
+
+			int victim = oldest.getKey();
+			usedBytes -= oldest.getValue().length;
+			spilling.add(victim);
+			spills++;
+			lock.release();
+
+			byte[] page = new byte[pageSize];
+			decompress(oldest.getValue(), page, 0);
+			writeFile(victim, page, 0);
+
+			lock.acquire();
+			spilling.remove(victim);
+			spillDone.wakeAll();
+		}
+		lock.release();
+	}
+
+	/**
+	 * Read a page from a swap slot.
+	 *
+	 * @param spn the swap slot.
+	 * @param data the array to read the page into.
+	 * @param offset the offset of the page in <tt>data</tt>.
+	 * @return <tt>true</tt> if the page came from the cache, in which case
+	 * the copy in the swap file may be stale.
+	 */
+	public boolean read(int spn, byte[] data, int offset) {
+		boolean[] cached = new boolean[1];
+		read(spn, 1, data, offset, cached);
+		return cached[0];
+	}
+
+	/**
+	 * Read the pages of a run of adjacent swap slots into consecutive pages
+	 * of <tt>data</tt>. Pages that are not cached are read from the swap file
+	 * with one read per run of adjacent uncached slots.
+	 *
+	 * @param spn the first swap slot.
+	 * @param count the number of slots.
+	 * @param data the array to read the pages into.
+	 * @param offset the offset of the first page in <tt>data</tt>.
+	 * @param cached set for each page that came from the cache, in which
+	 * case the copy in the swap file may be stale.
+	 */
+	public void read(int spn, int count, byte[] data, int offset,
+			boolean[] cached) {
+		byte[][] compressed = new byte[count][];
+
+		lock.acquire();
+		for (int i = 0; i < count; i++) {
+			waitForSpill(spn + i);
+			compressed[i] = cache.remove(spn + i);
+			if (compressed[i] != null) {
+				usedBytes -= compressed[i].length;
+				hits++;
+			}
+		}
+		lock.release();
+
+		for (int i = 0; i < count;) {
+			cached[i] = compressed[i] != null;
+			if (cached[i]) {
+				decompress(compressed[i], data, offset + i * pageSize);
+				i++;
+				continue;
+			}
+
+			int run = 1;
+			while (i + run < count && compressed[i + run] == null)
+				cached[i + run++] = false;
+
+			misses += run;
+			fileReads++;
+			int read = file.read((spn + i) * pageSize, data, offset + i
+					* pageSize, run * pageSize);
+			Lib.assertTrue(read == run * pageSize);
+			i += run;
+		}
+	}
+
+	/**
+	 * Forget the pages of a run of swap slots that are being freed, waiting
+	 * for any of them that is being spilled.
+	 *
+	 * @param first the first slot of the run.
+	 * @param count the number of slots in the run.
+	 */
+	public void discard(int first, int count) {
+		lock.acquire();
+		for (int spn = first; spn < first + count; spn++) {
+			waitForSpill(spn);
+			byte[] compressed = cache.remove(spn);
+			if (compressed != null)
+				usedBytes -= compressed.length;
+		}
+		lock.release();
+	}
+
+	/**
+	 * Print the statistics of this cache.
+	 */
+	public void print() {
+		System.out.println("Swap cache: stored " + stored + " (zero "
+				+ zeroPages + ", avg "
+				+ (stored == 0 ? 0 : storedBytes / stored) + " bytes), hits "
+				+ hits + ", misses " + misses + " in " + fileReads
+				+ " file reads, spills " + spills + ", file writes "
+				+ fileWrites);
+	}
+
+	/**
+	 * Require lock. Sleep while spn is being written to the swap file.
+	 */
+	private void waitForSpill(int spn) {
+		while (spilling.contains(spn))
+			spillDone.sleep();
+	}
+
+	private void writeFile(int spn, byte[] data, int offset) {
+		fileWrites++;
+		int written = file.write(spn * pageSize, data, offset, pageSize);
+		Lib.assertTrue(written == pageSize);
+	}
+
+	/**
+	 * Compress a page with a byte-oriented LZ77 code: a control byte below
+	 * 128 is followed by that many plus one literal bytes, and a control byte
+	 * <i>c</i> of 128 or more copies <i>c</i> - 125 bytes from the distance
+	 * given by the next two bytes.
+	 *
+	 * @return the compressed page, an empty array for a page of zeroes, or
+	 * <tt>null</tt> if the page does not compress well enough.
+	 */
+	static byte[] compress(byte[] data, int offset) {
+		boolean zero = true;
+		for (int i = 0; i < pageSize && zero; i++)
+			zero = data[offset + i] == 0;
+		if (zero)
+			return new byte[0];
+
+		int limit = pageSize * 3 / 4;
+		byte[] out = new byte[limit + 3];
+		int[] table = new int[1 << hashBits];
+		int n = 0, i = 0, literals = 0;
+
+		while (i < pageSize) {
+			int length = 0, distance = 0;
+			if (i + minMatch <= pageSize) {
+				int h = hash(data, offset + i);
+				int candidate = table[h] - 1;
+				table[h] = i + 1;
+				if (candidate >= 0) {
+					while (i + length < pageSize && length < maxMatch
+							&& data[offset + candidate + length] == data[offset
+									+ i + length])
+						length++;
+					distance = i - candidate;
+				}
+			}
+
+			if (length >= minMatch) {
+				if (n + 3 > limit)
+					return null;
+				out[n++] = (byte) (length - minMatch + 128);
+				out[n++] = (byte) (distance >> 8);
+				out[n++] = (byte) distance;
+				i += length;
+				literals = 0;
+			}
+			else {
+				if (literals == 0 || literals == 128) {
+					if (n + 2 > limit)
+						return null;
+					literals = 0;
+					out[n++] = 0;
+				}
+				else if (n + 1 > limit) {
+					return null;
+				}
+				out[n - literals - 1] = (byte) literals;
+				out[n++] = data[offset + i++];
+				literals++;
+			}
+		}
+
+		byte[] compressed = new byte[n];
+		System.arraycopy(out, 0, compressed, 0, n);
+		return compressed;
+	}
+
+	/**
+	 * Expand a page compressed by <tt>compress()</tt>.
+	 */
+	static void decompress(byte[] compressed, byte[] data, int offset) {
+		if (compressed.length == 0) {
+			for (int i = 0; i < pageSize; i++)
+				data[offset + i] = 0;
+			return;
+		}
+
+		int n = 0, i = 0;
+		while (n < compressed.length) {
+			int control = compressed[n++] & 0xFF;
+			if (control < 128) {
+				int count = control + 1;
+				System.arraycopy(compressed, n, data, offset + i, count);
+				n += count;
+				i += count;
+			}
+			else {
+				int length = control - 128 + minMatch;
+				int distance = ((compressed[n] & 0xFF) << 8)
+						| (compressed[n + 1] & 0xFF);
+				n += 2;
+				// byte by byte, since the copy may overlap itself
+				for (int j = 0; j < length; j++, i++)
+					data[offset + i] = data[offset + i - distance];
+			}
+		}
+		Lib.assertTrue(i == pageSize);
+	}
+
+	private static int hash(byte[] data, int i) {
+		int v = (data[i] & 0xFF) | (data[i + 1] & 0xFF) << 8
+				| (data[i + 2] & 0xFF) << 16;
+		return (v * 0x9E3779B1) >>> (32 - hashBits);
+	}
+
+	private OpenFile file;
+
+	private int capacity;
+
+	/** Compressed pages by swap slot, oldest first. */
+	private LinkedHashMap<Integer, byte[]> cache = new LinkedHashMap<>();
+
+	/** Slots whose cached page is being written to the swap file. */
+	private HashSet<Integer> spilling = new HashSet<>();
+
+	private int usedBytes = 0;
+
+	private Lock lock = new Lock();
+
+	/** Signalled when a spill is done. */
+	private Condition spillDone = new Condition(lock);
+
+	private int stored = 0, zeroPages = 0, hits = 0, misses = 0, spills = 0,
+			fileReads = 0, fileWrites = 0;
+
+	private long storedBytes = 0;
+
+	private static final int pageSize = Processor.pageSize;
+
+	private static final int minMatch = 3, maxMatch = 127 + minMatch;
+
+	private static final int hashBits = 10;
+}
@@ -5,8 +5,7 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.Arrays;
 
 /**
  * A kernel that can support multiple demand-paging user processes.
@@ -24,11 +23,72 @@ public class VMKernel extends UserKernel {
 	 */
 	public void initialize(String[] args) {
 		super.initialize(args);
-		swpFile = fileSystem.open(swpName, true);
-		pinned = new boolean[numPhyPages];
+		// swap has its own cache, so it goes around the buffer cache
+		if (Machine.mappedFileSystem() != null)
+			swapFileSystem = Machine.mappedFileSystem();
+		else if (bufferCache != null)
+			swapFileSystem = bufferCache.getFileSystem();
+		else
+			swapFileSystem = fileSystem;
+		swpFile = swapFileSystem.open(swpName, true);
+		swapCache = new SwapCache(swpFile,
+				Config.getInteger("VMKernel.swapCacheSize", 8 * Processor.pageSize));
+		pinCount = new int[numPhyPages];
+		inTransit = new boolean[numPhyPages];
 		ppn2Process = new VMProcess[numPhyPages];
 		ppn2vpn = new int[numPhyPages];
-
+		frameLocks = new Lock[numPhyPages];
+		frameChanged = new Condition[numPhyPages];
+		for (int ppn = 0; ppn < numPhyPages; ppn++) {
+			ppn2vpn[ppn] = -1;
+			frameLocks[ppn] = new Lock();
+			frameChanged[ppn] = new Condition(frameLocks[ppn]);
+		}
+		allocatorLock = new Lock();
+		swapLock = new Lock();
+		asidOwners = new VMProcess[Config.getInteger("VMKernel.numASIDs", 64)];
+		Lib.assertTrue(asidOwners.length > 0);
+
+		if (Config.getBoolean("VMKernel.sharedZeroPage", true)) {
+			zeroFrame = getFreePage();
+			byte[] memory = Machine.processor().getMemory();
+			Arrays.fill(memory, zeroFrame * Processor.pageSize,
+					(zeroFrame + 1) * Processor.pageSize, (byte) 0);
+		}
+		swapClusterSize = Config.getInteger("VMKernel.swapClusterSize", 8);
+		Lib.assertTrue(swapClusterSize > 0);
+		swapReadCluster = Config.getInteger("VMKernel.swapReadCluster", 3);
+		Lib.assertTrue(swapReadCluster >= 0);
+		coffReadCluster = Config.getInteger("VMKernel.coffReadCluster", 3);
+		Lib.assertTrue(coffReadCluster >= 0);
+
+		replacementPolicy = (PageReplacementPolicy) Lib.constructObject(Config
+				.getString("VMKernel.replacementPolicy", "nachos.vm.ClockPolicy"));
+
+		if (Config.getBoolean("VMKernel.loadControl", false)) {
+			loadController = new LoadController(
+					Config.getInteger("VMKernel.sampleInterval", 5000),
+					Config.getInteger("VMKernel.workingSetWindow", 10000),
+					Config.getInteger("VMKernel.faultThreshold", 3));
+			loadController.start();
+		}
+
+		maxStackPages = Config.getInteger("VMKernel.maxStackPages", 64);
+		maxHeapPages = Config.getInteger("VMKernel.maxHeapPages", 256);
+		Lib.assertTrue(maxStackPages > 0 && maxHeapPages >= 0);
+
+		maxReadAhead = Config.getInteger("VMKernel.maxReadAhead", 4);
+		readAheadReserve = Config.getInteger("VMKernel.readAheadReserve", 1);
+		Lib.assertTrue(maxReadAhead >= 0 && readAheadReserve >= 0);
+
+		int highWatermark = Config.getInteger("VMKernel.highWatermark",
+				numPhyPages / 8);
+		if (highWatermark > 0) {
+			int lowWatermark = Config.getInteger("VMKernel.lowWatermark",
+					Math.max(1, highWatermark / 2));
+			pageOutDaemon = new PageOutDaemon(lowWatermark, highWatermark);
+			pageOutDaemon.start();
+		}
 	}
 
 	/**
@@ -49,14 +109,217 @@ public class VMKernel extends UserKernel {
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
+		swapAllocator.print();
+		swapCache.print();
+		replacementPolicy.print();
+		if (loadController != null)
+			loadController.print();
+		if (pageOutDaemon != null)
+			pageOutDaemon.print();
+		System.out.println("Direct reclaims: " + directReclaims);
+		if (zeroFrame != -1)
+			System.out.println("Zero page: mappings " + zeroMappings
+					+ ", copies on write " + zeroCopies);
+		System.out.println("Stack growth: pages " + stackGrowth
+				+ "; sbrk: calls " + sbrkCalls + ", net heap pages " + heapGrowth);
+		System.out.println("Read-ahead: pages " + readAheadPages
+				+ ", evicted unused " + readAheadWasted);
+		if (Machine.processor().hasTLB())
+			System.out.println("TLB: refills " + tlbRefills + ", shootdowns "
+					+ tlbShootdowns + ", ASID reuses " + asidReuses
+					+ ", entries flushed " + tlbFlushed);
 		swpFile.close();
-		fileSystem.remove(swpName);
+		swapFileSystem.remove(swpName);
 		super.terminate();
 	}
 
+	/**
+	 * @return the most pages a process's stack may grow to
+	 */
+	public static int getMaxStackPages() {
+		return maxStackPages;
+	}
+
+	/**
+	 * @return the most pages a process's heap may grow to with sbrk
+	 */
+	public static int getMaxHeapPages() {
+		return maxHeapPages;
+	}
+
+	/**
+	 * Count stack pages faulted in below the lowest one so far.
+	 * @param pages
+	 */
+	public static void countStackGrowth(int pages) {
+		stackGrowth += pages;
+	}
+
+	/**
+	 * Count an sbrk call that moved the break by pages pages.
+	 * @param pages
+	 */
+	public static void countHeapGrowth(int pages) {
+		sbrkCalls++;
+		heapGrowth += pages;
+	}
+
+	/**
+	 * Take a free frame, if there is one. The frame is returned in transit,
+	 * so no victim search will pick it until <tt>finishTransit</tt>.
+	 * @return the ppn, or -1 if there is no free frame
+	 */
+	public static int allocateFrame() {
+		allocatorLock.acquire();
+		int ppn = -1;
+		if (getFreePageSize() > 0) {
+			ppn = getFreePage();
+			inTransit[ppn] = true;
+		}
+		allocatorLock.release();
+
+		if (pageOutDaemon != null)
+			pageOutDaemon.checkWatermark();
+		return ppn;
+	}
+
+	/**
+	 * Take a free frame for read-ahead, if more than the read-ahead reserve
+	 * of frames is free. Read-ahead never evicts.
+	 * @return the ppn in transit, or -1
+	 */
+	public static int allocateReadAheadFrame() {
+		if (getFreePageSize() <= readAheadReserve)
+			return -1;
+		return allocateFrame();
+	}
+
+	/**
+	 * The most pages a fault may read ahead; 0 disables read-ahead.
+	 */
+	public static int getMaxReadAhead() {
+		return maxReadAhead;
+	}
+
+	/**
+	 * @param wasted true if a page read ahead was evicted before being
+	 * referenced, false if a page was read ahead
+	 */
+	public static void countReadAhead(boolean wasted) {
+		if (wasted)
+			readAheadWasted++;
+		else
+			readAheadPages++;
+	}
+
+	/**
+	 * The frame of zeroes that zero-fill pages map read-only until they are
+	 * written. It is never freed or evicted.
+	 * @return the ppn of the zero frame, or -1 if disabled
+	 */
+	public static int getZeroFrame() {
+		return zeroFrame;
+	}
+
+	/**
+	 * @param copied true if a page mapping the zero frame got a private
+	 * copy, false if a page was mapped to it
+	 */
+	public static void countZeroPage(boolean copied) {
+		if (copied)
+			zeroCopies++;
+		else
+			zeroMappings++;
+	}
+
+	/**
+	 * A fault found no free frame and evicted one itself.
+	 */
+	public static void countDirectReclaim() {
+		directReclaims++;
+	}
+
+	/**
+	 * Return a frame to the free pool, forgetting its owner.
+	 * The frame must not be pinned.
+	 * @param ppn
+	 */
+	public static void freeFrame(int ppn) {
+		lockFrame(ppn);
+		Lib.assertTrue(pinCount[ppn] == 0);
+		removeInvertTableMap(ppn);
+		inTransit[ppn] = false;
+		frameChanged[ppn].wakeAll();
+		unlockFrame(ppn);
+
+		replacementPolicy.pageFreed(ppn);
+
+		allocatorLock.acquire();
+		returnFreePage(ppn);
+		allocatorLock.release();
+	}
+
+	/**
+	 * Choose a victim with the replacement policy. The victim is returned in
+	 * transit with its page table entry invalid, ready for
+	 * <tt>VMProcess.evict</tt>.
+	 * @return the ppn to be evicted, or -1 if the caller should look for a
+	 * free frame again
+	 */
+	public static int findVictim() {
+		return replacementPolicy.findVictim();
+	}
+
+	/**
+	 * Return the frames the replacement policy will examine next.
+	 * @param count the most frames to return
+	 * @return the frames, in the order the policy will reach them
+	 */
+	public static int[] getEvictionCandidates(int count) {
+		return replacementPolicy.getCandidates(count);
+	}
+
+	/**
+	 * A process has set up its page table.
+	 * @param process
+	 */
+	public static void registerProcess(VMProcess process) {
+		if (loadController != null)
+			loadController.register(process);
+	}
+
+	/**
+	 * A process is exiting.
+	 * @param process
+	 */
+	public static void unregisterProcess(VMProcess process) {
+		if (loadController != null)
+			loadController.unregister(process);
+	}
+
+	/**
+	 * Called at the start of every page fault of process. Blocks while the
+	 * load controller has the process suspended.
+	 * @param process
+	 */
+	public static void pageFault(VMProcess process) {
+		if (loadController != null)
+			loadController.pageFault(process);
+	}
+
+	/**
+	 * Tell the replacement policy that a page was loaded into ppn.
+	 * Call with no frame lock held.
+	 * @param ppn
+	 */
+	public static void pageLoaded(int ppn) {
+		replacementPolicy.pageLoaded(ppn);
+	}
+
 	/**
 	 * ppn should be valid
 	 * require p and vpn to be valid
+	 * require the frame lock, or the frame to be in transit
 	 * @param ppn
 	 * @param p
 	 * @param vpn
@@ -65,13 +328,11 @@ public class VMKernel extends UserKernel {
 		Lib.assertTrue(ppn >= 0 && ppn < numPhyPages);
 		ppn2Process[ppn] = p;
 		ppn2vpn[ppn] = vpn;
-		pinned[ppn] = false;
 	}
 
 	public static void removeInvertTableMap(int ppn) {
 		ppn2vpn[ppn] = -1;
 		ppn2Process[ppn] = null;
-		pinned[ppn] = false;
 	}
 
 	public static VMProcess getVMProcess(int ppn) {
@@ -84,46 +345,395 @@ public class VMKernel extends UserKernel {
 		return ppn2vpn[ppn];
 	}
 
-	public static boolean  isPinned(int ppn) {
+	public static void lockFrame(int ppn) {
 		Lib.assertTrue(ppn >= 0 && ppn < numPhyPages);
-		return pinned[ppn];
+		frameLocks[ppn].acquire();
+	}
+
+	public static void unlockFrame(int ppn) {
+		frameLocks[ppn].release();
+	}
+
+	/**
+	 * Require the frame lock.
+	 * Sleep until the pin count or transit state of this frame changes.
+	 * @param ppn
+	 */
+	public static void waitForFrame(int ppn) {
+		frameChanged[ppn].sleep();
+	}
+
+	/**
+	 * Require the frame lock.
+	 * Mark the frame as being loaded or evicted, so that it cannot be pinned
+	 * or picked as a victim.
+	 * @param ppn
+	 */
+	public static void startTransit(int ppn) {
+		Lib.assertTrue(frameLocks[ppn].isHeldByCurrentThread());
+		Lib.assertTrue(!inTransit[ppn] && pinCount[ppn] == 0);
+		inTransit[ppn] = true;
+	}
+
+	/**
+	 * Require the frame lock.
+	 * The load or eviction of the frame is done; wake the threads waiting
+	 * for it.
+	 * @param ppn
+	 */
+	public static void finishTransit(int ppn) {
+		Lib.assertTrue(frameLocks[ppn].isHeldByCurrentThread());
+		Lib.assertTrue(inTransit[ppn]);
+		inTransit[ppn] = false;
+		frameChanged[ppn].wakeAll();
 	}
 
+	/**
+	 * Require the frame lock.
+	 * Wake the threads waiting for this frame without changing its state,
+	 * e.g. after its old page has been evicted.
+	 * @param ppn
+	 */
+	public static void wakeFrameWaiters(int ppn) {
+		Lib.assertTrue(frameLocks[ppn].isHeldByCurrentThread());
+		frameChanged[ppn].wakeAll();
+	}
 
-	public static void pinPage(int ppn) {
-//		kernelmutex.acquire();
+	public static boolean isInTransit(int ppn) {
 		Lib.assertTrue(ppn >= 0 && ppn < numPhyPages);
-		pinned[ppn] = true;
-		pinCounter++;
-//		kernelmutex.release();
+		return inTransit[ppn];
+	}
 
+	/**
+	 * Require the frame lock.
+	 * @param ppn
+	 * @return whether ppn holds a page that may be chosen as a victim: it is
+	 * owned, not pinned and not in transit
+	 */
+	public static boolean isEvictable(int ppn) {
+		Lib.assertTrue(frameLocks[ppn].isHeldByCurrentThread());
+		return ppn2Process[ppn] != null && pinCount[ppn] == 0 && !inTransit[ppn];
+	}
+
+	/**
+	 * Called when the replacement policy found nothing to evict. Return at
+	 * once if the allocator has a free frame, so the caller can take it;
+	 * otherwise wait with <tt>waitForFrameChange()</tt>.
+	 */
+	public static void waitForEvictableFrame() {
+		if (getFreePageSize() > 0)
+			return;
+		waitForFrameChange();
+	}
+
+	/**
+	 * Sleep until some pinned or in-transit frame changes. If there is none,
+	 * yield, so that a caller that retries lets the other threads run. The
+	 * shared zero frame is never pinned and never changes.
+	 */
+	public static void waitForFrameChange() {
+		for (int ppn = 0; ppn < numPhyPages; ppn++) {
+			if (ppn == zeroFrame)
+				continue;
+
+			lockFrame(ppn);
+			boolean busy = pinCount[ppn] > 0 || inTransit[ppn];
+			if (busy)
+				waitForFrame(ppn);
+			unlockFrame(ppn);
+			if (busy)
+				return;
+		}
+
+		KThread.yield();
 	}
-	
-	
-	public static void unpinPage(int ppn) {
 
+	public static boolean isPinned(int ppn) {
 		Lib.assertTrue(ppn >= 0 && ppn < numPhyPages);
-		pinned[ppn] = false;
-		pinCounter--;
+		return pinCount[ppn] > 0;
+	}
 
+	/**
+	 * Pin the frame if it still holds vpn of p and is not in transit.
+	 * @param ppn
+	 * @param p
+	 * @param vpn
+	 * @return true if the frame is now pinned
+	 */
+	public static boolean pinPage(int ppn, VMProcess p, int vpn) {
+		lockFrame(ppn);
+		boolean pinned = !inTransit[ppn] && ppn2Process[ppn] == p
+				&& ppn2vpn[ppn] == vpn;
+		if (pinned)
+			pinLocked(ppn);
+		unlockFrame(ppn);
+		return pinned;
+	}
+
+	/**
+	 * Require the frame lock.
+	 * @param ppn
+	 */
+	public static void pinLocked(int ppn) {
+		Lib.assertTrue(frameLocks[ppn].isHeldByCurrentThread());
+		if (pinCount[ppn]++ == 0)
+			pinnedFrames++;
+	}
+
+	/**
+	 * Unpin the frame, waking only the threads waiting for this frame.
+	 * @param ppn
+	 */
+	public static void unpinPage(int ppn) {
+		lockFrame(ppn);
+		Lib.assertTrue(pinCount[ppn] > 0);
+		if (--pinCount[ppn] == 0) {
+			pinnedFrames--;
+			frameChanged[ppn].wakeAll();
+		}
+		unlockFrame(ppn);
 	}
 
 	public static boolean isAllPinned(){
-		return pinCounter == numPhyPages;
+		return pinnedFrames == numPhyPages;
 	}
-	public static int getFreeSwapPages() {
-		if(freeSwapPages.size() == 0)
-			return swapSize++;
-		else
-			return freeSwapPages.poll();
+
+	/**
+	 * Allocate a run of contiguous swap slots.
+	 * @param count
+	 * @return the first slot of the run
+	 */
+	public static int allocateSwap(int count) {
+		swapLock.acquire();
+		int spn = swapAllocator.allocate(count);
+		swapLock.release();
+		return spn;
+	}
+
+	/**
+	 * Return a run of swap slots allocated by <tt>allocateSwap</tt>.
+	 * @param spn the first slot of the run
+	 * @param count
+	 */
+	public static void freeSwap(int spn, int count) {
+		swapCache.discard(spn, count);
+		swapLock.acquire();
+		swapAllocator.free(spn, count);
+		swapLock.release();
+	}
+
+	/**
+	 * Write a page to a swap slot, through the compressed swap cache.
+	 * @param spn
+	 * @param data the array holding the page
+	 * @param offset the offset of the page in data
+	 */
+	public static void writeSwap(int spn, byte[] data, int offset) {
+		swapCache.write(spn, data, offset);
+	}
+
+	/**
+	 * Read a page from a swap slot, through the compressed swap cache.
+	 * @param spn
+	 * @param data the array to read the page into
+	 * @param offset the offset of the page in data
+	 * @return true if the page came from the cache; the page must then be
+	 * treated as dirty, since the swap file may not have its contents
+	 */
+	public static boolean readSwap(int spn, byte[] data, int offset) {
+		return swapCache.read(spn, data, offset);
 	}
 
-	public static void returnFreeSwapPages(int spn) {
-		Lib.assertTrue(spn < swapSize);
-		freeSwapPages.offer(spn);
+	/**
+	 * Read the pages of a run of adjacent swap slots with as few file reads
+	 * as possible, through the compressed swap cache.
+	 * @param spn the first slot of the run
+	 * @param count the number of slots
+	 * @param data the array to read the pages into
+	 * @param offset the offset of the first page in data
+	 * @param cached set for each page that came from the cache and must be
+	 * treated as dirty
+	 */
+	public static void readSwap(int spn, int count, byte[] data, int offset,
+			boolean[] cached) {
+		swapCache.read(spn, count, data, offset, cached);
 	}
 
+	/**
+	 * The most neighbouring swapped pages a swap-in fault may read along with
+	 * the faulting page.
+	 */
+	public static int getSwapReadCluster() {
+		return swapReadCluster;
+	}
 
+	/**
+	 * The most following pages of its section a fault on a coff page may load
+	 * along with it.
+	 */
+	public static int getCoffReadCluster() {
+		return coffReadCluster;
+	}
+
+	/**
+	 * The number of neighbouring virtual pages whose swap slots are allocated
+	 * together as one extent.
+	 */
+	public static int getSwapClusterSize() {
+		return swapClusterSize;
+	}
+
+	/**
+	 * Give process an address-space identifier, if it has none, and load it
+	 * into the processor. Called when process is switched in. A process keeps
+	 * its ASID, and its TLB entries stay valid, across context switches until
+	 * another process takes the ASID over, which flushes the entries tagged
+	 * with it.
+	 * @param process
+	 */
+	public static void activateASID(VMProcess process) {
+		boolean intStatus = Machine.interrupt().disable();
+		int asid = process.getASID();
+		if (asid == -1) {
+			asid = 0;
+			while (asid < asidOwners.length && asidOwners[asid] != null)
+				asid++;
+			if (asid == asidOwners.length) {
+				// take over the ASID least recently handed out
+				asid = nextASID;
+				flushASID(asid);
+				asidOwners[asid].setASID(-1);
+				asidReuses++;
+			}
+			nextASID = (asid + 1) % asidOwners.length;
+			asidOwners[asid] = process;
+			process.setASID(asid);
+		}
+		Machine.processor().setASID(asid);
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * A process is exiting: drop its TLB entries and free its ASID.
+	 * @param process
+	 */
+	public static void releaseASID(VMProcess process) {
+		if (!Machine.processor().hasTLB() || process.getASID() == -1)
+			return;
+
+		boolean intStatus = Machine.interrupt().disable();
+		flushASID(process.getASID());
+		asidOwners[process.getASID()] = null;
+		process.setASID(-1);
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Software TLB refill: load a copy of entry, a valid page table entry of
+	 * process, into the TLB, replacing a free entry or else the next one in
+	 * round-robin order. The bits of the replaced entry are folded back into
+	 * its page table. Call with interrupts disabled, so the page table entry
+	 * cannot change in the meantime.
+	 * @param process the running process
+	 * @param entry the page table entry to load
+	 */
+	public static void refillTLB(VMProcess process, TranslationEntry entry) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		Lib.assertTrue(entry.valid && process.getASID() != -1);
+
+		Processor processor = Machine.processor();
+		int slot = -1;
+		for (int i = 0; i < processor.getTLBSize() && slot == -1; i++) {
+			if (!processor.readTLBEntry(i).valid)
+				slot = i;
+		}
+		if (slot == -1) {
+			slot = tlbHand;
+			tlbHand = (tlbHand + 1) % processor.getTLBSize();
+			foldTLBEntry(processor.readTLBEntry(slot));
+		}
+
+		TranslationEntry tlbEntry = new TranslationEntry(entry);
+		tlbEntry.asid = process.getASID();
+		processor.writeTLBEntry(slot, tlbEntry);
+		tlbRefills++;
+	}
+
+	/**
+	 * TLB shootdown for a frame. Fold the used and dirty bits of the TLB
+	 * entries mapping ppn into the page tables, so a reader of the page table
+	 * sees every reference, and drop the entries if invalidate is set, as
+	 * before the page table entry is cleared or changed. Does nothing if the
+	 * processor has no TLB.
+	 * @param ppn
+	 * @param invalidate whether to drop the entries
+	 */
+	public static void flushTLB(int ppn, boolean invalidate) {
+		Processor processor = Machine.processor();
+		if (!processor.hasTLB())
+			return;
+
+		boolean intStatus = Machine.interrupt().disable();
+		for (int i = 0; i < processor.getTLBSize(); i++) {
+			TranslationEntry tlbEntry = processor.readTLBEntry(i);
+			if (tlbEntry.valid && tlbEntry.ppn == ppn) {
+				foldTLBEntry(tlbEntry);
+				tlbEntry.used = tlbEntry.dirty = false;
+				if (invalidate) {
+					tlbEntry.valid = false;
+					tlbShootdowns++;
+				}
+				processor.writeTLBEntry(i, tlbEntry);
+			}
+		}
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * TLB shootdown for one page of process, whose page table entry is about
+	 * to change. Does nothing if the processor has no TLB.
+	 * @param process
+	 * @param vpn
+	 */
+	public static void invalidateTLB(VMProcess process, int vpn) {
+		Processor processor = Machine.processor();
+		if (!processor.hasTLB() || process.getASID() == -1)
+			return;
+
+		boolean intStatus = Machine.interrupt().disable();
+		for (int i = 0; i < processor.getTLBSize(); i++) {
+			TranslationEntry tlbEntry = processor.readTLBEntry(i);
+			if (tlbEntry.valid && tlbEntry.asid == process.getASID()
+					&& tlbEntry.vpn == vpn) {
+				foldTLBEntry(tlbEntry);
+				tlbEntry.valid = false;
+				processor.writeTLBEntry(i, tlbEntry);
+				tlbShootdowns++;
+			}
+		}
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Drop the TLB entries tagged with asid. Call with interrupts disabled.
+	 */
+	private static void flushASID(int asid) {
+		Processor processor = Machine.processor();
+		for (int i = 0; i < processor.getTLBSize(); i++) {
+			TranslationEntry tlbEntry = processor.readTLBEntry(i);
+			if (tlbEntry.valid && tlbEntry.asid == asid) {
+				foldTLBEntry(tlbEntry);
+				tlbEntry.valid = false;
+				processor.writeTLBEntry(i, tlbEntry);
+				tlbFlushed++;
+			}
+		}
+	}
+
+	private static void foldTLBEntry(TranslationEntry tlbEntry) {
+		if (tlbEntry.valid)
+			asidOwners[tlbEntry.asid].foldTLBEntry(tlbEntry);
+	}
 
 	// dummy variables to make javac smarter
 	private static VMProcess dummy1 = null;
@@ -134,20 +744,77 @@ public class VMKernel extends UserKernel {
 
 	private static int[] ppn2vpn;
 
-	private static boolean[] pinned;
+	/** How many threads have each frame pinned. */
+	private static int[] pinCount;
+
+	/** Set while a frame is being loaded or evicted. */
+	private static boolean[] inTransit;
+
+	/** Protects the owner, pin count and transit state of each frame. */
+	private static Lock[] frameLocks;
+
+	/** Signalled when a frame is unpinned or leaves transit. */
+	private static Condition[] frameChanged;
+
+	/** Protects the free frame allocator. */
+	private static Lock allocatorLock;
+
+	/** Protects the swap space allocator. */
+	private static Lock swapLock;
+
+	private static SwapAllocator swapAllocator = new SwapAllocator();
+
+	private static int swapClusterSize;
+
+	private static int swapReadCluster;
+
+	private static int coffReadCluster;
+
+	/** Compressed pages in front of swpFile. */
+	private static SwapCache swapCache;
+
+	private static PageReplacementPolicy replacementPolicy;
+
+	/** Suspends processes when memory is overcommitted; null if disabled. */
+	private static LoadController loadController = null;
 
-	private static Queue<Integer> freeSwapPages = new LinkedList<>();
+	/** Keeps free frames between the watermarks; null if disabled. */
+	private static PageOutDaemon pageOutDaemon = null;
 
-	private static int swapSize = 0;
+	private static int directReclaims = 0;
+
+	private static int zeroFrame = -1;
+
+	private static int zeroMappings = 0, zeroCopies = 0;
+
+	private static int maxStackPages, maxHeapPages;
+
+	private static int stackGrowth = 0, sbrkCalls = 0, heapGrowth = 0;
+
+	private static int maxReadAhead;
+
+	/** Free frames that read-ahead leaves for demand faults. */
+	private static int readAheadReserve;
+
+	private static int readAheadPages = 0, readAheadWasted = 0;
+
+	/** The process holding each address-space identifier, or null. */
+	private static VMProcess[] asidOwners;
+
+	private static int nextASID = 0;
+
+	/** The next TLB entry to replace when none is free. */
+	private static int tlbHand = 0;
+
+	private static int tlbRefills = 0, tlbShootdowns = 0, asidReuses = 0,
+			tlbFlushed = 0;
 
 	public static final String swpName = "_kernel.swp";
 
 	public static OpenFile swpFile = null;
 
-	private static int pinCounter = 0;
-	
-//	private static Lock kernelmutex = new Lock();
-
+	/** The file system holding swpFile. */
+	private static FileSystem swapFileSystem;
 
+	private static int pinnedFrames = 0;
 }
-
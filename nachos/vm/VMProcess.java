@@ -6,8 +6,7 @@ import nachos.userprog.*;
 import nachos.vm.*;
 
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.BitSet;
 
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
@@ -18,6 +17,8 @@ public class VMProcess extends UserProcess {
 	 */
 	public VMProcess() {
 		super();
+		heapPages = VMKernel.getMaxHeapPages();
+		stackPages = VMKernel.getMaxStackPages();
 	}
 
 	/**
@@ -26,6 +27,10 @@ public class VMProcess extends UserProcess {
 	 */
 	public void saveState() {
 		super.saveState();
+		if(runningSince != -1) {
+			virtualTime += Machine.timer().getTime() - runningSince;
+			runningSince = -1;
+		}
 	}
 
 	/**
@@ -33,7 +38,11 @@ public class VMProcess extends UserProcess {
 	 * <tt>UThread.restoreState()</tt>.
 	 */
 	public void restoreState() {
-		super.restoreState();
+		if(Machine.processor().hasTLB())
+			VMKernel.activateASID(this);
+		else
+			Machine.processor().setPageDirectory(pageTables.getDirectory());
+		runningSince = Machine.timer().getTime();
 	}
 
 	/**
@@ -69,28 +78,23 @@ public class VMProcess extends UserProcess {
 		// readLength will not be zero after first init
 		// amount make sure vaddr+read < vmLength
 		// offset enables us to copy segment by segment
-		// in the vmspace, all pages are valid
+		// the page is pinned while copying, so no one can evict it
 		while(read < amount) {
 			if(readLength == 0)
 				readLength =  Math.min(pageSize - vaddr%pageSize, amount - read);
 			else
 				readLength = Math.min(pageSize, amount - read);
 
-			TranslationEntry entry = pageTable[(vaddr+read)/pageSize];
-
-			needToPin = true;
-			if(!entry.valid)
-				handlePageFault((vaddr+read));
+			int vpn = (vaddr+read)/pageSize;
+			int ppn = pinVirtualPage(vpn);
+			if(ppn == -1)
+				break;
 
-			mutex.acquire();
-			VMKernel.pinPage(entry.ppn);
-			System.arraycopy(memory, translate(vaddr + read), data, offset+read, readLength);
-			entry.used = true;
-			VMKernel.unpinPage(entry.ppn);
-			waitForUnpinned.wake();
-			mutex.release();
+			int paddr = ppn*pageSize + (vaddr+read)%pageSize;
+			System.arraycopy(memory, paddr, data, offset+read, readLength);
+			pageTables.get(vpn).used = true;
+			VMKernel.unpinPage(ppn);
 			read += readLength;
-			needToPin = false;
 		}
 
 
@@ -139,33 +143,46 @@ public class VMProcess extends UserProcess {
 			else
 				writeLength = Math.min(pageSize, amount - write);
 
-			if(checkReadOnly(vaddr+write))
-				return write;
-			// copy from data to memory
-			TranslationEntry entry = pageTable[(vaddr+write)/pageSize];
-			needToPin = true;
-			if(!entry.valid)
-				handlePageFault((vaddr+write));
+			// the read-only bit is only known once the page is loaded
+			int vpn = (vaddr+write)/pageSize;
+			int ppn = pinVirtualPage(vpn);
+			if(ppn == -1)
+				break;
 
-			// pinpage should be atomic
-			mutex.acquire();
-			VMKernel.pinPage(entry.ppn);
+			TranslationEntry entry = pageTables.get(vpn);
+			if(entry.readOnly) {
+				VMKernel.unpinPage(ppn);
+				break;
+			}
 
-			System.arraycopy( data, offset+write, memory, translate(vaddr + write), writeLength);
+			// copy from data to memory
+			int paddr = ppn*pageSize + (vaddr+write)%pageSize;
+			System.arraycopy( data, offset+write, memory, paddr, writeLength);
 			entry.used = true;
 			entry.dirty = true;
-			VMKernel.unpinPage(entry.ppn);
-
-			waitForUnpinned.wake();
-			mutex.release();
+			VMKernel.unpinPage(ppn);
 			write += writeLength;
-			needToPin = false;
 		}
 
 
 		return write;
 	}
 
+	/**
+	 * Make a virtual page resident and pin its frame, so it cannot be evicted
+	 * while the kernel copies to or from it. The caller must unpin it.
+	 * @param vpn
+	 * @return the pinned ppn, or -1 if vpn is not valid
+	 */
+	private int pinVirtualPage(int vpn) {
+		if(!isVPNValid(vpn))
+			return -1;
+		TranslationEntry entry = pageTables.get(vpn);
+		if(entry.valid && VMKernel.pinPage(entry.ppn, this, vpn))
+			return entry.ppn;
+		return faultIn(vpn, true);
+	}
+
 	/**
 	 * Initializes page tables for this process so that the executable can be
 	 * demand-paged.
@@ -202,71 +219,258 @@ public class VMProcess extends UserProcess {
 //		return true;
 
 
-		numCoffPages = numPages - stackPages - 1;
-		pageTable = new TranslationEntry[numPages];
-		for(int i = 0; i < numPages; i++)
-		{
-			pageTable[i] = new TranslationEntry(i, -1, false, false, false, false);
+		numCoffPages = numPages - stackPages - heapPages - 1;
+		brk = numCoffPages * pageSize;
+		stackBottom = numPages - 1;
+		coffSections = new CoffSection[numCoffPages];
+		for(int i = 0; i < coff.getNumSections(); i++) {
+			CoffSection cs = coff.getSection(i);
+			Arrays.fill(coffSections, cs.getFirstVPN(),
+					cs.getFirstVPN() + cs.getLength(), cs);
 		}
+		findCoffContents();
+
+		// entries are created as pages are first touched
+		pageTables = new PageTable();
+
+		prefetched = new boolean[numPages];
+		zeroMapped = new boolean[numPages];
+		softUsed = new boolean[numPages];
+		lastReference = new long[numPages];
+		Arrays.fill(lastReference, -1);
+
+		int clusterSize = VMKernel.getSwapClusterSize();
+		swapExtents = new int[(numPages + clusterSize - 1) / clusterSize];
+		Arrays.fill(swapExtents, -1);
+
+		VMKernel.registerProcess(this);
 		return true;
 	}
 
 	/**
 	 * Release any resources allocated by <tt>loadSections()</tt>.
+	 *
+	 * A page that another thread is evicting still belongs to that thread's
+	 * frame until the eviction is done, so wait for it, then free the swap
+	 * slots that are left. A page the page-out daemon is writing back is
+	 * pinned until the write is done.
 	 */
 	public void unloadSections() {
-		mutex.acquire();
-		for(int i = 0; i < numPages; i++) {
-			if(pageTable[i].valid){
-				VMKernel.unpinPage(pageTable[i].ppn);
-				VMKernel.returnFreePage(pageTable[i].ppn);
-				VMKernel.removeInvertTableMap(pageTable[i].ppn);
-			}
+		VMKernel.unregisterProcess(this);
+		VMKernel.releaseASID(this);
 
+		for(int vpn = 0; vpn < numPages; vpn++)
+			releasePage(vpn);
+
+		swapTableLock.acquire();
+		for(int c = 0; c < swapExtents.length; c++) {
+			if(swapExtents[c] != -1) {
+				VMKernel.freeSwap(swapExtents[c], extentLength(c));
+				swapExtents[c] = -1;
+			}
 		}
-		waitForUnpinned.wakeAll();
+		inSwap.clear();
+		swapTableLock.release();
+
+		// switching back in while waiting above hands out a new ASID
+		VMKernel.releaseASID(this);
+	}
 
-		for(Map.Entry<Integer, Integer> entry: swpTable.entrySet()) {
-			VMKernel.returnFreeSwapPages(entry.getValue());
+	/**
+	 * Give back the frame of vpn, if it has one, so vpn is neither resident
+	 * nor mapped to the zero page. The swap slot is left alone.
+	 * @param vpn
+	 */
+	private void releasePage(int vpn) {
+		TranslationEntry entry = pageTables.lookup(vpn);
+		if(entry == null)
+			return;
+		if(zeroMapped[vpn]) {
+			VMKernel.invalidateTLB(this, vpn);
+			entry.valid = false;
+			entry.ppn = -1;
+			zeroMapped[vpn] = false;
+		}
+		while(entry.ppn != -1) {
+			int ppn = entry.ppn;
+			VMKernel.lockFrame(ppn);
+			if(entry.valid && VMKernel.isPinned(ppn)) {
+				VMKernel.waitForFrame(ppn);
+				VMKernel.unlockFrame(ppn);
+			}
+			else if(entry.valid) {
+				VMKernel.flushTLB(ppn, true);
+				entry.valid = false;
+				entry.ppn = -1;
+				entry.used = entry.dirty = entry.readOnly = false;
+				prefetched[vpn] = softUsed[vpn] = false;
+				VMKernel.startTransit(ppn);
+				VMKernel.unlockFrame(ppn);
+				VMKernel.freeFrame(ppn);
+			}
+			else {
+				waitForEviction(entry, ppn);
+				VMKernel.unlockFrame(ppn);
+			}
 		}
-		mutex.release();
+	}
+
+	/**
+	 * Handle a syscall this process adds to those of UserProcess.
+	 */
+	public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
+		if(syscall == syscallSbrk)
+			return handleSbrk(a0);
+		return super.handleSyscall(syscall, a0, a1, a2, a3);
+	}
 
+	/**
+	 * Move the break, the end of the heap, by increment bytes. The heap
+	 * lies between the coff sections and the stack. Pages it grows into are
+	 * zero-fill and only get a frame when touched; pages it shrinks away
+	 * from are released along with their swap contents.
+	 * @param increment
+	 * @return the old break, or -1 if the new one is out of range
+	 */
+	private int handleSbrk(int increment) {
+		long newBrk = (long) brk + increment;
+		if(newBrk < numCoffPages * pageSize
+				|| newBrk > (numCoffPages + heapPages) * pageSize)
+			return -1;
+
+		int oldBrk = brk;
+		int oldTop = Lib.divRoundUp(oldBrk, pageSize);
+		brk = (int) newBrk;
+		int newTop = Lib.divRoundUp(brk, pageSize);
+		VMKernel.countHeapGrowth(newTop - oldTop);
+
+		for(int vpn = newTop; vpn < oldTop; vpn++) {
+			releasePage(vpn);
+			lastReference[vpn] = -1;
+			swapTableLock.acquire();
+			inSwap.clear(vpn);
+			swapTableLock.release();
+		}
+		Lib.debug(dbgProcess, "break moved from " + oldBrk + " to " + brk);
+		return oldBrk;
 	}
 
 	/**
 	 * Prepare pages on demand
 	 * and set the pagetable entry
 	 *
-	 * First get a ppn
-	 * if a page has been swapped, then read it to the memory again
-	 * else initialize the page, either a coff section by loading it
-	 * from coff, or stack and argument by setting them to 0
-	 *
 	 * if vaddr is not a valid address, return -1
 	 * @param vaddr the faulting address
 	 * @return 0 if success, -1 on error
 	 */
 	public int handlePageFault(int vaddr) {
-		if(vaddr < 0 || vaddr > numPages * pageSize)
+		if(vaddr < 0 || vaddr >= numPages * pageSize)
 			return -1;
 		int vpn = vaddr/pageSize;
 		Lib.debug(dbgProcess, "handle page fault of " + vpn);
 
+		if(!isVPNValid(vpn))
+			return -1;
+		if(vpn >= numCoffPages + heapPages && vpn < stackBottom) {
+			// the stack grows down to here
+			VMKernel.countStackGrowth(stackBottom - vpn);
+			stackBottom = vpn;
+		}
+
+		VMKernel.pageFault(this);
+		faultIn(vpn, false);
+		lastReference[vpn] = getVirtualTime();
+		if(VMKernel.getMaxReadAhead() > 0)
+			readAhead(vpn);
+ 		return 0;
+	}
+
+	/**
+	 * Make vpn resident, optionally leaving its frame pinned.
+	 *
+	 * First get a ppn, which comes back in transit so no one else can use it
+	 * if a page has been swapped, then read it to the memory again
+	 * else initialize the page, either a coff section by loading it
+	 * from coff, or stack and argument by setting them to 0
+	 * The page table entry only becomes valid once the page is loaded.
+	 *
+	 * If the page is being evicted by another thread, wait until the
+	 * eviction is done and load it again.
+	 *
+	 * @param vpn
+	 * @param pin whether to pin the frame before returning
+	 * @return the ppn holding vpn, or -1 if vpn is not valid
+	 */
+	private int faultIn(int vpn, boolean pin) {
+		if(!isVPNValid(vpn))
+			return -1;
+
+		TranslationEntry entry = pageTables.get(vpn);
+		while(true) {
+			if(entry.valid && zeroMapped[vpn]) {
+				// the kernel may write the page, so give it a private frame
+				if(!pin)
+					return entry.ppn;
+				return breakZeroPage(vpn, true);
+			}
+			else if(entry.valid) {
+				if(!pin || VMKernel.pinPage(entry.ppn, this, vpn))
+					return entry.ppn;
+			}
+			else if(entry.ppn != -1) {
+				int evicting = entry.ppn;
+				VMKernel.lockFrame(evicting);
+				waitForEviction(entry, evicting);
+				VMKernel.unlockFrame(evicting);
+			}
+			else {
+				break;
+			}
+		}
+
+		if(!pin && VMKernel.getZeroFrame() != -1 && isZeroFill(vpn)) {
+			mapZeroPage(vpn);
+			return entry.ppn;
+		}
+
 		int ppn = getPPNFromKernel();
+		boolean swapped = hasSwap(vpn);
+		if(swapped && VMKernel.getSwapReadCluster() > 0)
+			swapInCluster(vpn, ppn);
+		else if(!swapped && vpn < numCoffPages
+				&& VMKernel.getCoffReadCluster() > 0)
+			coffInCluster(vpn, ppn);
+		else
+			loadPage(vpn, ppn);
+
+		VMKernel.lockFrame(ppn);
+		entry.ppn = ppn;
+		entry.valid = true;
+		entry.used = true;
+		if(pin)
+			VMKernel.pinLocked(ppn);
+		VMKernel.finishTransit(ppn);
+		VMKernel.unlockFrame(ppn);
+		VMKernel.pageLoaded(ppn);
 
-		mutex.acquire();
-		if(needToPin)
-			VMKernel.pinPage(ppn);
-		VMKernel.setInvertTable(ppn, this, vpn);
-		mutex.release();
+		Lib.debug(dbgProcess, "Physical page " + ppn +
+		" is assigned to " + vpn);
+		return ppn;
+	}
 
-		pageTable[vpn].ppn = ppn;
-		pageTable[vpn].valid = true;
-		pageTable[vpn].used = true;
+	/**
+	 * Load vpn into ppn, which is in transit for this process. The page comes
+	 * from swap if it has been swapped, else from its coff section, else it
+	 * is a stack or argument page filled with 0.
+	 * @param vpn
+	 * @param ppn
+	 */
+	private void loadPage(int vpn, int ppn) {
+		VMKernel.setInvertTable(ppn, this, vpn);
 
-		if(swpTable.containsKey(vpn)) {
+		if(hasSwap(vpn)) {
 			// has been swapped
-			if(!readSwap(vpn)) {
+			if(!readSwap(vpn, ppn)) {
 				Lib.assertNotReached("Error reading swap file");
 			}
 
@@ -284,26 +488,238 @@ public class VMProcess extends UserProcess {
 				Arrays.fill(memory, paddr, paddr + pageSize, (byte) 0);
 			} else {
 				// coff
-				int curCoffPage = 0;
-				for (int i = 0; i < coff.getNumSections(); i++) {
-					CoffSection cs = coff.getSection(i);
-					int l = cs.getLength();
-					if (curCoffPage + l <= vpn) curCoffPage += l;
-					else {
-						cs.loadPage(vpn - curCoffPage, ppn);
-						if (cs.isReadOnly())
-							pageTable[vpn].readOnly = true;
-						break;
-					}
-				}
+				CoffSection cs = coffSections[vpn];
+				cs.loadPage(vpn - cs.getFirstVPN(), ppn);
+				if (cs.isReadOnly())
+					pageTables.get(vpn).readOnly = true;
+			}
+		}
+	}
+
+	/**
+	 * Detect faults that follow a constant stride and read ahead the next
+	 * pages of the stream into free frames.
+	 *
+	 * Two faults in a row with the same stride start a stream with a window
+	 * of one page. A fault on the first page past the window means the
+	 * pages read ahead were used, so the window doubles, up to
+	 * <tt>VMKernel.maxReadAhead</tt>. A page read ahead that is evicted
+	 * before it is referenced halves the window (see <tt>evict</tt>), so a
+	 * stream whose pages go unused stops reading ahead.
+	 *
+	 * Read-ahead never evicts: it only takes frames while more than the
+	 * reserve of free frames is left. Zero-fill pages are mapped to the
+	 * shared zero frame instead.
+	 * @param vpn the page that just faulted
+	 */
+	private void readAhead(int vpn) {
+		int maxReadAhead = VMKernel.getMaxReadAhead();
+		int delta = vpn - lastFault;
+
+		if(stride != 0 && vpn == nextExpected) {
+			window = Math.min(Math.max(window * 2, 1), maxReadAhead);
+		}
+		else if(delta != 0 && delta == lastDelta) {
+			if(stride != delta)
+				window = Math.min(1, maxReadAhead);
+			stride = delta;
+		}
+		else {
+			stride = 0;
+		}
+		lastDelta = delta;
+		lastFault = vpn;
+
+		if(stride == 0)
+			return;
+
+		int k = 1;
+		for(; k <= window; k++) {
+			int target = vpn + k*stride;
+			if(!isVPNValid(target))
+				break;
+
+			TranslationEntry entry = pageTables.get(target);
+			if(entry.valid || entry.ppn != -1)
+				continue;
 
+			if(VMKernel.getZeroFrame() != -1 && isZeroFill(target)) {
+				mapZeroPage(target);
+				continue;
 			}
+
+			int ppn = VMKernel.allocateReadAheadFrame();
+			if(ppn == -1)
+				break;
+
+			loadPage(target, ppn);
+			mapPrefetched(target, ppn);
 		}
+		nextExpected = vpn + k*stride;
+	}
 
+	/**
+	 * Map vpn, just loaded into ppn ahead of any reference to it. The page is
+	 * not marked used, so an eviction can tell it was never referenced.
+	 * @param vpn
+	 * @param ppn the frame holding vpn, in transit
+	 */
+	private void mapPrefetched(int vpn, int ppn) {
+		TranslationEntry entry = pageTables.get(vpn);
+
+		VMKernel.lockFrame(ppn);
+		entry.ppn = ppn;
+		entry.valid = true;
+		entry.used = false;
+		prefetched[vpn] = true;
+		VMKernel.finishTransit(ppn);
+		VMKernel.unlockFrame(ppn);
+		VMKernel.pageLoaded(ppn);
+		VMKernel.countReadAhead(false);
+
+		Lib.debug(dbgVM, "read ahead vpn " + vpn + " into " + ppn);
+	}
+
+	/**
+	 * Whether vpn would be loaded as a page of zeroes: a stack or argument
+	 * page, or a page of an uninitialized coff section, that has never been
+	 * swapped.
+	 * @param vpn
+	 * @return
+	 */
+	private boolean isZeroFill(int vpn) {
+		if(hasSwap(vpn))
+			return false;
+		if(vpn >= numCoffPages)
+			return true;
+
+		return !coffSections[vpn].isInitialzed();
+	}
+
+	/**
+	 * Map vpn, a zero-fill page, to the shared zero frame, read-only.
+	 * @param vpn
+	 */
+	private void mapZeroPage(int vpn) {
+		TranslationEntry entry = pageTables.get(vpn);
+		entry.ppn = VMKernel.getZeroFrame();
+		entry.readOnly = true;
+		entry.used = true;
+		entry.valid = true;
+		zeroMapped[vpn] = true;
+		VMKernel.countZeroPage(false);
+		Lib.debug(dbgProcess, "zero page is mapped to " + vpn);
+	}
+
+	/**
+	 * Give vpn, which maps the shared zero frame, a private frame of zeroes.
+	 * @param vpn
+	 * @param pin whether to pin the frame before returning
+	 * @return the new ppn
+	 */
+	private int breakZeroPage(int vpn, boolean pin) {
+		TranslationEntry entry = pageTables.get(vpn);
+		int ppn = getPPNFromKernel();
+		VMKernel.invalidateTLB(this, vpn);
+		VMKernel.setInvertTable(ppn, this, vpn);
+		byte[] memory = Machine.processor().getMemory();
+		Arrays.fill(memory, ppn*pageSize, (ppn+1)*pageSize, (byte) 0);
+
+		VMKernel.lockFrame(ppn);
+		entry.ppn = ppn;
+		entry.readOnly = false;
+		entry.valid = true;
+		entry.used = true;
+		zeroMapped[vpn] = false;
+		if(pin)
+			VMKernel.pinLocked(ppn);
+		VMKernel.finishTransit(ppn);
+		VMKernel.unlockFrame(ppn);
+		VMKernel.pageLoaded(ppn);
+		VMKernel.countZeroPage(true);
 
 		Lib.debug(dbgProcess, "Physical page " + ppn +
-		" is assigned to " + vpn);
- 		return 0;
+		" is copied on write for " + vpn);
+		return ppn;
+	}
+
+	/**
+	 * Refill the TLB with the page table entry of vaddr, faulting the page in
+	 * first if it is not resident. The page may be evicted again while the
+	 * fault blocks, so the entry is only loaded once it is seen valid with
+	 * interrupts disabled.
+	 * @param vaddr the faulting address
+	 * @return 0 if success, -1 on error
+	 */
+	public int handleTLBMiss(int vaddr) {
+		int vpn = Processor.pageFromAddress(vaddr);
+		if(!isVPNValid(vpn))
+			return -1;
+
+		while(true) {
+			boolean intStatus = Machine.interrupt().disable();
+			TranslationEntry entry = pageTables.get(vpn);
+			if(entry.valid) {
+				VMKernel.refillTLB(this, entry);
+				Machine.interrupt().restore(intStatus);
+				return 0;
+			}
+			Machine.interrupt().restore(intStatus);
+
+			if(handlePageFault(vaddr) == -1)
+				return -1;
+		}
+	}
+
+	/**
+	 * Merge the used and dirty bits of a TLB entry of this process into its
+	 * page table, if the entry still maps the same frame.
+	 * @param tlbEntry
+	 */
+	public void foldTLBEntry(TranslationEntry tlbEntry) {
+		TranslationEntry entry = pageTables.lookup(tlbEntry.vpn);
+		if(entry == null || !entry.valid || entry.ppn != tlbEntry.ppn)
+			return;
+		if(tlbEntry.used)
+			entry.used = true;
+		if(tlbEntry.dirty)
+			entry.dirty = true;
+	}
+
+	/**
+	 * @return the address-space identifier of this process, or -1 if it has
+	 * none
+	 */
+	public int getASID() {
+		return asid;
+	}
+
+	public void setASID(int asid) {
+		this.asid = asid;
+	}
+
+	/**
+	 * Handle a write to a read-only page. A page that maps the shared zero
+	 * frame gets a private copy; any other page is really read-only.
+	 * @param vaddr the faulting address
+	 * @return 0 if success, -1 on error
+	 */
+	public int handleReadOnlyFault(int vaddr) {
+		int vpn = vaddr/pageSize;
+		if(vaddr < 0 || !isVPNValid(vpn) || !zeroMapped[vpn])
+			return -1;
+
+		breakZeroPage(vpn, false);
+		return 0;
+	}
+
+	/**
+	 * Require the frame lock of ppn.
+	 * Sleep until the eviction of the page in entry from ppn is done.
+	 */
+	private void waitForEviction(TranslationEntry entry, int ppn) {
+		while(!entry.valid && entry.ppn == ppn)
+			VMKernel.waitForFrame(ppn);
 	}
 
 
@@ -333,6 +749,17 @@ public class VMProcess extends UserProcess {
 				// Don't do this.
 //				processor.writeRegister(Processor.regV0, result);
 				break;
+			case Processor.exceptionTLBMiss:
+				// also without advancing PC
+				if(handleTLBMiss(processor.readRegister(Processor.regBadVAddr)) == -1)
+					super.handleException(Processor.exceptionAddressError);
+				break;
+			case Processor.exceptionReadOnly:
+				// copy on write of the zero page, also without advancing PC
+				int badVaddr = processor.readRegister(Processor.regBadVAddr);
+				if(handleReadOnlyFault(badVaddr) == -1)
+					super.handleException(cause);
+				break;
 		default:
 			super.handleException(cause);
 			break;
@@ -340,138 +767,529 @@ public class VMProcess extends UserProcess {
 	}
 
 	/**
-	 * Require mutex
-	 * Find one of the valid page to be evicted
-	 * Clock algorithm
-	 * Not finding the page that is not valid. This is a redundant check
-	 * @return the ppn to be evicted
+	 * Require the frame lock; the frame must be evictable.
+	 * Return whether the page in ppn has been referenced since the last call,
+	 * and clear its used bit. The working-set sampler moves used bits into
+	 * softUsed, so both count. A page read ahead counts as used from then on.
+	 * @param ppn
+	 * @return the old used bit
 	 */
-	public int findVictim() {
-		Lib.assertTrue(mutex.isHeldByCurrentThread());
-		// clock algorithm
-		while(true) {
-			pagePtr = (pagePtr+1)%numPhyPages;
-			if(VMKernel.isAllPinned()) {
-				waitForUnpinned.sleep();
-			}
+	public static boolean testAndClearUsed(int ppn) {
+		VMProcess vp = VMKernel.getVMProcess(ppn);
+		int vpn = VMKernel.getvpn(ppn);
+		TranslationEntry entry = vp.pageTables.get(vpn);
+		VMKernel.flushTLB(ppn, false);
+		if(!entry.used && !vp.softUsed[vpn])
+			return false;
+		entry.used = false;
+		vp.softUsed[vpn] = false;
+		vp.prefetched[vpn] = false;
+		return true;
+	}
 
-			int vpn = VMKernel.getvpn(pagePtr);
-			if(!isVPNValid(vpn)) continue;
-			VMProcess vp = VMKernel.getVMProcess(pagePtr);
-			if(vp == null) continue;
-			TranslationEntry entry = vp.pageTable[vpn];
-			if(entry.valid) {
-				if(entry.used)
-					entry.used = false;
-				else {
-					if(!VMKernel.isPinned(pagePtr))
-						break;
-				}
-			}
+	/**
+	 * Require the frame lock; the frame must be evictable.
+	 * @param ppn
+	 * @return whether the page in ppn must be written to swap when evicted
+	 */
+	public static boolean isDirty(int ppn) {
+		VMProcess vp = VMKernel.getVMProcess(ppn);
+		VMKernel.flushTLB(ppn, false);
+		return vp.pageTables.get(VMKernel.getvpn(ppn)).dirty;
+	}
 
-		}
+	/**
+	 * Require the frame lock; the frame must be evictable.
+	 * Claim ppn for eviction: put it in transit and make its page table entry
+	 * invalid, so its owner faults on it from now on.
+	 * @param ppn
+	 */
+	public static void startEviction(int ppn) {
+		VMProcess vp = VMKernel.getVMProcess(ppn);
+		VMKernel.startTransit(ppn);
+		VMKernel.flushTLB(ppn, true);
+		vp.pageTables.get(VMKernel.getvpn(ppn)).valid = false;
+	}
 
-		return pagePtr;
+	/**
+	 * Require the frame lock.
+	 * @param ppn
+	 * @return a key naming the page in ppn, unique across processes
+	 */
+	public static long pageKey(int ppn) {
+		VMProcess vp = VMKernel.getVMProcess(ppn);
+		return ((long) vp.getPID() << 32) | VMKernel.getvpn(ppn);
 	}
 
 	/**
-	 * require mutex
-	 * require the ppn is unpinned
-	 * require the pagetable entry is valid
+	 * require the frame to be chosen by VMKernel.findVictim
+	 * Write the page to swap if dirty, with no lock held, then detach it from
+	 * its owner. The frame stays in transit for the caller.
 	 * @param ppn
 	 * @return
 	 */
-	public boolean evict(int ppn) {
-		Lib.assertTrue(mutex.isHeldByCurrentThread());
-		Lib.assertTrue(!VMKernel.isPinned(ppn));
+	public static boolean evict(int ppn) {
+		Lib.assertTrue(VMKernel.isInTransit(ppn));
 
 		int victimVPN = VMKernel.getvpn(ppn);
 		VMProcess vp = VMKernel.getVMProcess(ppn);
 		Lib.assertTrue(vp != null && victimVPN != -1);
-		TranslationEntry victim = vp.pageTable[victimVPN];
+		TranslationEntry victim = vp.pageTables.get(victimVPN);
 		if(victim.dirty){
 			Lib.debug(dbgProcess, ppn + " is dirty");
-			int spn = VMKernel.getFreeSwapPages();
-			vp.swpTable.put(victimVPN, spn);
+			int spn = vp.reserveSwap(victimVPN);
 			byte[] memory = Machine.processor().getMemory();
-			int written = VMKernel.swpFile.write(spn*pageSize, memory, ppn*pageSize, pageSize);
-			Lib.assertTrue(written == pageSize);
+			VMKernel.writeSwap(spn, memory, ppn*pageSize);
+			vp.putSwap(victimVPN);
 			Lib.debug(dbgProcess, "write vpn " + victimVPN + " spn "+ spn);
 		}
 		Lib.debug(dbgProcess, "evicting " + ppn + " from " + victimVPN);
-		VMKernel.removeInvertTableMap(ppn);
 
-		victim.valid = false;
+		VMKernel.lockFrame(ppn);
+		if(vp.prefetched[victimVPN] && !victim.used && !vp.softUsed[victimVPN]) {
+			// read ahead but never referenced
+			vp.prefetched[victimVPN] = false;
+			vp.window /= 2;
+			VMKernel.countReadAhead(true);
+		}
+		VMKernel.removeInvertTableMap(ppn);
 		victim.readOnly = false;
 		victim.dirty = false;
 		victim.used = false;
+		vp.softUsed[victimVPN] = false;
 		victim.ppn = -1;
+		VMKernel.wakeFrameWaiters(ppn);
+		VMKernel.unlockFrame(ppn);
 
 		return true;
 	}
 
 	/**
-	 *
-	 * @return ppn that is ready to be used
+	 * Write a dirty page back to swap without evicting it, if it is next in
+	 * line for eviction: not pinned, not in transit and not recently used.
+	 * The page is marked clean and a copy taken under the frame lock, and the
+	 * frame stays pinned until the write is done, so the page cannot be
+	 * evicted and faulted back in before its swap slot is up to date.
+	 * If the page is modified in the meantime, it is dirty again.
+	 * @param ppn
+	 * @return true if the page was written
 	 */
-	public int getPPNFromKernel() {
-		mutex.acquire();
-		int ppn = -1;
-		if(VMKernel.getFreePageSize() > 0) {
-			ppn = VMKernel.getFreePage();
+	public static boolean cleanFrame(int ppn) {
+		VMKernel.lockFrame(ppn);
+		VMProcess vp = VMKernel.getVMProcess(ppn);
+		if(vp == null || VMKernel.isPinned(ppn) || VMKernel.isInTransit(ppn)) {
+			VMKernel.unlockFrame(ppn);
+			return false;
 		}
-		else {
-			ppn = findVictim();
-			evict(ppn);
+		int vpn = VMKernel.getvpn(ppn);
+		TranslationEntry entry = vp.pageTables.get(vpn);
+		VMKernel.flushTLB(ppn, false);
+		if(!entry.valid || !entry.dirty || entry.used || vp.softUsed[vpn]) {
+			VMKernel.unlockFrame(ppn);
+			return false;
+		}
+		VMKernel.pinLocked(ppn);
+		entry.dirty = false;
+		byte[] localBuffer = new byte[pageSize];
+		System.arraycopy(Machine.processor().getMemory(), ppn*pageSize,
+				localBuffer, 0, pageSize);
+		VMKernel.unlockFrame(ppn);
+
+		int spn = vp.reserveSwap(vpn);
+		VMKernel.writeSwap(spn, localBuffer, 0);
+		vp.putSwap(vpn);
+		Lib.debug(dbgVM, "clean vpn " + vpn + " spn " + spn);
+
+		VMKernel.unpinPage(ppn);
+		return true;
+	}
+
+	/**
+	 * @return the number of ticks this process has been running
+	 */
+	public long getVirtualTime() {
+		if(runningSince == -1)
+			return virtualTime;
+		return virtualTime + Machine.timer().getTime() - runningSince;
+	}
+
+	/**
+	 * Sample the used bit of the page in ppn, if any, moving it into softUsed
+	 * so the replacement policy still sees it, and recording the virtual time
+	 * of its owner.
+	 * @param ppn
+	 */
+	public static void sampleFrame(int ppn) {
+		VMKernel.lockFrame(ppn);
+		VMProcess vp = VMKernel.getVMProcess(ppn);
+		if(vp != null && !VMKernel.isInTransit(ppn)) {
+			int vpn = VMKernel.getvpn(ppn);
+			TranslationEntry entry = vp.pageTables.get(vpn);
+			VMKernel.flushTLB(ppn, false);
+			if(entry.valid && entry.used) {
+				entry.used = false;
+				vp.softUsed[vpn] = true;
+				vp.prefetched[vpn] = false;
+				vp.lastReference[vpn] = vp.getVirtualTime();
+			}
+		}
+		VMKernel.unlockFrame(ppn);
+	}
+
+	/**
+	 * Count the pages referenced in the last window ticks of this process's
+	 * virtual time, as seen by sampleFrame and page faults.
+	 * @param window the working-set window
+	 * @return the working-set size
+	 */
+	public int sampleWorkingSet(long window) {
+		long now = getVirtualTime();
+		int size = 0;
+		for(int vpn = 0; vpn < numPages; vpn++) {
+			if(lastReference[vpn] != -1 && now - lastReference[vpn] <= window)
+				size++;
+		}
+		workingSetSize = size;
+		return size;
+	}
+
+	/**
+	 * @return the working-set size found by the last sample
+	 */
+	public int getWorkingSetSize() {
+		return workingSetSize;
+	}
+
+	/**
+	 * Evict every resident page of this process that can be evicted now.
+	 * Called by the load controller after suspending this process.
+	 */
+	public void swapOut() {
+		for(int vpn = 0; vpn < numPages; vpn++) {
+			TranslationEntry entry = pageTables.lookup(vpn);
+			if(entry == null)
+				continue;
+			int ppn = entry.ppn;
+			if(!entry.valid || ppn == -1)
+				continue;
+
+			VMKernel.lockFrame(ppn);
+			boolean claimed = entry.valid && entry.ppn == ppn
+					&& VMKernel.isEvictable(ppn) && VMKernel.getVMProcess(ppn) == this;
+			if(claimed)
+				startEviction(ppn);
+			VMKernel.unlockFrame(ppn);
+
+			if(claimed) {
+				evict(ppn);
+				VMKernel.freeFrame(ppn);
+			}
+		}
+	}
+
+	/**
+	 * Take a free frame, or evict one if there is none.
+	 * @return ppn that is ready to be used, in transit
+	 */
+	public int getPPNFromKernel() {
+		while(true) {
+			int ppn = VMKernel.allocateFrame();
+			if(ppn != -1)
+				return ppn;
+
+			ppn = VMKernel.findVictim();
+			if(ppn != -1) {
+				VMKernel.countDirectReclaim();
+				evict(ppn);
+				return ppn;
+			}
+
+			// every owned frame is pinned or in transit
+			VMKernel.waitForEvictableFrame();
 		}
-		mutex.release();
-		return ppn;
 	}
 
 	/**
 	 * Reading a virtual page from swap file
-	 * Require the page table entry is set
-	 * Only load the content of it
+	 * straight into ppn, which is in transit for vpn.
+	 * The slot keeps its copy, so the page stays clean and is only written
+	 * back if it is modified again, unless it came from the swap cache.
 	 * @param vpn
+	 * @param ppn
 	 * @return
 	 */
-	public boolean readSwap(int vpn) {
+	public boolean readSwap(int vpn, int ppn) {
 
 		Lib.assertTrue(isVPNValid(vpn));
-		Lib.assertTrue(pageTable[vpn].valid && pageTable[vpn].ppn != -1);
-		int spn = swpTable.get(vpn);
-		swpTable.remove(vpn);
+		Lib.assertTrue(VMKernel.isInTransit(ppn));
+		int spn = getSwap(vpn);
 		byte[] memory = Machine.processor().getMemory();
-		byte[] localBuffer = new byte[pageSize];
-		mutex.acquire();
-
-		int i = VMKernel.swpFile.read(spn*pageSize, localBuffer, 0, pageSize);
-		VMKernel.returnFreeSwapPages(spn);
-		mutex.release();
 
-		Lib.assertTrue(i == pageSize);
-		int j = writeVirtualMemory(vpn*pageSize, localBuffer, 0, pageSize);
-		Lib.assertTrue(i == j);
+		if(VMKernel.readSwap(spn, memory, ppn*pageSize))
+			pageTables.get(vpn).dirty = true;
 
 		Lib.debug(dbgProcess, "read from spn " + spn);
 
-
 		return true;
 	}
 
+	/**
+	 * Swap in vpn into ppn, together with the swapped pages that follow it
+	 * in its cluster, up to <tt>VMKernel.swapReadCluster</tt> of them. Their
+	 * slots are adjacent, so they come from the swap file in one read. The
+	 * extra pages only take free frames, like read-ahead, and are mapped as
+	 * pages read ahead.
+	 * @param vpn a swapped page
+	 * @param ppn the frame for vpn, in transit
+	 */
+	private void swapInCluster(int vpn, int ppn) {
+		int clusterSize = VMKernel.getSwapClusterSize();
+		int c = vpn / clusterSize;
+		int end = Math.min(c * clusterSize + extentLength(c),
+				vpn + 1 + VMKernel.getSwapReadCluster());
+
+		int[] ppns = claimCluster(vpn, ppn, end, true);
+		int count = ppns.length;
+
+		if(count == 1) {
+			readSwap(vpn, ppn);
+			return;
+		}
+
+		// the frames are not contiguous, so the run goes through one buffer
+		int spn = getSwap(vpn);
+		byte[] memory = Machine.processor().getMemory();
+		byte[] buffer = new byte[count*pageSize];
+		boolean[] cached = new boolean[count];
+		VMKernel.readSwap(spn, count, buffer, 0, cached);
+
+		for(int i = 0; i < count; i++) {
+			System.arraycopy(buffer, i*pageSize, memory, ppns[i]*pageSize,
+					pageSize);
+			if(cached[i])
+				pageTables.get(vpn + i).dirty = true;
+		}
+		Lib.debug(dbgProcess, "read " + count + " pages from spn " + spn);
+
+		for(int i = 1; i < count; i++)
+			mapPrefetched(vpn + i, ppns[i]);
+	}
+
+	/**
+	 * Load vpn, a coff page that has never been swapped, into ppn, together
+	 * with the following pages of its section that are neither resident nor
+	 * swapped, up to <tt>VMKernel.coffReadCluster</tt> of them, in one read of
+	 * the executable. The extra pages take free frames only and are mapped as
+	 * pages read ahead.
+	 * @param vpn
+	 * @param ppn the frame for vpn, in transit
+	 */
+	private void coffInCluster(int vpn, int ppn) {
+		CoffSection cs = coffSections[vpn];
+		int end = vpn + 1;
+		if(cs.isInitialzed())
+			end = Math.min(cs.getFirstVPN() + cs.getLength(),
+					vpn + 1 + VMKernel.getCoffReadCluster());
+
+		int[] ppns = claimCluster(vpn, ppn, end, false);
+		loadCoffPages(vpn, ppns);
+
+		for(int i = 0; i < ppns.length; i++) {
+			if(cs.isReadOnly())
+				pageTables.get(vpn + i).readOnly = true;
+			if(i > 0)
+				mapPrefetched(vpn + i, ppns[i]);
+		}
+		if(ppns.length > 1)
+			Lib.debug(dbgProcess, "loaded " + ppns.length + " coff pages at "
+					+ vpn);
+	}
+
+	/**
+	 * Load a run of pages of one coff section into the given frames, reading
+	 * the part of the run that comes from the executable with one read.
+	 * @param vpn the first page of the run
+	 * @param ppns the frame for each page of the run
+	 */
+	private void loadCoffPages(int vpn, int[] ppns) {
+		if(executable == null) {
+			CoffSection cs = coffSections[vpn];
+			for(int i = 0; i < ppns.length; i++)
+				cs.loadPage(vpn + i - cs.getFirstVPN(), ppns[i]);
+			return;
+		}
+
+		int length = 0;
+		for(int i = 0; i < ppns.length; i++)
+			length += coffLengths[vpn + i];
+		byte[] buffer = new byte[length];
+		if(length > 0)
+			Lib.strictReadFile(executable, coffOffsets[vpn], buffer, 0, length);
+
+		byte[] memory = Machine.processor().getMemory();
+		for(int i = 0; i < ppns.length; i++) {
+			int paddr = ppns[i]*pageSize;
+			int initlen = coffLengths[vpn + i];
+			System.arraycopy(buffer, i*pageSize, memory, paddr, initlen);
+			Arrays.fill(memory, paddr + initlen, paddr + pageSize, (byte) 0);
+		}
+	}
+
+	/**
+	 * Find where each coff page starts in the executable, by reading the
+	 * section headers from the file the coff cache opened, so that a run of
+	 * pages can be read at once. Leaves executable null, and pages are loaded
+	 * one at a time by their section, if the headers do not match the
+	 * sections, as when the autograder supplies its own loader.
+	 */
+	private void findCoffContents() {
+		OpenFile file = UserKernel.coffCache.getFile(coff);
+		byte[] header = new byte[coffHeaderLength];
+		if(file.read(0, header, 0, header.length) != header.length)
+			return;
+
+		int numSections = coff.getNumSections();
+		byte[] sections = new byte[numSections*CoffSection.headerLength];
+		int offset = coffHeaderLength + Lib.bytesToUnsignedShort(header, 16);
+		if(file.read(offset, sections, 0, sections.length) != sections.length)
+			return;
+
+		int[] offsets = new int[numCoffPages];
+		int[] lengths = new int[numCoffPages];
+		for(int i = 0; i < numSections; i++) {
+			CoffSection cs = coff.getSection(i);
+			int base = i*CoffSection.headerLength;
+			if(!Lib.bytesToString(sections, base, 8).equals(cs.getName())
+					|| Lib.bytesToInt(sections, base + 12)
+							!= cs.getFirstVPN()*pageSize)
+				return;
+			if(!cs.isInitialzed())
+				continue;
+
+			int size = Lib.bytesToInt(sections, base + 16);
+			int start = Lib.bytesToInt(sections, base + 20);
+			for(int spn = 0; spn < cs.getLength(); spn++) {
+				offsets[cs.getFirstVPN() + spn] = start + spn*pageSize;
+				lengths[cs.getFirstVPN() + spn] =
+						Math.min(pageSize, size - spn*pageSize);
+			}
+		}
+
+		executable = file;
+		coffOffsets = offsets;
+		coffLengths = lengths;
+	}
+
+	/**
+	 * Take ppn for vpn, and a free frame for each following page before end
+	 * that is not resident and is swapped or not as asked, stopping at the
+	 * first page that is not or when no frame is free. Every frame is in
+	 * transit and owned by its page.
+	 * @param vpn
+	 * @param ppn the frame for vpn, in transit
+	 * @param end the page after the last one to consider
+	 * @param swapped whether the following pages must be swapped
+	 * @return the frames, in vpn order starting with ppn
+	 */
+	private int[] claimCluster(int vpn, int ppn, int end, boolean swapped) {
+		int[] ppns = new int[end - vpn];
+		ppns[0] = ppn;
+		VMKernel.setInvertTable(ppn, this, vpn);
+
+		int count = 1;
+		for(; vpn + count < end; count++) {
+			int next = vpn + count;
+			TranslationEntry entry = pageTables.get(next);
+			if(entry.valid || entry.ppn != -1 || hasSwap(next) != swapped)
+				break;
+			int frame = VMKernel.allocateReadAheadFrame();
+			if(frame == -1)
+				break;
+			VMKernel.setInvertTable(frame, this, next);
+			ppns[count] = frame;
+		}
+		return Arrays.copyOf(ppns, count);
+	}
+
+	private boolean hasSwap(int vpn) {
+		swapTableLock.acquire();
+		boolean swapped = inSwap.get(vpn);
+		swapTableLock.release();
+		return swapped;
+	}
+
+	/**
+	 * Return the swap slot of vpn, allocating the extent of its cluster the
+	 * first time a page of the cluster is written out. Pages of one cluster
+	 * get adjacent slots in vpn order.
+	 * @param vpn
+	 * @return spn
+	 */
+	private int reserveSwap(int vpn) {
+		int clusterSize = VMKernel.getSwapClusterSize();
+		int c = vpn / clusterSize;
+		swapTableLock.acquire();
+		if(swapExtents[c] == -1)
+			swapExtents[c] = VMKernel.allocateSwap(extentLength(c));
+		int spn = swapExtents[c] + vpn % clusterSize;
+		swapTableLock.release();
+		return spn;
+	}
+
+	/**
+	 * The slot of vpn holds its contents from now on.
+	 * @param vpn
+	 */
+	private void putSwap(int vpn) {
+		swapTableLock.acquire();
+		Lib.assertTrue(swapExtents[vpn / VMKernel.getSwapClusterSize()] != -1);
+		inSwap.set(vpn);
+		swapTableLock.release();
+	}
+
+	/**
+	 * require vpn to have been swapped
+	 * @param vpn
+	 * @return the slot holding vpn
+	 */
+	private int getSwap(int vpn) {
+		int clusterSize = VMKernel.getSwapClusterSize();
+		swapTableLock.acquire();
+		Lib.assertTrue(inSwap.get(vpn));
+		int spn = swapExtents[vpn / clusterSize] + vpn % clusterSize;
+		swapTableLock.release();
+		return spn;
+	}
+
+	/**
+	 * The number of slots in the extent of cluster c; the last cluster may
+	 * be short.
+	 */
+	private int extentLength(int c) {
+		int clusterSize = VMKernel.getSwapClusterSize();
+		return Math.min(clusterSize, numPages - c * clusterSize);
+	}
+
 	// helper function for handleExec
 	// create a VMProcess instead of a UserProcess
 	public UserProcess getNewProcess() {
 		return new VMProcess();
 	}
 
+	/**
+	 * @param vpn
+	 * @return whether vpn is mapped: a coff, stack or argument page, or a heap
+	 * page below the break
+	 */
 	public boolean isVPNValid(int vpn) {
-		return vpn >= 0 && vpn < numPages;
+		if(vpn < 0 || vpn >= numPages)
+			return false;
+		if(vpn >= numCoffPages && vpn < numCoffPages + heapPages)
+			return vpn < Lib.divRoundUp(brk, pageSize);
+		return true;
 	}
 
 
-	private static Condition waitForUnpinned = new Condition(mutex);
-
 	private static final int pageSize = Processor.pageSize;
 
 	private static final char dbgProcess = 'a';
@@ -480,12 +1298,74 @@ public class VMProcess extends UserProcess {
 
 	private int numCoffPages = 0;
 
-	private HashMap<Integer, Integer> swpTable = new HashMap<>();
+	/** The end of the heap, as a virtual address. */
+	private int brk;
 
-	private static int pagePtr = 0;
+	/** The lowest stack page faulted in so far. */
+	private int stackBottom;
 
-	private static int numPhyPages = Machine.processor().getNumPhysPages();
+	/** The coff section holding each coff vpn. */
+	private CoffSection[] coffSections;
+
+	/** The executable the coff sections are read from, or null. */
+	private OpenFile executable;
+
+	/** Where each coff page starts in the executable. */
+	private int[] coffOffsets;
 
-	private boolean needToPin = false;
+	/** The number of bytes of each coff page that come from the executable. */
+	private int[] coffLengths;
+
+	/** The length of the COFF file header. */
+	private static final int coffHeaderLength = 20;
+
+	/** First swap slot of each cluster of vpns, or -1 if not allocated. */
+	private int[] swapExtents;
+
+	/** Set for each vpn whose swap slot holds its contents. */
+	private BitSet inSwap = new BitSet();
+
+	/** Protects swapExtents and inSwap, which evicting threads update. */
+	private Lock swapTableLock = new Lock();
+
+	/**
+	 * Set while a page that was read ahead is resident and has not been
+	 * referenced. Protected by the lock of the frame holding the page.
+	 */
+	private boolean[] prefetched;
+
+	/** Replaces the flat <tt>pageTable</tt> of UserProcess, which stays null. */
+	private PageTable pageTables;
+
+	/** The address-space identifier given by VMKernel, or -1. */
+	private int asid = -1;
+
+	/** Fault stride detection state for <tt>readAhead</tt>. */
+	private int lastFault = -1, lastDelta = 0, stride = 0, nextExpected = -1;
+
+	/** Set for each vpn that maps the shared zero frame, read-only. */
+	private boolean[] zeroMapped;
+
+	/**
+	 * Used bits moved out of the page table by the working-set sampler.
+	 * Protected by the lock of the frame holding the page.
+	 */
+	private boolean[] softUsed;
+
+	/** When each page was last seen referenced, in virtual time, or -1. */
+	private long[] lastReference;
+
+	/** Ticks this process ran before it was last switched in. */
+	private long virtualTime = 0;
+
+	/** When this process was switched in, or -1 if it is not running. */
+	private long runningSince = -1;
+
+	private int workingSetSize = 0;
+
+	/** How many pages to read ahead of the current stream. */
+	private int window = 0;
+
+	private static int numPhyPages = Machine.processor().getNumPhysPages();
 
 }
@@ -0,0 +1,130 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * The WSClock algorithm. Each frame records the time its page was last seen
+ * referenced; a page not referenced for more than the working-set window
+ * (<tt>WSClockPolicy.window</tt> ticks) has left its process's working set.
+ *
+ * <p>
+ * One sweep of the hand clears used bits and evicts the first clean page
+ * outside the working set. If there is none, the first dirty page outside
+ * the working set is evicted, and failing that the unreferenced page that
+ * was used longest ago. Old dirty pages are normally written back ahead of
+ * time by the page-out daemon, which turns them into clean candidates.
+ */
+public class WSClockPolicy implements PageReplacementPolicy {
+	/**
+	 * Allocate a new WSClock policy.
+	 */
+	public WSClockPolicy() {
+		numPhysPages = Machine.processor().getNumPhysPages();
+		window = Config.getInteger("WSClockPolicy.window", 20000);
+		lastUse = new long[numPhysPages];
+	}
+
+	public void pageLoaded(int ppn) {
+		lock.acquire();
+		lastUse[ppn] = Machine.timer().getTime();
+		lock.release();
+	}
+
+	public void pageFreed(int ppn) {
+	}
+
+	public int findVictim() {
+		lock.acquire();
+		for (int round = 0; round < 2; round++) {
+			long now = Machine.timer().getTime();
+			int dirtyCandidate = -1, oldest = -1;
+
+			for (int i = 0; i < numPhysPages; i++) {
+				hand = (hand + 1) % numPhysPages;
+				int ppn = hand;
+
+				VMKernel.lockFrame(ppn);
+				if (VMKernel.isEvictable(ppn)) {
+					if (VMProcess.testAndClearUsed(ppn)) {
+						lastUse[ppn] = now;
+					}
+					else if (now - lastUse[ppn] > window
+							&& !VMProcess.isDirty(ppn)) {
+						VMProcess.startEviction(ppn);
+						VMKernel.unlockFrame(ppn);
+						oldClean++;
+						lock.release();
+						return ppn;
+					}
+					else if (now - lastUse[ppn] > window) {
+						if (dirtyCandidate == -1)
+							dirtyCandidate = ppn;
+					}
+					else if (oldest == -1 || lastUse[ppn] < lastUse[oldest]) {
+						oldest = ppn;
+					}
+				}
+				VMKernel.unlockFrame(ppn);
+			}
+
+			int ppn = (dirtyCandidate != -1) ? dirtyCandidate : oldest;
+			if (ppn != -1 && claim(ppn)) {
+				if (ppn == dirtyCandidate)
+					oldDirty++;
+				else
+					inWorkingSet++;
+				lock.release();
+				return ppn;
+			}
+		}
+		lock.release();
+
+		waits++;
+		return -1;
+	}
+
+	/**
+	 * Evict a candidate found earlier in the sweep, if it is still evictable
+	 * and has not been referenced since.
+	 */
+	private boolean claim(int ppn) {
+		VMKernel.lockFrame(ppn);
+		boolean claimed = VMKernel.isEvictable(ppn)
+				&& !VMProcess.testAndClearUsed(ppn);
+		if (claimed)
+			VMProcess.startEviction(ppn);
+		VMKernel.unlockFrame(ppn);
+		return claimed;
+	}
+
+	public int[] getCandidates(int count) {
+		lock.acquire();
+		int[] candidates = new int[Math.min(count, numPhysPages)];
+		for (int i = 0; i < candidates.length; i++)
+			candidates[i] = (hand + 1 + i) % numPhysPages;
+		lock.release();
+		return candidates;
+	}
+
+	public void print() {
+		System.out.println("WSClock: evicted old clean " + oldClean
+				+ ", old dirty " + oldDirty + ", in working set " + inWorkingSet
+				+ ", waits " + waits + ", window " + window);
+	}
+
+	private int numPhysPages;
+
+	/** The working-set window, in ticks. */
+	private long window;
+
+	/** The time each frame's page was last seen referenced. */
+	private long[] lastUse;
+
+	private int hand = 0;
+
+	/** Protects the hand and lastUse. */
+	private Lock lock = new Lock();
+
+	private int oldClean = 0, oldDirty = 0, inWorkingSet = 0, waits = 0;
+}